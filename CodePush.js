@@ -3,55 +3,18 @@ import hoistStatics from 'hoist-non-react-statics';
 
 let NativeCodePush = require('react-native').NativeModules.CodePush;
 
+//ask the native module for an update to the running package; it talks to the update server set with
+//CodePush.setUpdateServer() and resolves with null when the running package is already the latest
 async function checkForUpdate() {
-  //get native configuration data
-  let nativeConfig = await getConfiguration();
-  console.log('nativeConfig');
-  console.log(nativeConfig);
-
-  //get the local package info
-  let localBundleData = await getUpdateMetadata();
-  console.log('localBundleData');
-  console.log(localBundleData);
-
-  //make the network call to check if we have new updates
-  if (localBundleData) {
-    nativeConfig.bundleVersion = localBundleData.bundleVersion;
-  }
-
-  let remoteBundleData = await getRemoteBundleData(nativeConfig);
-  remoteBundleData.updateDownloadUrl =
-    `http://125.16.74.160:30626/runtimeAppUpdate/api/` +
-    remoteBundleData.updateDownloadUrl;
-  remoteBundleData.appVersion = nativeConfig.appVersion;
-  console.log('remoteBundleData');
-  console.log(remoteBundleData);
-
-  remotePackage = null;
-
-  if (remoteBundleData && remoteBundleData.success === 'true') {
-    if (localBundleData) {
-      if (localBundleData.bundleVersion != remoteBundleData.bundleVersion) {
-        console.log('bundle version mismatch');
-        remotePackage = await downloadAndInstallTheRemoteBundle(
-          remoteBundleData,
-        );
-      } else {
-        //do nothing
-        console.log('bundle version match');
-      }
-    } else {
-      //download the latest bundle
-      console.log('no local bundle present');
-      remotePackage = await downloadAndInstallTheRemoteBundle(remoteBundleData);
-    }
-  } else {
-    console.log('no remote bundle present for this appVersion');
+  let remotePackage = await NativeCodePush.checkForUpdate();
+  if (!remotePackage) {
+    console.log('no newer remote bundle present for this appVersion');
+    return null;
   }
 
   console.log('remote package');
   console.log(remotePackage);
-  return remotePackage;
+  return await downloadAndInstallTheRemoteBundle(remotePackage);
 }
 
 async function downloadAndInstallTheRemoteBundle(remoteBundleData) {
@@ -71,28 +34,24 @@ async function getConfiguration() {
   return await NativeCodePush.getConfiguration();
 }
 
+//synchronous variants, answered from native caches without a bridge round-trip
+function getConfigurationSync() {
+  return NativeCodePush.getConfigurationSync();
+}
+
+function getUpdateMetadataSync() {
+  return NativeCodePush.getUpdateMetadataSync();
+}
+
 //call native function to get the local package data if available
 async function getUpdateMetadata() {
   let updateMetadata = await NativeCodePush.getUpdateMetadata();
   return updateMetadata;
 }
 
-//need to write this, make a network call here to check if we have a new bundle on server
-async function getRemoteBundleData(nativeConfig) {
-  console.log(nativeConfig);
-  try {
-    let url = `http://125.16.74.160:30626/runtimeAppUpdate/api/getLastUpdate?appName=Hive&platformType=${nativeConfig.platformType}&currentAppVersion=${nativeConfig.appVersion}`;
-    if (nativeConfig.bundleVersion) {
-      url = url + `&bundleNumber=${nativeConfig.bundleVersion}`;
-    }
-    console.log(url);
-    let response = await fetch(url, {method: 'GET'});
-    let responseJson = await response.json();
-    console.log(responseJson);
-    return responseJson;
-  } catch (error) {
-    console.error(error);
-  }
+//metadata of the updates kept on disk, most recently used first; installing one needs no download
+async function getRetainedUpdates() {
+  return await NativeCodePush.getRetainedUpdates();
 }
 
 let CodePush;
@@ -101,6 +60,56 @@ async function sync() {
   return await checkForUpdate();
 }
 
+//check, download and install natively; only status and progress events cross the bridge
+async function syncNative(
+  options = {},
+  syncStatusChangedCallback,
+  downloadProgressCallback,
+) {
+  let {DeviceEventEmitter} = require('react-native');
+  let subscriptions = [];
+  if (syncStatusChangedCallback) {
+    subscriptions.push(
+      DeviceEventEmitter.addListener(
+        'CodePushSyncStatus',
+        syncStatusChangedCallback,
+      ),
+    );
+  }
+  if (downloadProgressCallback) {
+    subscriptions.push(
+      DeviceEventEmitter.addListener(
+        'CodePushDownloadProgress',
+        downloadProgressCallback,
+      ),
+    );
+  }
+
+  try {
+    return await NativeCodePush.syncNative(options);
+  } finally {
+    subscriptions.forEach((subscription) => subscription.remove());
+  }
+}
+
+//cap the bandwidth of update downloads, e.g. lower it when AppState goes to background; 0 lifts the cap
+function setMaxDownloadBytesPerSecond(bytesPerSecond) {
+  NativeCodePush.setMaxDownloadBytesPerSecond(bytesPerSecond);
+}
+
+//pause, resume or cancel the downloads in progress; a cancelled one rejects with code CODEPUSH_DOWNLOAD_CANCELLED
+function pauseDownload() {
+  NativeCodePush.pauseDownload();
+}
+
+function resumeDownload() {
+  NativeCodePush.resumeDownload();
+}
+
+function cancelDownload() {
+  NativeCodePush.cancelDownload();
+}
+
 function codePushify(options = {}) {
   let React;
   let ReactNative = require('react-native');
@@ -203,10 +212,18 @@ function codePushify(options = {}) {
 if (NativeCodePush) {
   CodePush = codePushify;
   Object.assign(CodePush, {
+    cancelDownload,
     checkForUpdate,
     getConfiguration,
+    getConfigurationSync,
+    getRetainedUpdates,
     getUpdateMetadata,
+    getUpdateMetadataSync,
+    pauseDownload,
+    resumeDownload,
+    setMaxDownloadBytesPerSecond,
     sync,
+    syncNative,
     log,
   });
 } else {
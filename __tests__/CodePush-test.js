@@ -0,0 +1,68 @@
+/**
+ * @format
+ */
+
+import {NativeModules} from 'react-native';
+
+const remotePackage = {
+  appVersion: '1.4',
+  bundleVersion: 5,
+  updateDownloadUrl:
+    'http://125.16.74.160:30626/runtimeAppUpdate/api/packages/5',
+};
+const localPackage = {...remotePackage, packageHash: '5'};
+
+NativeModules.CodePush = {
+  checkForUpdate: jest.fn(),
+  downloadUpdate: jest.fn(),
+  installUpdate: jest.fn(),
+};
+
+// Required after the native module is in place, since CodePush.js looks it up when loaded.
+const CodePush = require('../CodePush');
+
+beforeEach(() => {
+  jest.clearAllMocks();
+  jest.spyOn(console, 'log').mockImplementation(() => {});
+  global.fetch = jest.fn();
+});
+
+afterEach(() => {
+  console.log.mockRestore();
+});
+
+it('checks for updates natively and installs the update', async () => {
+  NativeModules.CodePush.checkForUpdate.mockResolvedValue(remotePackage);
+  NativeModules.CodePush.downloadUpdate.mockResolvedValue(localPackage);
+  NativeModules.CodePush.installUpdate.mockResolvedValue();
+
+  expect(await CodePush.checkForUpdate()).toEqual(localPackage);
+  expect(NativeModules.CodePush.checkForUpdate).toHaveBeenCalledTimes(1);
+  expect(global.fetch).not.toHaveBeenCalled();
+  expect(NativeModules.CodePush.downloadUpdate).toHaveBeenCalledWith(
+    remotePackage,
+  );
+  expect(NativeModules.CodePush.installUpdate).toHaveBeenCalledWith(
+    localPackage,
+  );
+});
+
+it('downloads nothing when there is no update', async () => {
+  NativeModules.CodePush.checkForUpdate.mockResolvedValue(null);
+
+  expect(await CodePush.sync()).toBeNull();
+  expect(global.fetch).not.toHaveBeenCalled();
+  expect(NativeModules.CodePush.downloadUpdate).not.toHaveBeenCalled();
+  expect(NativeModules.CodePush.installUpdate).not.toHaveBeenCalled();
+});
+
+it('rejects when the native check fails', async () => {
+  NativeModules.CodePush.checkForUpdate.mockRejectedValue(
+    new Error('Unable to reach the update server.'),
+  );
+
+  await expect(CodePush.checkForUpdate()).rejects.toThrow(
+    'Unable to reach the update server.',
+  );
+  expect(NativeModules.CodePush.downloadUpdate).not.toHaveBeenCalled();
+});
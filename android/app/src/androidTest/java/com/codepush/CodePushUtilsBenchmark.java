@@ -0,0 +1,283 @@
+package com.codepush;
+
+import android.os.Debug;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableMapKeySetIterator;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.soloader.SoLoader;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Counts the allocations and time of the conversions between package metadata and bridge maps,
+ * next to the recursive converters they replaced. The numbers are logged through
+ * {@link CodePushUtils#log}, e.g. read with
+ * {@code ./gradlew connectedAndroidTest && adb logcat -s ReactNative:D}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CodePushUtilsBenchmark {
+    private static final int WARMUP_ITERATIONS = 200;
+    private static final int MEASURED_ITERATIONS = 2000;
+
+    private interface Operation {
+        Object run() throws Exception;
+    }
+
+    @BeforeClass
+    public static void loadNativeLibraries() {
+        SoLoader.init(InstrumentationRegistry.getInstrumentation().getTargetContext(), false);
+    }
+
+    @Test
+    public void currentPackageMapAllocatesLessThanConvertingIt() throws Exception {
+        final JSONObject packageMetadata = createPackageMetadata();
+        final CodePushMetadataSnapshot snapshot = new CodePushMetadataSnapshot(new JSONObject(),
+                packageMetadata.getString(CodePushConstants.PACKAGE_HASH_KEY), null, packageMetadata);
+        WritableMap packageMap = snapshot.createCurrentPackageMap();
+        assertEquals(packageMetadata.getString(CodePushConstants.PACKAGE_HASH_KEY), packageMap.getString(CodePushConstants.PACKAGE_HASH_KEY));
+
+        int cachedAllocations = measure("createCurrentPackageMap", new Operation() {
+            @Override
+            public Object run() {
+                return snapshot.createCurrentPackageMap();
+            }
+        });
+        int convertedAllocations = measure("recursive convertJsonObjectToWritable", new Operation() {
+            @Override
+            public Object run() throws JSONException {
+                return convertJsonObjectToWritableRecursively(packageMetadata);
+            }
+        });
+        assertTrue(cachedAllocations < convertedAllocations);
+    }
+
+    @Test
+    public void convertJsonObjectToWritable() throws Exception {
+        final JSONObject packageMetadata = createPackageMetadata();
+        WritableMap packageMap = CodePushUtils.convertJsonObjectToWritable(packageMetadata);
+        assertEquals(convertJsonObjectToWritableRecursively(packageMetadata).toHashMap(), packageMap.toHashMap());
+
+        measure("convertJsonObjectToWritable", new Operation() {
+            @Override
+            public Object run() {
+                return CodePushUtils.convertJsonObjectToWritable(packageMetadata);
+            }
+        });
+        measure("recursive convertJsonObjectToWritable", new Operation() {
+            @Override
+            public Object run() throws JSONException {
+                return convertJsonObjectToWritableRecursively(packageMetadata);
+            }
+        });
+    }
+
+    @Test
+    public void convertReadableToJsonObject() throws Exception {
+        final WritableMap packageMap = CodePushUtils.convertJsonObjectToWritable(createPackageMetadata());
+        JSONObject packageMetadata = CodePushUtils.convertReadableToJsonObject(packageMap);
+        assertEquals(CodePushUtils.convertJsonObjectToWritable(convertReadableToJsonObjectRecursively(packageMap)).toHashMap(),
+                CodePushUtils.convertJsonObjectToWritable(packageMetadata).toHashMap());
+
+        measure("convertReadableToJsonObject", new Operation() {
+            @Override
+            public Object run() {
+                return CodePushUtils.convertReadableToJsonObject(packageMap);
+            }
+        });
+        measure("recursive convertReadableToJsonObject", new Operation() {
+            @Override
+            public Object run() throws JSONException {
+                return convertReadableToJsonObjectRecursively(packageMap);
+            }
+        });
+    }
+
+    /**
+     * Returns the number of allocations per call of {@code operation}.
+     */
+    private static int measure(String name, Operation operation) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            operation.run();
+        }
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        long startNanos = System.nanoTime();
+        try {
+            for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+                operation.run();
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+
+        long elapsedNanos = System.nanoTime() - startNanos;
+        int allocCount = Debug.getThreadAllocCount();
+        int allocSize = Debug.getThreadAllocSize();
+        assertTrue(allocCount > 0);
+        CodePushUtils.log(name + ": " + (allocCount / MEASURED_ITERATIONS) + " allocations, "
+                + (allocSize / MEASURED_ITERATIONS) + " bytes and "
+                + (elapsedNanos / MEASURED_ITERATIONS / 1000) + " us per call");
+        return allocCount / MEASURED_ITERATIONS;
+    }
+
+    private static JSONObject createPackageMetadata() throws Exception {
+        JSONObject packageMetadata = new JSONObject();
+        packageMetadata.put("appVersion", "1.4");
+        packageMetadata.put(CodePushConstants.PACKAGE_LABEL_KEY, 42);
+        packageMetadata.put("description", "Fixes the layout of the settings screen.");
+        packageMetadata.put("isMandatory", false);
+        packageMetadata.put("isPending", false);
+        packageMetadata.put("failedInstall", false);
+        packageMetadata.put(CodePushConstants.PACKAGE_HASH_KEY, "8c2c5bd1a3d4c0bd4a9e6cc4e9b2ba4f1c4d3e2b5a6978f0e1d2c3b4a5968778");
+        packageMetadata.put("packageSize", 5242880123L);
+        packageMetadata.put(CodePushConstants.DOWNLOAD_URL_KEY, "https://updates.example.com/packages/42/diff.zip");
+        packageMetadata.put(CodePushConstants.FULL_DOWNLOAD_URL_KEY, "https://updates.example.com/packages/42/full.zip");
+        packageMetadata.put(CodePushConstants.RELATIVE_BUNDLE_PATH_KEY, "/CodePush/index.android.bundle");
+
+        JSONObject contentHashes = new JSONObject();
+        JSONArray deletedFiles = new JSONArray();
+        for (int i = 0; i < 32; i++) {
+            contentHashes.put("assets/images/image" + i + ".png", Integer.toHexString(i * 0x9e3779b1));
+            if (i % 8 == 0) {
+                deletedFiles.put("assets/images/old" + i + ".png");
+            }
+        }
+        packageMetadata.put(CodePushConstants.CONTENT_HASHES_KEY, contentHashes);
+        packageMetadata.put("deletedFiles", deletedFiles);
+        return packageMetadata;
+    }
+
+    // The converters as they were before the metadata snapshot, for reference.
+
+    private static WritableMap convertJsonObjectToWritableRecursively(JSONObject jsonObj) throws JSONException {
+        WritableMap map = Arguments.createMap();
+        Iterator<String> it = jsonObj.keys();
+        while (it.hasNext()) {
+            String key = it.next();
+            Object obj = jsonObj.get(key);
+            if (obj instanceof JSONObject)
+                map.putMap(key, convertJsonObjectToWritableRecursively((JSONObject) obj));
+            else if (obj instanceof JSONArray)
+                map.putArray(key, convertJsonArrayToWritableRecursively((JSONArray) obj));
+            else if (obj instanceof String)
+                map.putString(key, (String) obj);
+            else if (obj instanceof Double)
+                map.putDouble(key, (Double) obj);
+            else if (obj instanceof Long)
+                map.putDouble(key, ((Long) obj).doubleValue());
+            else if (obj instanceof Integer)
+                map.putInt(key, (Integer) obj);
+            else if (obj instanceof Boolean)
+                map.putBoolean(key, (Boolean) obj);
+            else
+                map.putNull(key);
+        }
+
+        return map;
+    }
+
+    private static WritableArray convertJsonArrayToWritableRecursively(JSONArray jsonArr) throws JSONException {
+        WritableArray arr = Arguments.createArray();
+        for (int i = 0; i < jsonArr.length(); i++) {
+            Object obj = jsonArr.get(i);
+            if (obj instanceof JSONObject)
+                arr.pushMap(convertJsonObjectToWritableRecursively((JSONObject) obj));
+            else if (obj instanceof JSONArray)
+                arr.pushArray(convertJsonArrayToWritableRecursively((JSONArray) obj));
+            else if (obj instanceof String)
+                arr.pushString((String) obj);
+            else if (obj instanceof Double)
+                arr.pushDouble((Double) obj);
+            else if (obj instanceof Integer)
+                arr.pushInt((Integer) obj);
+            else if (obj instanceof Boolean)
+                arr.pushBoolean((Boolean) obj);
+            else
+                arr.pushNull();
+        }
+
+        return arr;
+    }
+
+    private static JSONObject convertReadableToJsonObjectRecursively(ReadableMap map) throws JSONException {
+        JSONObject jsonObj = new JSONObject();
+        ReadableMapKeySetIterator it = map.keySetIterator();
+        while (it.hasNextKey()) {
+            String key = it.nextKey();
+            switch (map.getType(key)) {
+                case Map:
+                    jsonObj.put(key, convertReadableToJsonObjectRecursively(map.getMap(key)));
+                    break;
+                case Array:
+                    jsonObj.put(key, convertReadableToJsonArrayRecursively(map.getArray(key)));
+                    break;
+                case String:
+                    jsonObj.put(key, map.getString(key));
+                    break;
+                case Number:
+                    jsonObj.put(key, map.getDouble(key));
+                    break;
+                case Boolean:
+                    jsonObj.put(key, map.getBoolean(key));
+                    break;
+                default:
+                    jsonObj.put(key, null);
+                    break;
+            }
+        }
+
+        return jsonObj;
+    }
+
+    private static JSONArray convertReadableToJsonArrayRecursively(ReadableArray arr) throws JSONException {
+        JSONArray jsonArr = new JSONArray();
+        for (int i = 0; i < arr.size(); i++) {
+            switch (arr.getType(i)) {
+                case Map:
+                    jsonArr.put(convertReadableToJsonObjectRecursively(arr.getMap(i)));
+                    break;
+                case Array:
+                    jsonArr.put(convertReadableToJsonArrayRecursively(arr.getArray(i)));
+                    break;
+                case String:
+                    jsonArr.put(arr.getString(i));
+                    break;
+                case Number:
+                    double number = arr.getDouble(i);
+                    if (number == Math.floor(number) && !Double.isInfinite(number)) {
+                        jsonArr.put((long) number);
+                    } else {
+                        jsonArr.put(number);
+                    }
+                    break;
+                case Boolean:
+                    jsonArr.put(arr.getBoolean(i));
+                    break;
+                default:
+                    jsonArr.put(null);
+                    break;
+            }
+        }
+
+        return jsonArr;
+    }
+}
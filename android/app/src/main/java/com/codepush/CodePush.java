@@ -3,6 +3,11 @@ package com.codepush;
 import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.os.Process;
+
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkManager;
 
 import com.facebook.react.ReactInstanceManager;
 import com.facebook.react.ReactPackage;
@@ -22,23 +27,43 @@ import java.util.List;
 
 public class CodePush implements ReactPackage {
 
+    // Bytes of package files other than the bundle that are checked for corruption per launch.
+    private static final long FILE_VERIFICATION_BYTE_BUDGET = 4 * 1024 * 1024;
+
     private static String sAppVersion = null;
 
     private String mAssetsBundleFileName;
 
     // Helper classes.
     private CodePushUpdateManager mUpdateManager;
+    private final CodePushUpdateScheduler mUpdateScheduler = new CodePushUpdateScheduler();
 
     private Context mContext;
     private final boolean mIsDebugMode;
+    private String mFileVerificationPackageHash;
+    private long mDownloadProgressIntervalMillis = CodePushConstants.DEFAULT_DOWNLOAD_PROGRESS_INTERVAL_MILLIS;
+    private long mDownloadProgressMinBytes = 0;
+    private String mServerUrl;
+    private String mAppName;
+    private CodePushBundleWarmup mBundleWarmup;
 
     private static ReactInstanceHolder mReactInstanceHolder;
     private static CodePush mCurrentInstance;
 
     public CodePush(Context context, boolean isDebugMode) {
+        this(context, isDebugMode, false);
+    }
+
+    /**
+     * @param warmUpBundle whether to start reading the bundle of the update into the page cache
+     *                     right away, so that it is cached by the time React Native loads it.
+     */
+    public CodePush(Context context, boolean isDebugMode, boolean warmUpBundle) {
         mContext = context.getApplicationContext();
 
         mUpdateManager = new CodePushUpdateManager(context.getFilesDir().getAbsolutePath());
+        mUpdateManager.setHttpTransport(CodePushOkHttpTransport.fromReactNativeClient(
+                CodePushConstants.DEFAULT_CONNECT_TIMEOUT_MILLIS, CodePushConstants.DEFAULT_READ_TIMEOUT_MILLIS));
         mIsDebugMode = isDebugMode;
 
         if (sAppVersion == null) {
@@ -52,6 +77,10 @@ public class CodePush implements ReactPackage {
 
         mCurrentInstance = this;
 
+        if (warmUpBundle) {
+            mBundleWarmup = CodePushBundleWarmup.start(mUpdateManager, CodePushConstants.DEFAULT_JS_BUNDLE_NAME);
+        }
+
         clearDebugCacheIfNeeded(null);
     }
 
@@ -91,6 +120,137 @@ public class CodePush implements ReactPackage {
         return sAppVersion;
     }
 
+    public void setPipelinedDownloadEnabled(boolean enabled) {
+        mUpdateManager.setPipelinedDownloadEnabled(enabled);
+    }
+
+    public void setCompressedTransferEnabled(boolean enabled) {
+        mUpdateManager.setCompressedTransferEnabled(enabled);
+    }
+
+    public void setResumableDownloadEnabled(boolean enabled) {
+        mUpdateManager.setResumableDownloadEnabled(enabled);
+    }
+
+    public void setSegmentedDownloadOptions(int segmentCount, long minSegmentSize) {
+        mUpdateManager.setSegmentedDownloadOptions(segmentCount, minSegmentSize);
+    }
+
+    /**
+     * Bounds the download read buffers, which adapt to the throughput between {@code minSize} and
+     * {@code maxSize} bytes. The defaults are 16 KB and 256 KB.
+     */
+    public void setDownloadBufferSizeLimits(int minSize, int maxSize) {
+        mUpdateManager.setDownloadBufferSizeLimits(minSize, maxSize);
+    }
+
+    /**
+     * Caps the bandwidth of update downloads at {@code bytesPerSecond}, or lifts the cap if 0 (the
+     * default). Can be changed at any time, e.g. to throttle downloads while the app is in the
+     * background; downloads in progress follow the new cap right away.
+     */
+    public void setMaxDownloadBytesPerSecond(long bytesPerSecond) {
+        mUpdateManager.setMaxDownloadBytesPerSecond(bytesPerSecond);
+    }
+
+    /**
+     * Keeps up to {@code maxPackageCount} updates on disk, and no more than {@code maxBytes} of
+     * them (0 for no limit), so that going back to one of them needs no download.
+     */
+    public void setPackageRetention(int maxPackageCount, long maxBytes) {
+        mUpdateManager.setPackageRetention(maxPackageCount, maxBytes);
+    }
+
+    /**
+     * Limits download progress events to one per {@code intervalMillis} and per {@code minBytes}
+     * received. The event for a completed download is always sent.
+     */
+    public void setDownloadProgressOptions(long intervalMillis, long minBytes) {
+        mDownloadProgressIntervalMillis = intervalMillis;
+        mDownloadProgressMinBytes = minBytes;
+    }
+
+    long getDownloadProgressIntervalMillis() {
+        return mDownloadProgressIntervalMillis;
+    }
+
+    long getDownloadProgressMinBytes() {
+        return mDownloadProgressMinBytes;
+    }
+
+    /**
+     * Replaces the default transport, which shares React Native's OkHttp client with timeouts of
+     * {@link CodePushConstants#DEFAULT_CONNECT_TIMEOUT_MILLIS} and
+     * {@link CodePushConstants#DEFAULT_READ_TIMEOUT_MILLIS}. Use
+     * {@link CodePushOkHttpTransport#fromReactNativeClient} for other timeouts, or a
+     * {@link CodePushUrlConnectionTransport} to stay off OkHttp.
+     */
+    public void setHttpTransport(CodePushHttpTransport transport) {
+        mUpdateManager.setHttpTransport(transport);
+    }
+
+    /**
+     * Retries requests that fail before a response arrives, or with a 408, 429 or 5xx meaning
+     * "try again", up to {@code maxRetries} times with exponential backoff from
+     * {@code initialBackoffMillis}. Requests are not retried by default.
+     */
+    public void setHttpRetryPolicy(int maxRetries, long initialBackoffMillis) {
+        mUpdateManager.setHttpRetryPolicy(maxRetries, initialBackoffMillis);
+    }
+
+    public void setPublicKey(String publicKey) {
+        mUpdateManager.setPublicKey(publicKey);
+    }
+
+    /**
+     * Sets the update API that native update checks talk to, the same one the JS side uses.
+     *
+     * @param serverUrl the base URL of the API, ending with a slash.
+     */
+    public void setUpdateServer(String serverUrl, String appName) {
+        mServerUrl = serverUrl;
+        mAppName = appName;
+    }
+
+    /**
+     * Checks for and downloads updates in the background about every {@code repeatIntervalHours}
+     * hours, while the device is idle, charging, on an unmetered network and not low on storage.
+     * A downloaded update is staged and installed on the next cold start. Scheduling again keeps
+     * the existing schedule. A prefetch only runs if WorkManager finds a configured CodePush
+     * instance in the process, so create it in {@link android.app.Application#onCreate} for
+     * prefetches to run while the app is not open.
+     */
+    public void schedulePrefetch(long repeatIntervalHours) {
+        if (mServerUrl == null || mAppName == null) {
+            throw new CodePushUnknownException("setUpdateServer() must be called before scheduling a prefetch.");
+        }
+
+        PeriodicWorkRequest prefetchRequest = CodePushPrefetchWorker.createRequest(mServerUrl, mAppName,
+                mAssetsBundleFileName != null ? mAssetsBundleFileName : CodePushConstants.DEFAULT_JS_BUNDLE_NAME, repeatIntervalHours);
+        WorkManager.getInstance(mContext).enqueueUniquePeriodicWork(CodePushPrefetchWorker.UNIQUE_WORK_NAME,
+                ExistingPeriodicWorkPolicy.KEEP, prefetchRequest);
+    }
+
+    /**
+     * Returns a checker for the server set with {@link #setUpdateServer}, sharing the update
+     * manager's response cache.
+     */
+    CodePushUpdateChecker createUpdateChecker() {
+        if (mServerUrl == null || mAppName == null) {
+            throw new CodePushUnknownException("setUpdateServer() must be called before checking for updates natively.");
+        }
+
+        return new CodePushUpdateChecker(mServerUrl, mAppName, sAppVersion, mUpdateManager.getUpdateCheckCache(), mUpdateManager.getHttpTransport());
+    }
+
+    public void cancelPrefetch() {
+        WorkManager.getInstance(mContext).cancelUniqueWork(CodePushPrefetchWorker.UNIQUE_WORK_NAME);
+    }
+
+    CodePushUpdateScheduler getUpdateScheduler() {
+        return mUpdateScheduler;
+    }
+
     public String getAssetsBundleFileName() {
         return mAssetsBundleFileName;
     }
@@ -122,32 +282,154 @@ public class CodePush implements ReactPackage {
         String binaryJsBundleUrl = CodePushConstants.ASSETS_BUNDLE_PREFIX + assetsBundleFileName;
 
         try {
-            String packageFilePath = null;
-            try {
-                packageFilePath = mUpdateManager.getCurrentPackageBundlePath(this.mAssetsBundleFileName);
-            } catch (CodePushMalformedDataException e) {
-                // We need to recover the app in case 'codepush.json' is corrupted
-                CodePushUtils.log(e.getMessage());
-                clearUpdates();
+            String bundleUrl = getJSBundleFileFromRecord(binaryJsBundleUrl);
+            if (bundleUrl == null) {
+                bundleUrl = getJSBundleFileFromMetadata(binaryJsBundleUrl);
+                mUpdateManager.repairActiveBundleRecord();
             }
+            return bundleUrl;
+        } catch (Exception e) {
+            //do nothing for now
+        }
+        return binaryJsBundleUrl;
+    }
+
+    /**
+     * Picks the bundle using nothing but the active bundle record, the common case at a cold
+     * start. Returns null if the record is missing or there is something for
+     * {@link #getJSBundleFileFromMetadata} to act on: a staged update, a package found corrupt, or
+     * an outdated package that hasn't been marked as such for this binary yet.
+     */
+    String getJSBundleFileFromRecord(String binaryJsBundleUrl) {
+        CodePushActiveBundleRecord record = mUpdateManager.readActiveBundleRecord();
+        if (record == null || record.hasPendingPackage() || record.isCorrupt()) {
+            return null;
+        }
+
+        String packageFilePath = mUpdateManager.getActiveBundlePath(record, mAssetsBundleFileName);
+        if (packageFilePath == null || record.getOutdatedForAppVersion().equals(sAppVersion)) {
+            CodePushUtils.logBundleUrl(binaryJsBundleUrl);
+            return binaryJsBundleUrl;
+        }
+
+        if (isPackageOutdated(record.getAppVersion()) || !mUpdateManager.verifyActiveBundle(record, packageFilePath)) {
+            return null;
+        }
+
+        reportBundleWarmup(packageFilePath);
+        verifyPackageFilesInBackground(record.getPackageHash());
+        return packageFilePath;
+    }
+
+    private String getJSBundleFileFromMetadata(String binaryJsBundleUrl) {
+        String packageFilePath = null;
+        try {
+            installPendingUpdate();
+            packageFilePath = mUpdateManager.getCurrentPackageBundlePath(this.mAssetsBundleFileName);
+        } catch (CodePushMalformedDataException e) {
+            // We need to recover the app in case 'codepush.json' is corrupted
+            CodePushUtils.log(e.getMessage());
+            clearUpdates();
+        }
+
+        if (packageFilePath == null) {
+            // There has not been any downloaded updates.
+            CodePushUtils.logBundleUrl(binaryJsBundleUrl);
+            return binaryJsBundleUrl;
+        }
+
+        reportBundleWarmup(packageFilePath);
+
+        //get the appVersion of the current js bundle and if it is less than the current appVersion then do not use that
+        JSONObject currentPackage = mUpdateManager.getCurrentPackage();
+        if (isPackageOutdated(currentPackage.optString("appVersion", null))) {
+            mUpdateManager.markCurrentPackageOutdated(sAppVersion);
+            return binaryJsBundleUrl;
+        }
+
+        if (!isCurrentPackageIntact(packageFilePath)) {
+            CodePushUtils.logBundleUrl(binaryJsBundleUrl);
+            return binaryJsBundleUrl;
+        }
 
-            if (packageFilePath == null) {
-                // There has not been any downloaded updates.
-                CodePushUtils.logBundleUrl(binaryJsBundleUrl);
-                return binaryJsBundleUrl;
+        verifyPackageFilesInBackground(mUpdateManager.getCurrentPackageHash());
+        return packageFilePath;
+    }
+
+    private void reportBundleWarmup(String bundlePath) {
+        if (mBundleWarmup != null) {
+            mBundleWarmup.report(bundlePath);
+            mBundleWarmup = null;
+        }
+    }
+
+    /**
+     * Switches to the update a background prefetch staged, unless it was made for another binary.
+     */
+    private void installPendingUpdate() {
+        JSONObject pendingPackage = mUpdateManager.getPendingPackage();
+        if (pendingPackage == null) {
+            if (!mUpdateManager.getPendingPackageHash().equals("-1")) {
+                mUpdateManager.discardPendingPackage();
             }
+            return;
+        }
 
-            //get the appVersion of the current js bundle and if it is less than the current appVersion then do not use that
-            JSONObject currentPackage = mUpdateManager.getCurrentPackage();
-            String currentAppVersionInLocalBundle = currentPackage.optString("appVersion", null);
-            if (currentAppVersionInLocalBundle == null || checkForUpdate(currentAppVersionInLocalBundle, sAppVersion))
-                return binaryJsBundleUrl;
+        if (isPackageOutdated(pendingPackage.optString("appVersion", null))) {
+            mUpdateManager.discardPendingPackage();
+        } else {
+            CodePushUtils.log("Installing the update staged in the background.");
+            mUpdateManager.installPendingPackage();
+        }
+    }
 
-            return packageFilePath;
-        } catch (Exception e) {
-            //do nothing for now
+    /**
+     * Rolls the current package back if it was found corrupt during the previous launch or if its
+     * bundle no longer matches the hash recorded when it was installed.
+     */
+    private boolean isCurrentPackageIntact(String packageFilePath) {
+        if (mUpdateManager.isCurrentPackageCorrupt()) {
+            CodePushUtils.log("The current update was found to be corrupted during the previous launch, falling back to the binary bundle.");
+        } else if (!mUpdateManager.verifyCurrentPackageBundle(packageFilePath)) {
+            CodePushUtils.log("The bundle of the current update is corrupted, falling back to the binary bundle.");
+        } else {
+            return true;
         }
-        return binaryJsBundleUrl;
+
+        mUpdateManager.rollBackCorruptPackage();
+        return false;
+    }
+
+    /**
+     * Checks a sample of the other files of the current package while the bundle loads. A mismatch
+     * can't be undone for this launch, so the package is only marked for the next one.
+     */
+    private void verifyPackageFilesInBackground(final String packageHash) {
+        if (packageHash.equals(mFileVerificationPackageHash)) {
+            return;
+        }
+
+        mFileVerificationPackageHash = packageHash;
+        Thread verificationThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    if (!mUpdateManager.verifyPackageFileSample(packageHash, FILE_VERIFICATION_BYTE_BUDGET)) {
+                        CodePushUtils.log("Files of the current update are corrupted, it will be rolled back on the next launch.");
+                        mUpdateManager.markPackageCorrupt(packageHash);
+                    }
+                } catch (RuntimeException e) {
+                    CodePushUtils.log(e);
+                }
+            }
+        }, "CodePushFileVerification");
+        verificationThread.start();
+    }
+
+    static CodePushUpdateManager getCurrentUpdateManager() {
+        CodePush currentInstance = mCurrentInstance;
+        return currentInstance != null ? currentInstance.mUpdateManager : null;
     }
 
     static ReactInstanceManager getReactInstanceManager() {
@@ -187,6 +469,15 @@ public class CodePush implements ReactPackage {
         mReactInstanceHolder = reactInstanceHolder;
     }
 
+    /**
+     * Returns whether a package released for {@code packageAppVersion} must not run on this
+     * binary: it doesn't say which binary it was released for, or it was released for an older
+     * one.
+     */
+    boolean isPackageOutdated(String packageAppVersion) {
+        return packageAppVersion == null || packageAppVersion.isEmpty() || checkForUpdate(packageAppVersion, sAppVersion);
+    }
+
     public boolean checkForUpdate(String existingVersion, String newVersion) {
         if (existingVersion.isEmpty() || newVersion.isEmpty()) {
             return false;
@@ -0,0 +1,204 @@
+package com.codepush;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Everything {@link CodePush#getJSBundleFile} needs to pick the bundle at a cold start, kept in a
+ * small binary file next to the status file so that it can be read with a single read instead of
+ * parsing the status, package and manifest JSON files. The JSON files stay the source of truth:
+ * the record is rewritten from them whenever they change, and is ignored when it is missing or
+ * fails its checksum.
+ *
+ * Layout, big endian: magic, format version, flags, package label (-1 for the binary bundle),
+ * the app version the package was released for, the bundle path relative to the package folder
+ * (empty when it is named after the binary bundle), the app version the package was found to be
+ * outdated for (empty if none), the bundle chunk size, the number of bundle chunk hashes and the
+ * hashes themselves, and finally a CRC32 of everything before it.
+ */
+class CodePushActiveBundleRecord {
+    private static final int MAGIC = 0x43504142;
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+    private static final int FLAG_CORRUPT = 1;
+    private static final int FLAG_PENDING = 2;
+
+    private final int mFlags;
+    private final int mPackageLabel;
+    private final String mAppVersion;
+    private final String mRelativeBundlePath;
+    private final String mOutdatedForAppVersion;
+    private final CodePushPackageIntegrity.BundleChunks mBundleChunks;
+
+    CodePushActiveBundleRecord(String packageHash, String appVersion, String relativeBundlePath, boolean isCorrupt,
+                               boolean hasPendingPackage, String outdatedForAppVersion, CodePushPackageIntegrity.BundleChunks bundleChunks) {
+        mFlags = (isCorrupt ? FLAG_CORRUPT : 0) | (hasPendingPackage ? FLAG_PENDING : 0);
+        mPackageLabel = packageHash == null ? -1 : Integer.parseInt(packageHash);
+        mAppVersion = appVersion == null ? "" : appVersion;
+        mRelativeBundlePath = relativeBundlePath == null ? "" : relativeBundlePath;
+        mOutdatedForAppVersion = outdatedForAppVersion == null ? "" : outdatedForAppVersion;
+        mBundleChunks = bundleChunks;
+    }
+
+    private CodePushActiveBundleRecord(int flags, int packageLabel, String appVersion, String relativeBundlePath,
+                                       String outdatedForAppVersion, CodePushPackageIntegrity.BundleChunks bundleChunks) {
+        mFlags = flags;
+        mPackageLabel = packageLabel;
+        mAppVersion = appVersion;
+        mRelativeBundlePath = relativeBundlePath;
+        mOutdatedForAppVersion = outdatedForAppVersion;
+        mBundleChunks = bundleChunks;
+    }
+
+    /**
+     * Returns the label of the current package, or null if the binary bundle is current.
+     */
+    public String getPackageHash() {
+        return mPackageLabel == -1 ? null : String.valueOf(mPackageLabel);
+    }
+
+    public String getAppVersion() {
+        return mAppVersion;
+    }
+
+    /**
+     * Returns the bundle path relative to the package folder, or null if the bundle is named
+     * after the binary bundle.
+     */
+    public String getRelativeBundlePath() {
+        return mRelativeBundlePath.isEmpty() ? null : mRelativeBundlePath;
+    }
+
+    public String getOutdatedForAppVersion() {
+        return mOutdatedForAppVersion;
+    }
+
+    public boolean isCorrupt() {
+        return (mFlags & FLAG_CORRUPT) != 0;
+    }
+
+    public boolean hasPendingPackage() {
+        return (mFlags & FLAG_PENDING) != 0;
+    }
+
+    public CodePushPackageIntegrity.BundleChunks getBundleChunks() {
+        return mBundleChunks;
+    }
+
+    /**
+     * Reads the record at {@code filePath}, returning null if there is none or it is damaged.
+     */
+    public static CodePushActiveBundleRecord read(String filePath) {
+        byte[] data;
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(filePath, "r");
+            long length = file.length();
+            if (length < 8 || length > MAX_RECORD_SIZE) {
+                return null;
+            }
+
+            data = new byte[(int) length];
+            file.readFully(data);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            CodePushUtils.log(e);
+            return null;
+        } finally {
+            try {
+                if (file != null) file.close();
+            } catch (IOException e) {
+                throw new CodePushUnknownException("Error closing IO resources.", e);
+            }
+        }
+
+        CRC32 checksum = new CRC32();
+        checksum.update(data, 0, data.length - 8);
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            input.skipBytes(data.length - 8);
+            if (input.readLong() != checksum.getValue()) {
+                CodePushUtils.log("The active bundle record is corrupted.");
+                return null;
+            }
+
+            input = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 8));
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+
+            int flags = input.readInt();
+            int packageLabel = input.readInt();
+            String appVersion = input.readUTF();
+            String relativeBundlePath = input.readUTF();
+            String outdatedForAppVersion = input.readUTF();
+            long chunkSize = input.readLong();
+            int chunkCount = input.readInt();
+            if (chunkCount < 0) {
+                return null;
+            }
+
+            List<String> chunkHashes = new ArrayList<>(Math.min(chunkCount, data.length));
+            for (int i = 0; i < chunkCount; i++) {
+                chunkHashes.add(input.readUTF());
+            }
+
+            CodePushPackageIntegrity.BundleChunks bundleChunks = chunkCount == 0
+                    ? CodePushPackageIntegrity.BundleChunks.NONE
+                    : new CodePushPackageIntegrity.BundleChunks(chunkSize, chunkHashes);
+            return new CodePushActiveBundleRecord(flags, packageLabel, appVersion, relativeBundlePath, outdatedForAppVersion, bundleChunks);
+        } catch (IOException e) {
+            // The checksum matched, so this is a record of an unknown layout.
+            CodePushUtils.log(e);
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the record at {@code filePath} with this one in a single atomic rename.
+     */
+    public void write(String filePath) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(MAGIC);
+        output.writeInt(FORMAT_VERSION);
+        output.writeInt(mFlags);
+        output.writeInt(mPackageLabel);
+        output.writeUTF(mAppVersion);
+        output.writeUTF(mRelativeBundlePath);
+        output.writeUTF(mOutdatedForAppVersion);
+        output.writeLong(mBundleChunks.getChunkSize());
+        output.writeInt(mBundleChunks.getChunkHashes().size());
+        for (String chunkHash : mBundleChunks.getChunkHashes()) {
+            output.writeUTF(chunkHash);
+        }
+
+        CRC32 checksum = new CRC32();
+        checksum.update(bytes.toByteArray());
+        output.writeLong(checksum.getValue());
+        output.flush();
+
+        FileOutputStream out = FileUtils.openAtomicWrite(filePath);
+        try {
+            bytes.writeTo(out);
+        } catch (IOException e) {
+            FileUtils.abortAtomicWrite(out, filePath);
+            throw e;
+        }
+
+        FileUtils.commitAtomicWrite(out, filePath);
+        // Only the status file falls back to its previous version.
+        new File(FileUtils.getBackupFilePath(filePath)).delete();
+    }
+}
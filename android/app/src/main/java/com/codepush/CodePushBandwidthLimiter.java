@@ -0,0 +1,82 @@
+package com.codepush;
+
+/**
+ * Token bucket shared by all download streams, so that together they stay under a rate that can
+ * be changed while they run, e.g. lowered while the app is in the background. Tokens are bytes;
+ * the bucket holds a quarter of a second worth of them, which keeps reads reasonably large without
+ * letting the rate burst after an idle spell.
+ */
+class CodePushBandwidthLimiter {
+    // Waiting for fewer bytes than this would wake the streams up for every network packet.
+    private static final int MIN_GRANT_BYTES = 4 * 1024;
+
+    private long mBytesPerSecond = 0;
+    private double mTokens = 0;
+    private long mLastRefillNanos = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond the rate to stay under, or 0 for no limit.
+     */
+    public synchronized void setBytesPerSecond(long bytesPerSecond) {
+        refill(System.nanoTime());
+        mBytesPerSecond = Math.max(0, bytesPerSecond);
+        mTokens = Math.min(mTokens, getCapacity());
+        notifyAll();
+    }
+
+    public synchronized long getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * Takes up to {@code maxBytes} tokens, waiting at most {@code maxWaitMillis} for enough of them
+     * to arrive. Returns the number taken, or 0 if the wait ran out first, which gives the caller a
+     * chance to notice a pause or cancel.
+     */
+    public synchronized int acquire(int maxBytes, long maxWaitMillis) {
+        long deadline = System.nanoTime() + maxWaitMillis * 1000000L;
+        while (mBytesPerSecond > 0) {
+            long now = System.nanoTime();
+            refill(now);
+            int minBytes = Math.min(maxBytes, MIN_GRANT_BYTES);
+            if (mTokens >= minBytes) {
+                int grantedBytes = (int) Math.min(maxBytes, (long) mTokens);
+                mTokens -= grantedBytes;
+                return grantedBytes;
+            }
+
+            long remainingNanos = deadline - now;
+            if (remainingNanos <= 0) {
+                return 0;
+            }
+
+            long refillNanos = (long) ((minBytes - mTokens) * 1e9 / mBytesPerSecond);
+            try {
+                wait(Math.max(1, Math.min(refillNanos, remainingNanos) / 1000000L));
+            } catch (InterruptedException e) {
+                throw new CodePushUnknownException("Interrupted while the download was throttled.", e);
+            }
+        }
+
+        return maxBytes;
+    }
+
+    /**
+     * Returns tokens taken by {@link #acquire} that a read didn't use.
+     */
+    public synchronized void release(int bytes) {
+        if (mBytesPerSecond > 0 && bytes > 0) {
+            mTokens = Math.min(getCapacity(), mTokens + bytes);
+            notifyAll();
+        }
+    }
+
+    private void refill(long now) {
+        mTokens = Math.min(getCapacity(), mTokens + (now - mLastRefillNanos) * mBytesPerSecond / 1e9);
+        mLastRefillNanos = now;
+    }
+
+    private double getCapacity() {
+        return Math.max(MIN_GRANT_BYTES, mBytesPerSecond / 4);
+    }
+}
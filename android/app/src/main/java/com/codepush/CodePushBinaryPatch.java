@@ -0,0 +1,184 @@
+package com.codepush;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Applies bsdiff patches in the BSDF2 container format to a file of the current package.
+ *
+ * The patch starts with the "BSDF2" magic, one compressor byte for each of the control, diff and
+ * extra blocks, and the control block length, diff block length and new file size as bsdiff
+ * sign-magnitude little-endian integers. Only uncompressed blocks (compressor 0) are supported
+ * since Android ships no bzip2 or brotli decoder; the update archive already deflates them.
+ */
+class CodePushBinaryPatch {
+    private static final byte[] MAGIC = {'B', 'S', 'D', 'F', '2'};
+    private static final int HEADER_SIZE = 32;
+    private static final int COMPRESSOR_NONE = 0;
+    private static final int PATCH_BUFFER_SIZE = 1024 * 64;
+
+    /**
+     * Writes {@code newFile} by applying {@code patchFile} to {@code oldFile} and returns the
+     * SHA-256 hash of the result, computed while it is written.
+     */
+    public static String apply(File oldFile, File patchFile, File newFile) throws IOException {
+        long patchLength = patchFile.length();
+        byte[] header = new byte[HEADER_SIZE];
+        RandomAccessFile patchHeaderFile = new RandomAccessFile(patchFile, "r");
+        try {
+            if (patchLength < HEADER_SIZE) {
+                throw new CodePushInvalidUpdateException("Patch " + patchFile.getName() + " is truncated.");
+            }
+            patchHeaderFile.readFully(header);
+        } finally {
+            patchHeaderFile.close();
+        }
+
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[i] != MAGIC[i]) {
+                throw new CodePushInvalidUpdateException("Patch " + patchFile.getName() + " is not a BSDF2 patch.");
+            }
+        }
+
+        for (int i = MAGIC.length; i < MAGIC.length + 3; i++) {
+            if (header[i] != COMPRESSOR_NONE) {
+                throw new CodePushInvalidUpdateException("Patch " + patchFile.getName() + " uses unsupported block compression " + header[i] + ".");
+            }
+        }
+
+        long controlLength = readOffset(header, 8);
+        long diffLength = readOffset(header, 16);
+        long newSize = readOffset(header, 24);
+        if (controlLength < 0 || diffLength < 0 || newSize < 0 || HEADER_SIZE + controlLength + diffLength > patchLength) {
+            throw new CodePushInvalidUpdateException("Patch " + patchFile.getName() + " has a corrupt header.");
+        }
+
+        MessageDigest messageDigest = CodePushUpdateUtils.createMessageDigest();
+
+        RandomAccessFile oldRandomAccessFile = null;
+        DataInputStream controlStream = null;
+        InputStream diffStream = null;
+        InputStream extraStream = null;
+        OutputStream newStream = null;
+        try {
+            oldRandomAccessFile = new RandomAccessFile(oldFile, "r");
+            FileChannel oldChannel = oldRandomAccessFile.getChannel();
+            long oldSize = oldChannel.size();
+            MappedByteBuffer oldBuffer = oldChannel.map(FileChannel.MapMode.READ_ONLY, 0, oldSize);
+
+            controlStream = new DataInputStream(openBlock(patchFile, HEADER_SIZE));
+            diffStream = openBlock(patchFile, HEADER_SIZE + controlLength);
+            extraStream = openBlock(patchFile, HEADER_SIZE + controlLength + diffLength);
+
+            File parent = newFile.getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            newStream = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(newFile), PATCH_BUFFER_SIZE), messageDigest);
+
+            byte[] control = new byte[24];
+            byte[] buffer = new byte[PATCH_BUFFER_SIZE];
+            long oldPosition = 0;
+            long newPosition = 0;
+            while (newPosition < newSize) {
+                controlStream.readFully(control);
+                long diffCount = readOffset(control, 0);
+                long extraCount = readOffset(control, 8);
+                long seekAdjustment = readOffset(control, 16);
+                if (diffCount < 0 || extraCount < 0 || newPosition + diffCount + extraCount > newSize) {
+                    throw new CodePushInvalidUpdateException("Patch " + patchFile.getName() + " has a corrupt control block.");
+                }
+
+                // Add the diff block to the bytes of the old file.
+                long remaining = diffCount;
+                while (remaining > 0) {
+                    int chunkLength = (int) Math.min(buffer.length, remaining);
+                    readFully(diffStream, buffer, chunkLength);
+                    for (int i = 0; i < chunkLength; i++) {
+                        long oldIndex = oldPosition + i;
+                        if (oldIndex >= 0 && oldIndex < oldSize) {
+                            buffer[i] += oldBuffer.get((int) oldIndex);
+                        }
+                    }
+                    newStream.write(buffer, 0, chunkLength);
+                    oldPosition += chunkLength;
+                    remaining -= chunkLength;
+                }
+                newPosition += diffCount;
+
+                // Copy the extra block as is.
+                remaining = extraCount;
+                while (remaining > 0) {
+                    int chunkLength = (int) Math.min(buffer.length, remaining);
+                    readFully(extraStream, buffer, chunkLength);
+                    newStream.write(buffer, 0, chunkLength);
+                    remaining -= chunkLength;
+                }
+                newPosition += extraCount;
+                oldPosition += seekAdjustment;
+            }
+        } catch (EOFException e) {
+            throw new CodePushInvalidUpdateException("Patch " + patchFile.getName() + " is truncated.");
+        } finally {
+            try {
+                if (newStream != null) newStream.close();
+                if (extraStream != null) extraStream.close();
+                if (diffStream != null) diffStream.close();
+                if (controlStream != null) controlStream.close();
+                if (oldRandomAccessFile != null) oldRandomAccessFile.close();
+            } catch (IOException e) {
+                throw new CodePushUnknownException("Error closing IO resources.", e);
+            }
+        }
+
+        return CodePushUpdateUtils.toHexString(messageDigest.digest());
+    }
+
+    private static InputStream openBlock(File patchFile, long offset) throws IOException {
+        FileInputStream inputStream = new FileInputStream(patchFile);
+        try {
+            inputStream.getChannel().position(offset);
+        } catch (IOException e) {
+            inputStream.close();
+            throw e;
+        }
+        return new BufferedInputStream(inputStream, PATCH_BUFFER_SIZE);
+    }
+
+    private static void readFully(InputStream inputStream, byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int numBytesRead = inputStream.read(buffer, offset, length - offset);
+            if (numBytesRead < 0) {
+                throw new EOFException();
+            }
+            offset += numBytesRead;
+        }
+    }
+
+    // bsdiff stores integers as little-endian magnitudes with the sign in the top bit.
+    private static long readOffset(byte[] buffer, int offset) {
+        long value = buffer[offset + 7] & 0x7f;
+        for (int i = 6; i >= 0; i--) {
+            value = (value << 8) | (buffer[offset + i] & 0xff);
+        }
+
+        if ((buffer[offset + 7] & 0x80) != 0) {
+            value = -value;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,223 @@
+package com.codepush;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Content-addressed store of package files, keyed by their SHA-256 hash. Every file of a package
+ * folder is a hard link to its blob, so unchanged files can be linked into a new package instead
+ * of being copied. The index records which blob backs each file of each retained package, and a
+ * blob is freed once no retained package references it anymore.
+ */
+class CodePushBlobStore {
+    private static final String INDEX_FILE_NAME = "index.json";
+
+    private final String mBlobStorePath;
+
+    public CodePushBlobStore(String blobStorePath) {
+        mBlobStorePath = blobStorePath;
+    }
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    /**
+     * Links the files stored at the relative paths of {@code destFiles} in a retained package to
+     * their destinations and records them as part of {@code destPackageHash}, reading and writing
+     * the index once for all of them. Returns the relative paths whose source file is not backed
+     * by a blob, which the caller should copy instead.
+     */
+    public synchronized Set<String> linkFiles(String sourcePackageHash, Map<String, File> destFiles, String destPackageHash) throws IOException {
+        if (!isSupported()) {
+            return destFiles.keySet();
+        }
+
+        JSONObject index = readIndex();
+        JSONObject sourceManifest = index.optJSONObject(sourcePackageHash);
+        JSONObject destManifest = getOrCreateManifest(index, destPackageHash);
+        Set<String> unlinkedPaths = new HashSet<>();
+        for (Map.Entry<String, File> destFile : destFiles.entrySet()) {
+            String relativePath = destFile.getKey();
+            String blobHash = sourceManifest == null ? null : sourceManifest.optString(relativePath, null);
+            File blobFile = blobHash == null ? null : getBlobFile(blobHash);
+            if (blobFile != null && blobFile.exists() && link(blobFile, destFile.getValue())) {
+                CodePushUtils.setJSONValueForKey(destManifest, relativePath, blobHash);
+            } else {
+                unlinkedPaths.add(relativePath);
+            }
+        }
+
+        if (unlinkedPaths.size() < destFiles.size()) {
+            writeIndex(index);
+        }
+        return unlinkedPaths;
+    }
+
+    /**
+     * Returns the hashes of the files of {@code packageHash} that are backed by blobs, keyed by
+     * their path in the package, or null if the package is not in the store.
+     */
+    public synchronized JSONObject getFileHashes(String packageHash) throws IOException {
+        if (!new File(mBlobStorePath).exists()) {
+            return null;
+        }
+
+        return readIndex().optJSONObject(packageHash);
+    }
+
+    /**
+     * Moves every file of {@code packageFolder} that is not yet backed by a blob into the store,
+     * replacing it with a link to the existing blob when another package already holds the same
+     * content. Files listed in {@code fileHashes} (if not null), keyed by their path in the package,
+     * are taken to have that hash; the others are hashed.
+     */
+    public synchronized void addPackage(String packageHash, File packageFolder, Map<String, String> fileHashes) throws IOException {
+        if (!isSupported()) {
+            return;
+        }
+
+        new File(mBlobStorePath).mkdirs();
+        JSONObject index = readIndex();
+        JSONObject manifest = getOrCreateManifest(index, packageHash);
+        addFolder(manifest, packageFolder, null, fileHashes);
+        writeIndex(index);
+    }
+
+    /**
+     * Forgets every package not listed in {@code packageHashes} and deletes the blobs that are no
+     * longer referenced by any of the remaining ones.
+     */
+    public synchronized void retainPackages(Collection<String> packageHashes) throws IOException {
+        if (!new File(mBlobStorePath).exists()) {
+            return;
+        }
+
+        JSONObject index = readIndex();
+        Set<String> releasedPackages = new HashSet<>();
+        Set<String> referencedBlobs = new HashSet<>();
+        Iterator<String> packageIterator = index.keys();
+        while (packageIterator.hasNext()) {
+            String packageHash = packageIterator.next();
+            if (!packageHashes.contains(packageHash)) {
+                releasedPackages.add(packageHash);
+                continue;
+            }
+
+            JSONObject manifest = index.optJSONObject(packageHash);
+            Iterator<String> fileIterator = manifest.keys();
+            while (fileIterator.hasNext()) {
+                referencedBlobs.add(manifest.optString(fileIterator.next()));
+            }
+        }
+
+        for (String packageHash : releasedPackages) {
+            index.remove(packageHash);
+        }
+
+        writeIndex(index);
+        for (File blobFile : new File(mBlobStorePath).listFiles()) {
+            if (!blobFile.getName().equals(INDEX_FILE_NAME) && !referencedBlobs.contains(blobFile.getName())) {
+                FileUtils.deleteFileOrFolderSilently(blobFile);
+            }
+        }
+    }
+
+    private void addFolder(JSONObject manifest, File folder, String relativeFolderPath, Map<String, String> fileHashes) throws IOException {
+        for (File file : folder.listFiles()) {
+            String relativePath = relativeFolderPath == null ? file.getName() : new File(relativeFolderPath, file.getName()).getPath();
+            if (file.isDirectory()) {
+                addFolder(manifest, file, relativePath, fileHashes);
+                continue;
+            }
+
+            if (manifest.has(relativePath)) {
+                // Already linked from another package.
+                continue;
+            }
+
+            String blobHash = fileHashes == null ? null : fileHashes.get(relativePath);
+            if (blobHash == null) {
+                blobHash = CodePushUpdateUtils.computeHash(file);
+            }
+            File blobFile = getBlobFile(blobHash);
+            boolean isLinked;
+            if (blobFile.exists()) {
+                File dedupFile = new File(file.getPath() + ".blob");
+                isLinked = link(blobFile, dedupFile) && dedupFile.renameTo(file);
+                if (!isLinked) {
+                    dedupFile.delete();
+                }
+            } else {
+                isLinked = link(file, blobFile);
+            }
+
+            if (isLinked) {
+                CodePushUtils.setJSONValueForKey(manifest, relativePath, blobHash);
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean link(File existingFile, File newFile) {
+        File parent = newFile.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+
+        try {
+            Os.link(existingFile.getAbsolutePath(), newFile.getAbsolutePath());
+            return true;
+        } catch (ErrnoException e) {
+            CodePushUtils.log("Unable to link " + newFile.getAbsolutePath() + " to " + existingFile.getAbsolutePath() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private File getBlobFile(String blobHash) {
+        return new File(mBlobStorePath, blobHash);
+    }
+
+    private JSONObject getOrCreateManifest(JSONObject index, String packageHash) {
+        JSONObject manifest = index.optJSONObject(packageHash);
+        if (manifest == null) {
+            manifest = new JSONObject();
+            CodePushUtils.setJSONValueForKey(index, packageHash, manifest);
+        }
+
+        return manifest;
+    }
+
+    private JSONObject readIndex() throws IOException {
+        String indexPath = CodePushUtils.appendPathComponent(mBlobStorePath, INDEX_FILE_NAME);
+        if (!FileUtils.fileAtPathExists(indexPath)) {
+            return new JSONObject();
+        }
+
+        try {
+            return CodePushUtils.getJsonObjectFromFile(indexPath);
+        } catch (CodePushMalformedDataException e) {
+            // Blobs are still hard linked from their packages, so losing the index only costs
+            // the ability to share them with the next update.
+            CodePushUtils.log(e.getMessage());
+            return new JSONObject();
+        }
+    }
+
+    private void writeIndex(JSONObject index) throws IOException {
+        new File(mBlobStorePath).mkdirs();
+        CodePushUtils.writeJsonToFile(index, CodePushUtils.appendPathComponent(mBlobStorePath, INDEX_FILE_NAME));
+    }
+}
@@ -0,0 +1,106 @@
+package com.codepush;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads the bundle of the update about to be loaded once through, on a thread of its own, so that
+ * it is in the page cache by the time React Native reads it. Unlike the bundle in the APK, a
+ * downloaded bundle is usually not cached at a cold start, and reading it sequentially while
+ * the native libraries load lets the kernel read ahead in large chunks.
+ */
+class CodePushBundleWarmup {
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    private final String mBundlePath;
+    private long mStartMillis;
+    private volatile long mFinishMillis = -1;
+    private volatile long mBytesRead = 0;
+
+    private CodePushBundleWarmup(String bundlePath) {
+        mBundlePath = bundlePath;
+    }
+
+    /**
+     * Starts warming up the bundle that the next {@link CodePush#getJSBundleFile} call will pick:
+     * the staged update if there is one, the current one otherwise. Returns null if the binary
+     * bundle will be loaded.
+     */
+    public static CodePushBundleWarmup start(CodePushUpdateManager updateManager, String bundleFileName) {
+        String bundlePath;
+        CodePushActiveBundleRecord record = updateManager.readActiveBundleRecord();
+        if (record != null && !record.hasPendingPackage()) {
+            bundlePath = updateManager.getActiveBundlePath(record, bundleFileName);
+        } else {
+            try {
+                bundlePath = updateManager.getPendingPackageBundlePath(bundleFileName);
+                if (bundlePath == null) {
+                    bundlePath = updateManager.getCurrentPackageBundlePath(bundleFileName);
+                }
+            } catch (CodePushMalformedDataException e) {
+                // getJSBundleFile will recover from this.
+                return null;
+            }
+        }
+
+        if (bundlePath == null) {
+            return null;
+        }
+
+        final CodePushBundleWarmup warmup = new CodePushBundleWarmup(bundlePath);
+        warmup.mStartMillis = SystemClock.elapsedRealtime();
+        Thread warmupThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                warmup.readBundle();
+            }
+        }, "CodePushBundleWarmup");
+        warmupThread.start();
+        return warmup;
+    }
+
+    /**
+     * Logs how long the warm-up took and how far ahead of {@code bundlePath} being requested it
+     * finished, which is the read time taken off the start of the app.
+     */
+    public void report(String bundlePath) {
+        if (!mBundlePath.equals(bundlePath)) {
+            CodePushUtils.log("The warmed up bundle " + mBundlePath + " is not the one being loaded.");
+            return;
+        }
+
+        long requestMillis = SystemClock.elapsedRealtime();
+        long finishMillis = mFinishMillis;
+        if (finishMillis < 0) {
+            CodePushUtils.log("Bundle warm-up was still running when the bundle was requested, " + mBytesRead
+                    + " bytes read in " + (requestMillis - mStartMillis) + " ms.");
+        } else {
+            CodePushUtils.log("Bundle warm-up read " + mBytesRead + " bytes in " + (finishMillis - mStartMillis)
+                    + " ms, finishing " + (requestMillis - finishMillis) + " ms before the bundle was requested.");
+        }
+    }
+
+    private void readBundle() {
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(new File(mBundlePath));
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            int numBytesRead;
+            while ((numBytesRead = inputStream.read(buffer)) >= 0) {
+                mBytesRead += numBytesRead;
+            }
+        } catch (IOException e) {
+            CodePushUtils.log("Unable to warm up the bundle: " + e.getMessage());
+        } finally {
+            try {
+                if (inputStream != null) inputStream.close();
+            } catch (IOException e) {
+                CodePushUtils.log(e);
+            }
+            mFinishMillis = SystemClock.elapsedRealtime();
+        }
+    }
+}
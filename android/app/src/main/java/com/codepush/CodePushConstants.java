@@ -2,19 +2,42 @@ package com.codepush;
 
 public class CodePushConstants {
     public static final String ASSETS_BUNDLE_PREFIX = "assets://";
+    public static final String BLOB_STORE_FOLDER_NAME = "blobs";
     public static final String CODE_PUSH_FOLDER_PREFIX = "CodePush";
     public static final String DIFF_MANIFEST_FILE_NAME = "hotcodepush.json";
     public static final int DOWNLOAD_BUFFER_SIZE = 1024 * 256;
+    public static final int DEFAULT_MIN_DOWNLOAD_BUFFER_SIZE = 1024 * 16;
+    public static final long DEFAULT_MIN_DOWNLOAD_SEGMENT_SIZE = 1024 * 1024;
     public static final String DOWNLOAD_FILE_NAME = "download.zip";
+    public static final String DOWNLOAD_FOLDER_NAME = "download";
+    public static final String DOWNLOAD_JOURNAL_FILE_NAME = "download.json";
+    public static final String DOWNLOAD_CANCELLED_ERROR_CODE = "CODEPUSH_DOWNLOAD_CANCELLED";
     public static final String DOWNLOAD_PROGRESS_EVENT_NAME = "CodePushDownloadProgress";
+    public static final long DEFAULT_DOWNLOAD_PROGRESS_INTERVAL_MILLIS = 100;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 30 * 1000;
+    public static final long DEFAULT_HTTP_RETRY_BACKOFF_MILLIS = 1000;
+    public static final int DEFAULT_RETAINED_PACKAGE_COUNT = 3;
     public static final String REACT_NATIVE_LOG_TAG = "ReactNative";
     public static final String RELATIVE_BUNDLE_PATH_KEY = "bundlePath";
+    public static final String SYNC_STATUS_EVENT_NAME = "CodePushSyncStatus";
     public static final String UNZIPPED_FOLDER_NAME = "unzipped";
+    public static final String UPDATE_CHECK_CACHE_FILE = "update-check.json";
 
     public static final String DOWNLOAD_URL_KEY = "updateDownloadUrl";
+    public static final String FULL_DOWNLOAD_URL_KEY = "fullUpdateDownloadUrl";
+    public static final String PACKAGE_HASH_KEY = "packageHash";
+    public static final String FULL_PACKAGE_HASH_KEY = "fullPackageHash";
+    public static final String CONTENT_HASHES_KEY = "contentHashes";
+    public static final String PACKAGE_SIGNATURE_KEY = "packageSignature";
     public static final String PACKAGE_LABEL_KEY = "bundleVersion";
     public static final String CURRENT_LABEL_KEY = "currentBundleVersion";
+    public static final String CORRUPT_LABEL_KEY = "corruptBundleVersion";
+    public static final String PENDING_LABEL_KEY = "pendingBundleVersion";
     public static final String PACKAGE_FILE_NAME = "app.json";
+    public static final String PACKAGE_MANIFEST_FILE_NAME = "codepush-manifest.json";
     public static final String DEFAULT_JS_BUNDLE_NAME = "index.android.bundle";
     public static final String STATUS_FILE = "codepush.json";
+    public static final String ACTIVE_BUNDLE_FILE = "codepush-active.bin";
+    public static final String RETAINED_PACKAGES_FILE = "retained-packages.json";
 }
@@ -0,0 +1,74 @@
+package com.codepush;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Read buffer of a download loop that sizes itself from the throughput the loop achieves. Each
+ * fill is meant to take about {@link #TARGET_FILL_MILLIS}: the buffer doubles when it fills in
+ * under half of that and halves when it takes over twice as long, so a slow or throttled link
+ * keeps a small buffer and reports progress often, while a fast one gets few, large reads and
+ * writes. The size stays a power of two between the limits it was created with.
+ */
+class CodePushDownloadBuffer {
+    private static final long TARGET_FILL_MILLIS = 100;
+
+    private final int mMinSize;
+    private final int mMaxSize;
+    private byte[] mData;
+    private long mLastFillMillis = -1;
+
+    /**
+     * @param minSize the size to start from and the smallest one to shrink to.
+     * @param maxSize the largest size to grow to.
+     */
+    public CodePushDownloadBuffer(int minSize, int maxSize) {
+        mMinSize = Integer.highestOneBit(Math.max(1, minSize));
+        mMaxSize = Math.max(mMinSize, Integer.highestOneBit(Math.max(1, maxSize)));
+        mData = new byte[mMinSize];
+    }
+
+    /**
+     * Returns the bytes of the last {@link #fill}. The array may be replaced by the next one.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    /**
+     * Reads from {@code inputStream} until the buffer is full, {@code maxLength} bytes were read
+     * or the stream ends. Returns the number of bytes read, or -1 if the stream ended before any.
+     */
+    public int fill(InputStream inputStream, long maxLength) throws IOException {
+        resize();
+        int length = (int) Math.min(mData.length, maxLength);
+        long startNanos = System.nanoTime();
+        int filledBytes = 0;
+        while (filledBytes < length) {
+            int numBytesRead = inputStream.read(mData, filledBytes, length - filledBytes);
+            if (numBytesRead < 0) {
+                break;
+            }
+            filledBytes += numBytesRead;
+        }
+
+        // Only a full buffer says how long one takes to fill; the last, short one doesn't.
+        if (filledBytes == mData.length) {
+            mLastFillMillis = (System.nanoTime() - startNanos) / 1000000L;
+        }
+        return filledBytes == 0 && length > 0 ? -1 : filledBytes;
+    }
+
+    private void resize() {
+        if (mLastFillMillis < 0) {
+            return;
+        }
+
+        if (mLastFillMillis < TARGET_FILL_MILLIS / 2 && mData.length < mMaxSize) {
+            mData = new byte[mData.length * 2];
+        } else if (mLastFillMillis > TARGET_FILL_MILLIS * 2 && mData.length > mMinSize) {
+            mData = new byte[mData.length / 2];
+        }
+        mLastFillMillis = -1;
+    }
+}
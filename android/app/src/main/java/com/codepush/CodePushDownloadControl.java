@@ -0,0 +1,97 @@
+package com.codepush;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Lets another thread pause, resume or cancel a download. Pausing and cancelling disconnect the
+ * connections the download has open, so that a thread blocked on the network wakes up at once
+ * instead of at the next chunk; the download streams then wait for a resume or give up.
+ */
+class CodePushDownloadControl {
+    private static final int STATE_RUNNING = 0;
+    private static final int STATE_PAUSED = 1;
+    private static final int STATE_CANCELLED = 2;
+
+    private final Set<CodePushHttpConnection> mConnections = new HashSet<>();
+    private int mState = STATE_RUNNING;
+    private int mPauseCount = 0;
+
+    public void pause() {
+        List<CodePushHttpConnection> connections;
+        synchronized (this) {
+            if (mState != STATE_RUNNING) {
+                return;
+            }
+
+            mState = STATE_PAUSED;
+            mPauseCount++;
+            connections = new ArrayList<>(mConnections);
+        }
+        disconnect(connections);
+    }
+
+    public synchronized void resume() {
+        if (mState == STATE_PAUSED) {
+            mState = STATE_RUNNING;
+            notifyAll();
+        }
+    }
+
+    public void cancel() {
+        List<CodePushHttpConnection> connections;
+        synchronized (this) {
+            mState = STATE_CANCELLED;
+            connections = new ArrayList<>(mConnections);
+            notifyAll();
+        }
+        disconnect(connections);
+    }
+
+    public synchronized boolean isCancelled() {
+        return mState == STATE_CANCELLED;
+    }
+
+    /**
+     * Number of times the download was paused, which tells the streams whether their connection
+     * was dropped for a pause since they opened it.
+     */
+    public synchronized int getPauseCount() {
+        return mPauseCount;
+    }
+
+    /**
+     * Blocks while the download is paused.
+     *
+     * @throws CodePushDownloadCancelledException if the download is or gets cancelled.
+     */
+    public synchronized void awaitRunning() {
+        while (mState == STATE_PAUSED) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new CodePushUnknownException("Interrupted while the download was paused.", e);
+            }
+        }
+
+        if (mState == STATE_CANCELLED) {
+            throw new CodePushDownloadCancelledException();
+        }
+    }
+
+    public synchronized void register(CodePushHttpConnection connection) {
+        mConnections.add(connection);
+    }
+
+    public synchronized void unregister(CodePushHttpConnection connection) {
+        mConnections.remove(connection);
+    }
+
+    private static void disconnect(List<CodePushHttpConnection> connections) {
+        for (CodePushHttpConnection connection : connections) {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.codepush;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Sidecar record of a partially downloaded update, persisted next to
+ * {@link CodePushConstants#DOWNLOAD_FILE_NAME} so that an interrupted download can be continued
+ * with a Range request instead of starting over.
+ */
+class CodePushDownloadJournal {
+    private static final String URL_KEY = "url";
+    private static final String PACKAGE_HASH_KEY = "packageHash";
+    private static final String ETAG_KEY = "etag";
+    private static final String LAST_MODIFIED_KEY = "lastModified";
+    private static final String TOTAL_BYTES_KEY = "totalBytes";
+    private static final String COMMITTED_BYTES_KEY = "committedBytes";
+
+    private final String mUrl;
+    private final String mPackageHash;
+    private final String mETag;
+    private final String mLastModified;
+    private final long mTotalBytes;
+    private long mCommittedBytes;
+
+    public CodePushDownloadJournal(String url, String packageHash, String eTag, String lastModified, long totalBytes) {
+        mUrl = url;
+        mPackageHash = packageHash;
+        mETag = eTag;
+        mLastModified = lastModified;
+        mTotalBytes = totalBytes;
+        mCommittedBytes = 0;
+    }
+
+    public static CodePushDownloadJournal load(File journalFile) {
+        if (!journalFile.exists()) {
+            return null;
+        }
+
+        try {
+            JSONObject json = CodePushUtils.getJsonObjectFromFile(journalFile.getAbsolutePath());
+            CodePushDownloadJournal journal = new CodePushDownloadJournal(
+                    json.optString(URL_KEY, null),
+                    json.optString(PACKAGE_HASH_KEY, null),
+                    json.optString(ETAG_KEY, null),
+                    json.optString(LAST_MODIFIED_KEY, null),
+                    json.optLong(TOTAL_BYTES_KEY, -1));
+            journal.mCommittedBytes = json.optLong(COMMITTED_BYTES_KEY, 0);
+            return journal;
+        } catch (IOException | CodePushMalformedDataException e) {
+            CodePushUtils.log("Discarding unreadable download journal: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public void save(File journalFile) throws IOException {
+        JSONObject json = new JSONObject();
+        CodePushUtils.setJSONValueForKey(json, URL_KEY, mUrl);
+        CodePushUtils.setJSONValueForKey(json, PACKAGE_HASH_KEY, mPackageHash);
+        CodePushUtils.setJSONValueForKey(json, ETAG_KEY, mETag);
+        CodePushUtils.setJSONValueForKey(json, LAST_MODIFIED_KEY, mLastModified);
+        CodePushUtils.setJSONValueForKey(json, TOTAL_BYTES_KEY, mTotalBytes);
+        CodePushUtils.setJSONValueForKey(json, COMMITTED_BYTES_KEY, mCommittedBytes);
+        CodePushUtils.writeJsonToFile(json, journalFile.getAbsolutePath());
+    }
+
+    /**
+     * Whether this journal describes a download of the given package from the given url that can
+     * be continued, i.e. one that recorded a validator and has bytes worth keeping.
+     */
+    public boolean canResume(String url, String packageHash) {
+        return mCommittedBytes > 0
+                && getValidator() != null
+                && url != null && url.equals(mUrl)
+                && packageHash != null && packageHash.equals(mPackageHash);
+    }
+
+    /**
+     * The value to send as If-Range so that the server only honours the Range request when the
+     * resource has not changed since the partial download was started, or null if there is none.
+     */
+    public String getValidator() {
+        return CodePushUpdateUtils.getRangeValidator(mETag, mLastModified);
+    }
+
+    public boolean isSameResource(String eTag, String lastModified, long totalBytes) {
+        if (mTotalBytes >= 0 && totalBytes >= 0 && mTotalBytes != totalBytes) {
+            return false;
+        }
+
+        if (mETag != null) {
+            return mETag.equals(eTag);
+        }
+
+        return mLastModified != null && mLastModified.equals(lastModified);
+    }
+
+    public long getCommittedBytes() {
+        return mCommittedBytes;
+    }
+
+    public void setCommittedBytes(long committedBytes) {
+        mCommittedBytes = committedBytes;
+    }
+}
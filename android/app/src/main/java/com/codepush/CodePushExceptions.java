@@ -8,6 +8,12 @@ class CodePushInvalidUpdateException extends RuntimeException {
     }
 }
 
+class CodePushDownloadCancelledException extends RuntimeException {
+    public CodePushDownloadCancelledException() {
+        super("The download was cancelled.");
+    }
+}
+
 class CodePushMalformedDataException extends RuntimeException {
     public CodePushMalformedDataException(String path, Throwable cause) {
         super("Unable to parse contents of " + path + ", the file may be corrupted.", cause);
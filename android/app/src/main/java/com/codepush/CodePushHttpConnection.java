@@ -0,0 +1,47 @@
+package com.codepush;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * One GET request of a {@link CodePushHttpTransport} and its response, used the way an
+ * {@link java.net.HttpURLConnection} is: request headers are set first, and the request is sent
+ * when the response is first asked for.
+ */
+public interface CodePushHttpConnection {
+
+    void setRequestProperty(String key, String value);
+
+    /**
+     * Sends the request if it wasn't sent yet and returns the status code of the response.
+     */
+    int getResponseCode() throws IOException;
+
+    /**
+     * Returns the value of a response header, or null if there is no such header or the request
+     * failed.
+     */
+    String getHeaderField(String name);
+
+    /**
+     * Returns the length of the response body as sent, or -1 if unknown.
+     */
+    long getContentLength();
+
+    /**
+     * Returns the response body, throwing for responses with an HTTP error status.
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * Releases the connection once done with the response. A response read to its end lets the
+     * transport reuse the connection for the next request.
+     */
+    void close();
+
+    /**
+     * Aborts the request from any thread, making blocked reads fail at once. The connection is not
+     * reused.
+     */
+    void disconnect();
+}
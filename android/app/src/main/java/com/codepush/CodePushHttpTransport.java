@@ -0,0 +1,20 @@
+package com.codepush;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Sends the HTTP requests of CodePush: update checks and every connection of a download. Set one
+ * with {@link CodePush#setHttpTransport} to share connection pools, protocols and timeouts with
+ * the rest of the app.
+ *
+ * Implementations must be safe to use from several threads at once, since segmented downloads
+ * open their connections concurrently.
+ */
+public interface CodePushHttpTransport {
+
+    /**
+     * Prepares a GET request for {@code url}. Nothing is sent until the response is first asked for.
+     */
+    CodePushHttpConnection openConnection(URL url) throws IOException;
+}
@@ -0,0 +1,73 @@
+package com.codepush;
+
+import com.facebook.react.bridge.WritableMap;
+
+import org.json.JSONObject;
+
+/**
+ * Immutable view of the package metadata on disk: the contents of the status file and the
+ * metadata of the package it points to. A new snapshot is published by
+ * {@link CodePushUpdateManager} on every write, so readers never need to touch the disk. The
+ * JSON objects are shared between readers and must not be modified.
+ */
+final class CodePushMetadataSnapshot {
+    private final JSONObject mPackageInfo;
+    private final String mCurrentPackageHash;
+    private final String mCurrentPackageFolderPath;
+    private final JSONObject mCurrentPackage;
+    // Converted once per snapshot and only ever handed out as copies, since passing a map to JS
+    // consumes it.
+    private WritableMap mCurrentPackageMap;
+
+    CodePushMetadataSnapshot(JSONObject packageInfo, String currentPackageHash, String currentPackageFolderPath, JSONObject currentPackage) {
+        this(packageInfo, currentPackageHash, currentPackageFolderPath, currentPackage, null);
+    }
+
+    private CodePushMetadataSnapshot(JSONObject packageInfo, String currentPackageHash, String currentPackageFolderPath,
+                                     JSONObject currentPackage, WritableMap currentPackageMap) {
+        mPackageInfo = packageInfo;
+        mCurrentPackageHash = currentPackageHash;
+        mCurrentPackageFolderPath = currentPackageFolderPath;
+        mCurrentPackage = currentPackage;
+        mCurrentPackageMap = currentPackageMap;
+    }
+
+    /**
+     * Returns a snapshot of {@code packageInfo}, which must point to the same current package,
+     * that keeps the current package metadata and its converted map.
+     */
+    public synchronized CodePushMetadataSnapshot withPackageInfo(JSONObject packageInfo) {
+        return new CodePushMetadataSnapshot(packageInfo, mCurrentPackageHash, mCurrentPackageFolderPath, mCurrentPackage, mCurrentPackageMap);
+    }
+
+    public JSONObject getPackageInfo() {
+        return mPackageInfo;
+    }
+
+    public String getCurrentPackageHash() {
+        return mCurrentPackageHash;
+    }
+
+    public String getCurrentPackageFolderPath() {
+        return mCurrentPackageFolderPath;
+    }
+
+    public JSONObject getCurrentPackage() {
+        return mCurrentPackage;
+    }
+
+    /**
+     * Returns a new {@link WritableMap} of the current package metadata, copied natively from a map
+     * that is converted on first use.
+     */
+    public synchronized WritableMap createCurrentPackageMap() {
+        if (mCurrentPackage == null) {
+            return null;
+        }
+
+        if (mCurrentPackageMap == null) {
+            mCurrentPackageMap = CodePushUtils.convertJsonObjectToWritable(mCurrentPackage);
+        }
+        return mCurrentPackageMap.copy();
+    }
+}
@@ -2,7 +2,6 @@ package com.codepush;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
-import android.os.AsyncTask;
 
 import com.facebook.react.ReactApplication;
 import com.facebook.react.ReactInstanceManager;
@@ -13,24 +12,32 @@ import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableMap;
-import com.facebook.react.modules.core.ChoreographerCompat;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
-import com.facebook.react.modules.core.ReactChoreographer;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class CodePushNativeModule extends ReactContextBaseJavaModule {
 
     private CodePush mCodePush;
     private CodePushUpdateManager mUpdateManager;
+    private CodePushUpdateScheduler mUpdateScheduler;
+    // Downloads that were requested and haven't finished yet, whether queued or running.
+    private final List<CodePushDownloadControl> mDownloadControls = new ArrayList<>();
+    // The current package last checked against the app version, and the outcome.
+    private JSONObject mCheckedPackage;
+    private boolean mIsCheckedPackageOutdated;
 
     @SuppressLint("HardwareIds")
     public CodePushNativeModule(ReactApplicationContext reactContext, CodePush codePush, CodePushUpdateManager codePushUpdateManager) {
         super(reactContext);
         mCodePush = codePush;
         mUpdateManager = codePushUpdateManager;
+        mUpdateScheduler = codePush.getUpdateScheduler();
     }
 
     // Use reflection to find the ReactInstanceManager. See #556 for a proposal for a less brittle way to approach this.
@@ -54,134 +61,309 @@ public class CodePushNativeModule extends ReactContextBaseJavaModule {
     @ReactMethod
     public void getConfiguration(Promise promise) {
         try {
-            WritableMap configMap = Arguments.createMap();
-            configMap.putString("appVersion", mCodePush.getAppVersion());
-            configMap.putString("platformType", "android");
-            promise.resolve(configMap);
+            promise.resolve(createConfigurationMap());
         } catch (CodePushUnknownException e) {
             CodePushUtils.log(e);
             promise.reject(e);
         }
     }
 
+    /**
+     * Same as {@link #getConfiguration} but answered synchronously on the JS thread.
+     */
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public WritableMap getConfigurationSync() {
+        return createConfigurationMap();
+    }
+
+    private WritableMap createConfigurationMap() {
+        WritableMap configMap = Arguments.createMap();
+        configMap.putString("appVersion", mCodePush.getAppVersion());
+        configMap.putString("platformType", "android");
+        return configMap;
+    }
+
     @ReactMethod
     public void getUpdateMetadata(final Promise promise) {
-        AsyncTask<Void, Void, Void> asyncTask = new AsyncTask<Void, Void, Void>() {
+        mUpdateScheduler.submitRead("getUpdateMetadata", new Runnable() {
             @Override
-            protected Void doInBackground(Void... params) {
+            public void run() {
                 try {
-                    JSONObject currentPackage = mUpdateManager.getCurrentPackage();
-                    if (currentPackage != null) {
-                        String currentAppVersionInLocalBundle = currentPackage.optString("appVersion", null);
-                        if (mCodePush.checkForUpdate(currentAppVersionInLocalBundle, mCodePush.getAppVersion())) {
-                            promise.resolve(null);
-                            return null;
-                        }
-                    }
-                    if (currentPackage == null) {
-                        promise.resolve(null);
-                        return null;
-                    } else {
-                        promise.resolve(CodePushUtils.convertJsonObjectToWritable(currentPackage));
-                    }
-                } catch (CodePushMalformedDataException e) {
-                    // We need to recover the app in case 'codepush.json' is corrupted
-                    CodePushUtils.log(e.getMessage());
-                    clearUpdates();
-                    promise.resolve(null);
+                    promise.resolve(createUpdateMetadataMap());
                 } catch (CodePushUnknownException e) {
                     CodePushUtils.log(e);
                     promise.reject(e);
                 }
-                return null;
             }
-        };
-        asyncTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        });
+    }
+
+    /**
+     * Same as {@link #getUpdateMetadata} but answered synchronously on the JS thread. Apart from
+     * the first call, this only copies a map cached until another package is installed or the
+     * updates are cleared.
+     */
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public WritableMap getUpdateMetadataSync() {
+        return createUpdateMetadataMap();
     }
 
+    private WritableMap createUpdateMetadataMap() {
+        try {
+            JSONObject runningPackage = getRunningPackage();
+            return runningPackage != null ? mUpdateManager.createPackageMap(runningPackage) : null;
+        } catch (CodePushMalformedDataException e) {
+            // We need to recover the app in case 'codepush.json' is corrupted
+            CodePushUtils.log(e.getMessage());
+            clearUpdates();
+            return null;
+        }
+    }
+
+    /**
+     * Returns the metadata of the package the app runs, or null if it runs the binary bundle. An
+     * outdated package is not run, see {@link CodePush#isPackageOutdated}.
+     */
+    private synchronized JSONObject getRunningPackage() {
+        // The update manager hands out the same metadata until the current package changes.
+        JSONObject currentPackage = mUpdateManager.getCurrentPackage();
+        if (currentPackage != mCheckedPackage) {
+            mIsCheckedPackageOutdated = currentPackage != null && mCodePush.isPackageOutdated(currentPackage.optString("appVersion", null));
+            mCheckedPackage = currentPackage;
+        }
+
+        return mIsCheckedPackageOutdated ? null : currentPackage;
+    }
+
+    /**
+     * Asks the update server for an update to the current package, answering from the cached
+     * response while the server allows it. Resolves with the update, ready to be passed to
+     * {@link #downloadUpdate}, or with null if there is nothing newer than the current package.
+     */
     @ReactMethod
-    public void downloadUpdate(final ReadableMap updatePackage, final Promise promise) {
-        AsyncTask<Void, Void, Void> asyncTask = new AsyncTask<Void, Void, Void>() {
+    public void checkForUpdate(final Promise promise) {
+        mUpdateScheduler.submitRead("checkForUpdate", new Runnable() {
             @Override
-            protected Void doInBackground(Void... params) {
+            public void run() {
                 try {
-                    JSONObject mutableUpdatePackage = CodePushUtils.convertReadableToJsonObject(updatePackage);
-                    mUpdateManager.downloadPackage(mutableUpdatePackage, mCodePush.getAssetsBundleFileName(), new DownloadProgressCallback() {
-                        private boolean hasScheduledNextFrame = false;
-                        private DownloadProgress latestDownloadProgress = null;
-
-                        @Override
-                        public void call(DownloadProgress downloadProgress) {
-                            latestDownloadProgress = downloadProgress;
-                            // If the download is completed, synchronously send the last event.
-                            if (latestDownloadProgress.isCompleted()) {
-                                dispatchDownloadProgressEvent();
-                                return;
-                            }
+                    String currentPackageHash = getRunningPackageHash();
+                    JSONObject updatePackage = mCodePush.createUpdateChecker().checkForUpdate(currentPackageHash);
+                    if (updatePackage == null
+                            || String.valueOf(updatePackage.optInt(CodePushConstants.PACKAGE_LABEL_KEY)).equals(currentPackageHash)) {
+                        promise.resolve(null);
+                        return;
+                    }
 
-                            if (hasScheduledNextFrame) {
-                                return;
-                            }
+                    promise.resolve(CodePushUtils.convertJsonObjectToWritable(updatePackage));
+                } catch (IOException | CodePushMalformedDataException | CodePushUnknownException e) {
+                    CodePushUtils.log(e);
+                    promise.reject(e);
+                }
+            }
+        });
+    }
 
-                            hasScheduledNextFrame = true;
-                            getReactApplicationContext().runOnUiQueueThread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    ReactChoreographer.getInstance().postFrameCallback(ReactChoreographer.CallbackType.TIMERS_EVENTS, new ChoreographerCompat.FrameCallback() {
-                                        @Override
-                                        public void doFrame(long frameTimeNanos) {
-                                            if (!latestDownloadProgress.isCompleted()) {
-                                                dispatchDownloadProgressEvent();
-                                            }
-
-                                            hasScheduledNextFrame = false;
-                                        }
-                                    });
-                                }
-                            });
-                        }
+    /**
+     * Checks for, downloads and installs an update in one call, emitting
+     * {@link CodePushConstants#SYNC_STATUS_EVENT_NAME} events as it goes and download progress
+     * events while downloading. Resolves with the final status and, if an update was installed,
+     * its bundle version. The update is downloaded like {@link #downloadUpdate} and then installed
+     * in turn with the other writes, like {@link #installUpdate}.
+     *
+     * @param options {@code installMode}: {@code "onNextRestart"} stages the update for the next
+     *                cold start instead of installing it right away.
+     */
+    @ReactMethod
+    public void syncNative(final ReadableMap options, final Promise promise) {
+        final boolean stage = isInstallOnNextRestart(options);
+        final CodePushDownloadControl downloadControl = new CodePushDownloadControl();
+        synchronized (mDownloadControls) {
+            mDownloadControls.add(downloadControl);
+        }
 
-                        public void dispatchDownloadProgressEvent() {
+        mUpdateScheduler.submitDownload("syncNative", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    DownloadProgressEmitter progressEmitter = new DownloadProgressEmitter(getReactApplicationContext(),
+                            mCodePush.getDownloadProgressIntervalMillis(), mCodePush.getDownloadProgressMinBytes());
+                    final CodePushSync sync = new CodePushSync(mUpdateManager, mCodePush.createUpdateChecker(), mCodePush.getAssetsBundleFileName());
+                    final CodePushSync.StatusCallback statusCallback = new CodePushSync.StatusCallback() {
+                        @Override
+                        public void call(CodePushSync.Status status) {
                             getReactApplicationContext()
                                     .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-                                    .emit(CodePushConstants.DOWNLOAD_PROGRESS_EVENT_NAME, latestDownloadProgress.createWritableMap());
+                                    .emit(CodePushConstants.SYNC_STATUS_EVENT_NAME, status.getValue());
+                        }
+                    };
+                    final JSONObject updatePackage = sync.download(getRunningPackageHash(), stage, progressEmitter.getProgress(),
+                            downloadControl, statusCallback);
+                    if (updatePackage == null) {
+                        WritableMap resultMap = Arguments.createMap();
+                        resultMap.putInt("status", CodePushSync.Status.UP_TO_DATE.getValue());
+                        promise.resolve(resultMap);
+                        return;
+                    }
+
+                    progressEmitter.finish();
+                    // Installing changes the installed updates, so it waits its turn behind the other writes.
+                    mUpdateScheduler.submitWrite("syncNative", new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                sync.install(updatePackage, stage, statusCallback);
+                                WritableMap resultMap = Arguments.createMap();
+                                resultMap.putInt("status", CodePushSync.Status.UPDATE_INSTALLED.getValue());
+                                resultMap.putInt(CodePushConstants.PACKAGE_LABEL_KEY, updatePackage.optInt(CodePushConstants.PACKAGE_LABEL_KEY));
+                                promise.resolve(resultMap);
+                            } catch (CodePushInvalidUpdateException | CodePushUnknownException e) {
+                                CodePushUtils.log(e);
+                                promise.reject(e);
+                            }
                         }
                     });
+                } catch (CodePushDownloadCancelledException e) {
+                    CodePushUtils.log(e.getMessage());
+                    promise.reject(CodePushConstants.DOWNLOAD_CANCELLED_ERROR_CODE, e);
+                } catch (IOException | CodePushInvalidUpdateException | CodePushMalformedDataException | CodePushUnknownException e) {
+                    CodePushUtils.log(e);
+                    promise.reject(e);
+                } finally {
+                    synchronized (mDownloadControls) {
+                        mDownloadControls.remove(downloadControl);
+                    }
+                }
+            }
+        });
+    }
+
+    static boolean isInstallOnNextRestart(ReadableMap options) {
+        return options != null && "onNextRestart".equals(CodePushUtils.tryGetString(options, "installMode"));
+    }
+
+    private String getRunningPackageHash() {
+        JSONObject runningPackage = getRunningPackage();
+        return runningPackage != null ? String.valueOf(runningPackage.optInt(CodePushConstants.PACKAGE_LABEL_KEY)) : null;
+    }
+
+    @ReactMethod
+    public void downloadUpdate(final ReadableMap updatePackage, final Promise promise) {
+        final CodePushDownloadControl downloadControl = new CodePushDownloadControl();
+        synchronized (mDownloadControls) {
+            mDownloadControls.add(downloadControl);
+        }
+
+        mUpdateScheduler.submitDownload("downloadUpdate", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject mutableUpdatePackage = CodePushUtils.convertReadableToJsonObject(updatePackage);
+                    DownloadProgressEmitter progressEmitter = new DownloadProgressEmitter(getReactApplicationContext(),
+                            mCodePush.getDownloadProgressIntervalMillis(), mCodePush.getDownloadProgressMinBytes());
+                    mUpdateManager.downloadPackage(mutableUpdatePackage, mCodePush.getAssetsBundleFileName(), progressEmitter.getProgress(), downloadControl);
+                    progressEmitter.finish();
 
                     JSONObject newPackage = mUpdateManager.getPackage(CodePushUtils.tryGetString(updatePackage, CodePushConstants.PACKAGE_LABEL_KEY));
-                    promise.resolve(CodePushUtils.convertJsonObjectToWritable(newPackage));
+                    promise.resolve(mUpdateManager.createPackageMap(newPackage));
+                } catch (CodePushDownloadCancelledException e) {
+                    CodePushUtils.log(e.getMessage());
+                    promise.reject(CodePushConstants.DOWNLOAD_CANCELLED_ERROR_CODE, e);
                 } catch (CodePushInvalidUpdateException e) {
                     CodePushUtils.log(e);
                     promise.reject(e);
                 } catch (IOException | CodePushUnknownException e) {
                     CodePushUtils.log(e);
                     promise.reject(e);
+                } finally {
+                    synchronized (mDownloadControls) {
+                        mDownloadControls.remove(downloadControl);
+                    }
                 }
-
-                return null;
             }
-        };
+        });
+    }
+
+    /**
+     * Stops every pending download. Their promises reject with
+     * {@link CodePushConstants#DOWNLOAD_CANCELLED_ERROR_CODE}; resumable downloads keep the bytes
+     * received so far for the next attempt.
+     */
+    @ReactMethod
+    public void cancelDownload() {
+        for (CodePushDownloadControl downloadControl : getDownloadControls()) {
+            downloadControl.cancel();
+        }
+    }
 
-        asyncTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    /**
+     * Drops the connections of the pending downloads until {@link #resumeDownload()} is called,
+     * keeping what they received so far.
+     */
+    @ReactMethod
+    public void pauseDownload() {
+        for (CodePushDownloadControl downloadControl : getDownloadControls()) {
+            downloadControl.pause();
+        }
+    }
+
+    @ReactMethod
+    public void resumeDownload() {
+        for (CodePushDownloadControl downloadControl : getDownloadControls()) {
+            downloadControl.resume();
+        }
+    }
+
+    /**
+     * Caps the bandwidth of all downloads, including those in progress, or lifts the cap if 0.
+     */
+    @ReactMethod
+    public void setMaxDownloadBytesPerSecond(double bytesPerSecond) {
+        mCodePush.setMaxDownloadBytesPerSecond((long) bytesPerSecond);
+    }
+
+    private List<CodePushDownloadControl> getDownloadControls() {
+        synchronized (mDownloadControls) {
+            return new ArrayList<>(mDownloadControls);
+        }
     }
 
     @ReactMethod
     public void installUpdate(final ReadableMap updatePackage, final Promise promise) {
-        AsyncTask<Void, Void, Void> asyncTask = new AsyncTask<Void, Void, Void>() {
+        mUpdateScheduler.submitWrite("installUpdate", new Runnable() {
             @Override
-            protected Void doInBackground(Void... params) {
+            public void run() {
                 try {
                     mUpdateManager.installPackage(CodePushUtils.convertReadableToJsonObject(updatePackage));
                     promise.resolve("");
-                } catch (CodePushUnknownException e) {
+                } catch (CodePushInvalidUpdateException | CodePushUnknownException e) {
                     CodePushUtils.log(e);
                     promise.reject(e);
                 }
-                return null;
             }
-        };
+        });
+    }
 
-        asyncTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    /**
+     * Resolves with the metadata of the updates kept on disk, most recently used first. Passing one
+     * to {@link #installUpdate} switches to it without a download.
+     */
+    @ReactMethod
+    public void getRetainedUpdates(final Promise promise) {
+        mUpdateScheduler.submitRead("getRetainedUpdates", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONArray retainedPackages = new JSONArray();
+                    for (JSONObject retainedPackage : mUpdateManager.getRetainedPackages()) {
+                        retainedPackages.put(retainedPackage);
+                    }
+                    promise.resolve(CodePushUtils.convertJsonArrayToWritable(retainedPackages));
+                } catch (CodePushUnknownException e) {
+                    CodePushUtils.log(e);
+                    promise.reject(e);
+                }
+            }
+        });
     }
 
     @Override
@@ -191,7 +373,17 @@ public class CodePushNativeModule extends ReactContextBaseJavaModule {
 
     @ReactMethod
     public void clearUpdates() {
-        CodePushUtils.log("Clearing updates.");
-        mCodePush.clearUpdates();
+        mUpdateScheduler.submitWrite("clearUpdates", new Runnable() {
+            @Override
+            public void run() {
+                CodePushUtils.log("Clearing updates.");
+                mCodePush.clearUpdates();
+            }
+        });
+    }
+
+    @ReactMethod
+    public void getUpdateQueueMetrics(Promise promise) {
+        promise.resolve(mUpdateScheduler.createMetricsMap());
     }
 }
@@ -0,0 +1,131 @@
+package com.codepush;
+
+import com.facebook.react.modules.network.OkHttpClientProvider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Transport on top of an {@link OkHttpClient}, normally the one React Native's networking uses,
+ * so that updates go over the same pooled and, where the server supports it, HTTP/2 multiplexed
+ * connections as the app's own requests.
+ */
+public class CodePushOkHttpTransport implements CodePushHttpTransport {
+    private final OkHttpClient mClient;
+
+    public CodePushOkHttpTransport(OkHttpClient client) {
+        mClient = client;
+    }
+
+    /**
+     * Returns a transport sharing the connection pool and dispatcher of React Native's client, with
+     * timeouts of its own.
+     *
+     * @param connectTimeoutMillis the timeout of setting up a connection, or 0 for none.
+     * @param readTimeoutMillis    the longest wait for the next bytes of a response, or 0 for none.
+     */
+    public static CodePushOkHttpTransport fromReactNativeClient(int connectTimeoutMillis, int readTimeoutMillis) {
+        return new CodePushOkHttpTransport(OkHttpClientProvider.getOkHttpClient().newBuilder()
+                .connectTimeout(connectTimeoutMillis, TimeUnit.MILLISECONDS)
+                .readTimeout(readTimeoutMillis, TimeUnit.MILLISECONDS)
+                .build());
+    }
+
+    @Override
+    public CodePushHttpConnection openConnection(URL url) {
+        return new OkHttpConnection(mClient, new Request.Builder().url(url));
+    }
+
+    private static class OkHttpConnection implements CodePushHttpConnection {
+        private final OkHttpClient mClient;
+        private final Request.Builder mRequestBuilder;
+        private Call mCall;
+        private boolean mIsDisconnected;
+        private Response mResponse;
+
+        OkHttpConnection(OkHttpClient client, Request.Builder requestBuilder) {
+            mClient = client;
+            mRequestBuilder = requestBuilder;
+        }
+
+        @Override
+        public void setRequestProperty(String key, String value) {
+            mRequestBuilder.header(key, value);
+        }
+
+        private Response getResponse() throws IOException {
+            if (mResponse == null) {
+                Call call;
+                synchronized (this) {
+                    if (mIsDisconnected) {
+                        throw new IOException("The request was aborted.");
+                    }
+                    mCall = mClient.newCall(mRequestBuilder.build());
+                    call = mCall;
+                }
+                mResponse = call.execute();
+            }
+            return mResponse;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return getResponse().code();
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            try {
+                return getResponse().header(name);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public long getContentLength() {
+            try {
+                ResponseBody body = getResponse().body();
+                return body != null ? body.contentLength() : -1;
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            Response response = getResponse();
+            if (response.code() >= 400) {
+                throw new IOException("Server returned HTTP response code: " + response.code() + " for URL: " + response.request().url());
+            }
+            ResponseBody body = response.body();
+            if (body == null) {
+                throw new IOException("The response has no body.");
+            }
+            return body.byteStream();
+        }
+
+        @Override
+        public void close() {
+            if (mResponse != null) {
+                mResponse.close();
+            }
+        }
+
+        @Override
+        public synchronized void disconnect() {
+            mIsDisconnected = true;
+            if (mCall != null) {
+                mCall.cancel();
+            }
+        }
+    }
+}
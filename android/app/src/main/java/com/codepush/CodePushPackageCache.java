@@ -0,0 +1,188 @@
+package com.codepush;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Index of the package folders kept on disk after they stop being current, so that rolling back
+ * or re-installing one of them needs no download. Packages are evicted least recently used first
+ * once there are more than the retained count of them or their folders add up to more than the
+ * byte budget. The index only does the bookkeeping; deleting the evicted folders is up to the
+ * caller.
+ *
+ * Sizes are the apparent sizes of the package folders. Files shared with other packages through
+ * the blob store are counted for each of them, so the budget is an upper bound of the disk used.
+ */
+class CodePushPackageCache {
+    private static final String SIZE_KEY = "size";
+    private static final String LAST_USED_KEY = "lastUsed";
+
+    private final String mIndexPath;
+    private int mMaxPackageCount = CodePushConstants.DEFAULT_RETAINED_PACKAGE_COUNT;
+    private long mMaxBytes = 0;
+    private JSONObject mIndex;
+
+    public CodePushPackageCache(String indexPath) {
+        mIndexPath = indexPath;
+    }
+
+    /**
+     * @param maxPackageCount the number of packages to keep, at least 1.
+     * @param maxBytes        the total size of the packages to keep, or 0 for no limit.
+     */
+    public synchronized void setLimits(int maxPackageCount, long maxBytes) {
+        mMaxPackageCount = Math.max(1, maxPackageCount);
+        mMaxBytes = Math.max(0, maxBytes);
+    }
+
+    public synchronized boolean contains(String packageHash) {
+        return getIndex().has(packageHash);
+    }
+
+    /**
+     * Returns the size recorded for {@code packageHash}, or 0 if it is not retained.
+     */
+    public synchronized long getSize(String packageHash) {
+        JSONObject entry = getIndex().optJSONObject(packageHash);
+        return entry != null ? entry.optLong(SIZE_KEY) : 0;
+    }
+
+    /**
+     * Records {@code packageHash} as the most recently used package, measuring its folder if it
+     * is not in the index yet.
+     */
+    public synchronized void touch(String packageHash, File packageFolder) throws IOException {
+        JSONObject index = getIndex();
+        JSONObject entry = index.optJSONObject(packageHash);
+        if (entry == null) {
+            entry = new JSONObject();
+            CodePushUtils.setJSONValueForKey(entry, SIZE_KEY, getFolderSize(packageFolder));
+            CodePushUtils.setJSONValueForKey(index, packageHash, entry);
+        }
+
+        CodePushUtils.setJSONValueForKey(entry, LAST_USED_KEY, getLastUsed(index) + 1);
+        writeIndex();
+    }
+
+    public synchronized void remove(String packageHash) throws IOException {
+        if (getIndex().remove(packageHash) != null) {
+            writeIndex();
+        }
+    }
+
+    /**
+     * Returns the retained packages, most recently used first.
+     */
+    public synchronized List<String> getPackageHashes() {
+        final JSONObject index = getIndex();
+        List<String> packageHashes = new ArrayList<>();
+        Iterator<String> packageIterator = index.keys();
+        while (packageIterator.hasNext()) {
+            packageHashes.add(packageIterator.next());
+        }
+
+        Collections.sort(packageHashes, new Comparator<String>() {
+            @Override
+            public int compare(String first, String second) {
+                long firstLastUsed = index.optJSONObject(first).optLong(LAST_USED_KEY);
+                long secondLastUsed = index.optJSONObject(second).optLong(LAST_USED_KEY);
+                return firstLastUsed > secondLastUsed ? -1 : (firstLastUsed < secondLastUsed ? 1 : 0);
+            }
+        });
+        return packageHashes;
+    }
+
+    /**
+     * Removes the least recently used packages from the index until it is within its limits,
+     * skipping those in {@code protectedHashes}, and returns them.
+     */
+    public synchronized List<String> evict(Collection<String> protectedHashes) throws IOException {
+        JSONObject index = getIndex();
+        List<String> packageHashes = getPackageHashes();
+        int packageCount = packageHashes.size();
+        long totalBytes = 0;
+        for (String packageHash : packageHashes) {
+            totalBytes += index.optJSONObject(packageHash).optLong(SIZE_KEY);
+        }
+
+        List<String> evictedHashes = new ArrayList<>();
+        for (int i = packageHashes.size() - 1; i >= 0; i--) {
+            if (packageCount <= mMaxPackageCount && (mMaxBytes == 0 || totalBytes <= mMaxBytes)) {
+                break;
+            }
+
+            String packageHash = packageHashes.get(i);
+            if (protectedHashes.contains(packageHash)) {
+                continue;
+            }
+
+            totalBytes -= index.optJSONObject(packageHash).optLong(SIZE_KEY);
+            packageCount--;
+            index.remove(packageHash);
+            evictedHashes.add(packageHash);
+        }
+
+        if (!evictedHashes.isEmpty()) {
+            writeIndex();
+        }
+        return evictedHashes;
+    }
+
+    /**
+     * Forgets the in-memory index, for when the folder holding it was deleted.
+     */
+    public synchronized void reset() {
+        mIndex = null;
+    }
+
+    private JSONObject getIndex() {
+        if (mIndex == null) {
+            mIndex = new JSONObject();
+            if (FileUtils.fileAtPathExists(mIndexPath) || FileUtils.fileAtPathExists(FileUtils.getBackupFilePath(mIndexPath))) {
+                try {
+                    mIndex = CodePushUtils.getJsonObjectFromFile(mIndexPath);
+                } catch (IOException | CodePushMalformedDataException e) {
+                    // Packages missing from the index are cleaned up with the next download.
+                    CodePushUtils.log(e);
+                }
+            }
+        }
+
+        return mIndex;
+    }
+
+    private void writeIndex() throws IOException {
+        new File(mIndexPath).getParentFile().mkdirs();
+        CodePushUtils.writeJsonToFile(mIndex, mIndexPath);
+    }
+
+    private static long getLastUsed(JSONObject index) {
+        long lastUsed = 0;
+        Iterator<String> packageIterator = index.keys();
+        while (packageIterator.hasNext()) {
+            lastUsed = Math.max(lastUsed, index.optJSONObject(packageIterator.next()).optLong(LAST_USED_KEY));
+        }
+        return lastUsed;
+    }
+
+    private static long getFolderSize(File folder) {
+        long size = 0;
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return 0;
+        }
+
+        for (File file : files) {
+            size += file.isDirectory() ? getFolderSize(file) : file.length();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,328 @@
+package com.codepush;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Hash manifest of an installed package, written when it is installed so that the files can be
+ * checked for corruption later without trusting anything else on disk.
+ *
+ * The manifest is a two level hash tree: every file is a leaf holding its SHA-256 hash, except
+ * the JS bundle whose leaf is the hash of its chunk hashes, and the root is the hash of all the
+ * leaves in path order. Chunking the bundle lets it be verified chunk by chunk straight from a
+ * memory map, stopping at the first damaged chunk.
+ */
+class CodePushPackageIntegrity {
+    private static final int MANIFEST_VERSION = 1;
+    private static final long BUNDLE_CHUNK_SIZE = 1024 * 1024;
+    private static final String VERSION_KEY = "version";
+    private static final String ROOT_KEY = "root";
+    private static final String FILES_KEY = "files";
+    private static final String BUNDLE_KEY = "bundle";
+    private static final String PATH_KEY = "path";
+    private static final String CHUNK_SIZE_KEY = "chunkSize";
+    private static final String CHUNKS_KEY = "chunks";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Hashes every file of {@code packageFolder} into its manifest. Files listed in
+     * {@code knownHashes} (if not null) are taken as is instead of being read again.
+     */
+    public static void writeManifest(File packageFolder, String relativeBundlePath, JSONObject knownHashes) throws IOException {
+        List<String> relativePaths = new ArrayList<>();
+        collectFiles(packageFolder, null, relativePaths);
+
+        JSONObject files = new JSONObject();
+        JSONObject bundle = null;
+        for (String relativePath : relativePaths) {
+            File file = new File(packageFolder, relativePath);
+            String hash;
+            if (relativePath.equals(relativeBundlePath)) {
+                List<String> chunkHashes = computeChunkHashes(file, BUNDLE_CHUNK_SIZE, null);
+                hash = hashChunkHashes(chunkHashes);
+                bundle = new JSONObject();
+                CodePushUtils.setJSONValueForKey(bundle, PATH_KEY, relativePath);
+                CodePushUtils.setJSONValueForKey(bundle, CHUNK_SIZE_KEY, BUNDLE_CHUNK_SIZE);
+                CodePushUtils.setJSONValueForKey(bundle, CHUNKS_KEY, new JSONArray(chunkHashes));
+            } else {
+                hash = knownHashes != null ? knownHashes.optString(relativePath, null) : null;
+                if (hash == null) {
+                    hash = CodePushUpdateUtils.computeHash(file);
+                }
+            }
+            CodePushUtils.setJSONValueForKey(files, relativePath, hash);
+        }
+
+        JSONObject manifest = new JSONObject();
+        CodePushUtils.setJSONValueForKey(manifest, VERSION_KEY, MANIFEST_VERSION);
+        CodePushUtils.setJSONValueForKey(manifest, ROOT_KEY, computeRoot(files));
+        CodePushUtils.setJSONValueForKey(manifest, FILES_KEY, files);
+        if (bundle != null) {
+            CodePushUtils.setJSONValueForKey(manifest, BUNDLE_KEY, bundle);
+        }
+        CodePushUtils.writeJsonToFile(manifest, getManifestPath(packageFolder));
+    }
+
+    /**
+     * Checks {@code bundleFile} chunk by chunk against the manifest. Packages installed without a
+     * manifest, or whose manifest does not cover the bundle, are assumed intact.
+     */
+    public static boolean verifyBundle(File packageFolder, File bundleFile) {
+        BundleChunks bundleChunks = readBundleChunks(packageFolder, getRelativePath(packageFolder, bundleFile));
+        return bundleChunks != null && verifyBundleChunks(bundleFile, bundleChunks);
+    }
+
+    /**
+     * Returns the chunk hashes the manifest of {@code packageFolder} records for the bundle at
+     * {@code relativeBundlePath}, after checking them against the manifest root. Packages installed
+     * without a manifest, or whose manifest does not cover the bundle, get an empty list. Returns
+     * null if the manifest is corrupted.
+     */
+    public static BundleChunks readBundleChunks(File packageFolder, String relativeBundlePath) {
+        JSONObject manifest = readManifest(packageFolder);
+        if (manifest == null) {
+            return BundleChunks.NONE;
+        } else if (!isManifestIntact(manifest)) {
+            return null;
+        }
+
+        JSONObject bundle = manifest.optJSONObject(BUNDLE_KEY);
+        if (bundle == null || !bundle.optString(PATH_KEY).equals(relativeBundlePath)) {
+            return BundleChunks.NONE;
+        }
+
+        JSONArray expectedChunkHashes = bundle.optJSONArray(CHUNKS_KEY);
+        long chunkSize = bundle.optLong(CHUNK_SIZE_KEY, BUNDLE_CHUNK_SIZE);
+        if (expectedChunkHashes == null || expectedChunkHashes.length() == 0 || chunkSize <= 0) {
+            return null;
+        }
+
+        // The chunk hashes hang off the bundle leaf, which the root already vouches for.
+        List<String> chunkHashes = new ArrayList<>(expectedChunkHashes.length());
+        for (int i = 0; i < expectedChunkHashes.length(); i++) {
+            chunkHashes.add(expectedChunkHashes.optString(i));
+        }
+        if (!hashChunkHashes(chunkHashes).equals(manifest.optJSONObject(FILES_KEY).optString(relativeBundlePath))) {
+            CodePushUtils.log("The package hash manifest is corrupted.");
+            return null;
+        }
+
+        return new BundleChunks(chunkSize, chunkHashes);
+    }
+
+    /**
+     * Checks {@code bundleFile} chunk by chunk against hashes from {@link #readBundleChunks}.
+     */
+    public static boolean verifyBundleChunks(File bundleFile, BundleChunks bundleChunks) {
+        if (bundleChunks.getChunkHashes().isEmpty()) {
+            return true;
+        }
+
+        try {
+            List<String> chunkHashes = computeChunkHashes(bundleFile, bundleChunks.getChunkSize(), bundleChunks.getChunkHashes());
+            return chunkHashes != null && chunkHashes.size() == bundleChunks.getChunkHashes().size();
+        } catch (IOException e) {
+            CodePushUtils.log(e);
+            return false;
+        }
+    }
+
+    /**
+     * Hashes a random sample of the files other than the bundle, reading about {@code byteBudget}
+     * bytes but always at least one file, and compares them with the manifest. Repeated over
+     * several launches this covers the whole package without delaying any of them much.
+     */
+    public static boolean verifyFileSample(File packageFolder, long byteBudget) {
+        JSONObject manifest = readManifest(packageFolder);
+        if (manifest == null) {
+            return true;
+        } else if (!isManifestIntact(manifest)) {
+            return false;
+        }
+
+        JSONObject files = manifest.optJSONObject(FILES_KEY);
+        JSONObject bundle = manifest.optJSONObject(BUNDLE_KEY);
+        String relativeBundlePath = bundle != null ? bundle.optString(PATH_KEY) : null;
+        List<String> relativePaths = new ArrayList<>();
+        Iterator<String> pathIterator = files.keys();
+        while (pathIterator.hasNext()) {
+            String relativePath = pathIterator.next();
+            if (!relativePath.equals(relativeBundlePath)) {
+                relativePaths.add(relativePath);
+            }
+        }
+
+        Collections.shuffle(relativePaths);
+        long bytesRead = 0;
+        for (String relativePath : relativePaths) {
+            if (bytesRead > 0 && bytesRead >= byteBudget) {
+                break;
+            }
+
+            File file = new File(packageFolder, relativePath);
+            if (!file.isFile()) {
+                CodePushUtils.log("Package file " + relativePath + " is missing.");
+                return false;
+            }
+
+            try {
+                if (!CodePushUpdateUtils.computeHash(file).equals(files.optString(relativePath))) {
+                    CodePushUtils.log("Package file " + relativePath + " does not match its installed hash.");
+                    return false;
+                }
+            } catch (IOException e) {
+                CodePushUtils.log(e);
+                return false;
+            }
+            bytesRead += file.length();
+        }
+
+        return true;
+    }
+
+    private static String getManifestPath(File packageFolder) {
+        return CodePushUtils.appendPathComponent(packageFolder.getPath(), CodePushConstants.PACKAGE_MANIFEST_FILE_NAME);
+    }
+
+    private static JSONObject readManifest(File packageFolder) {
+        String manifestPath = getManifestPath(packageFolder);
+        if (!FileUtils.fileAtPathExists(manifestPath)) {
+            return null;
+        }
+
+        try {
+            return CodePushUtils.getJsonObjectFromFile(manifestPath);
+        } catch (IOException | CodePushMalformedDataException e) {
+            CodePushUtils.log(e.getMessage());
+            return new JSONObject();
+        }
+    }
+
+    private static boolean isManifestIntact(JSONObject manifest) {
+        JSONObject files = manifest.optJSONObject(FILES_KEY);
+        if (manifest.optInt(VERSION_KEY) != MANIFEST_VERSION || files == null
+                || !computeRoot(files).equals(manifest.optString(ROOT_KEY))) {
+            CodePushUtils.log("The package hash manifest is corrupted.");
+            return false;
+        }
+
+        return true;
+    }
+
+    private static void collectFiles(File folder, String relativeFolderPath, List<String> relativePaths) {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String relativePath = relativeFolderPath == null ? file.getName() : relativeFolderPath + "/" + file.getName();
+            if (file.isDirectory()) {
+                collectFiles(file, relativePath, relativePaths);
+            } else if (relativeFolderPath != null || !CodePushUpdateUtils.isPackageMetadataFile(file.getName())) {
+                relativePaths.add(relativePath);
+            }
+        }
+    }
+
+    private static String getRelativePath(File packageFolder, File file) {
+        String folderPath = packageFolder.getAbsolutePath();
+        String filePath = file.getAbsolutePath();
+        if (!filePath.startsWith(folderPath + File.separator)) {
+            return null;
+        }
+
+        return filePath.substring(folderPath.length() + 1).replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Hashes {@code file} in chunks mapped one at a time. When {@code expectedChunkHashes} is given,
+     * stops and returns null at the first chunk that does not match it.
+     */
+    private static List<String> computeChunkHashes(File file, long chunkSize, List<String> expectedChunkHashes) throws IOException {
+        List<String> chunkHashes = new ArrayList<>();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            long fileSize = channel.size();
+            MessageDigest messageDigest = CodePushUpdateUtils.createMessageDigest();
+            for (long position = 0; position < fileSize || position == 0; position += chunkSize) {
+                long length = Math.min(chunkSize, fileSize - position);
+                if (length > 0) {
+                    messageDigest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+                }
+
+                String chunkHash = CodePushUpdateUtils.toHexString(messageDigest.digest());
+                if (expectedChunkHashes != null
+                        && (chunkHashes.size() >= expectedChunkHashes.size() || !chunkHash.equals(expectedChunkHashes.get(chunkHashes.size())))) {
+                    CodePushUtils.log("Chunk " + chunkHashes.size() + " of " + file.getName() + " does not match its installed hash.");
+                    return null;
+                }
+                chunkHashes.add(chunkHash);
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+
+        return chunkHashes;
+    }
+
+    private static String hashChunkHashes(List<String> chunkHashes) {
+        MessageDigest messageDigest = CodePushUpdateUtils.createMessageDigest();
+        for (String chunkHash : chunkHashes) {
+            messageDigest.update(chunkHash.getBytes(UTF_8));
+        }
+
+        return CodePushUpdateUtils.toHexString(messageDigest.digest());
+    }
+
+    private static String computeRoot(JSONObject files) {
+        List<String> relativePaths = new ArrayList<>();
+        Iterator<String> pathIterator = files.keys();
+        while (pathIterator.hasNext()) {
+            relativePaths.add(pathIterator.next());
+        }
+        Collections.sort(relativePaths);
+
+        MessageDigest messageDigest = CodePushUpdateUtils.createMessageDigest();
+        for (String relativePath : relativePaths) {
+            messageDigest.update((relativePath + "\u0000" + files.optString(relativePath) + "\n").getBytes(UTF_8));
+        }
+
+        return CodePushUpdateUtils.toHexString(messageDigest.digest());
+    }
+
+    /**
+     * The chunk size and chunk hashes recorded for a bundle.
+     */
+    static class BundleChunks {
+        static final BundleChunks NONE = new BundleChunks(0, Collections.<String>emptyList());
+
+        private final long mChunkSize;
+        private final List<String> mChunkHashes;
+
+        BundleChunks(long chunkSize, List<String> chunkHashes) {
+            mChunkSize = chunkSize;
+            mChunkHashes = chunkHashes;
+        }
+
+        public long getChunkSize() {
+            return mChunkSize;
+        }
+
+        public List<String> getChunkHashes() {
+            return mChunkHashes;
+        }
+    }
+}
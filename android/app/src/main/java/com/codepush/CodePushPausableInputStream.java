@@ -0,0 +1,202 @@
+package com.codepush;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Locale;
+
+/**
+ * Body of a download connection that survives a pause of its {@link CodePushDownloadControl}: the
+ * connection is dropped while paused and, on resume, reopened with a Range request starting at
+ * the first byte not read yet, so everything above this stream (digests, inflaters, files) carries
+ * on where it stopped. A cancel surfaces as a {@link CodePushDownloadCancelledException}. Reads
+ * are also held back by a {@link CodePushBandwidthLimiter}, which throttles every stream under it.
+ */
+class CodePushPausableInputStream extends InputStream {
+    // How long a throttled read waits for bandwidth before checking for a pause or cancel.
+    private static final long THROTTLE_POLL_MILLIS = 100;
+
+    private final CodePushHttpTransport mTransport;
+    private final URL mDownloadUrl;
+    private final String mValidator;
+    private final long mLastByte;
+    private final CodePushDownloadControl mControl;
+    private final CodePushBandwidthLimiter mLimiter;
+    private final String mAcceptEncoding;
+    private final String mContentEncoding;
+    private CodePushHttpConnection mConnection;
+    private InputStream mInputStream;
+    private int mConnectionPauseCount;
+    private long mPosition;
+
+    /**
+     * @param transport  the transport {@code connection} was opened with, which reconnects.
+     * @param connection the already opened connection, serving the resource from {@code firstByte}.
+     * @param validator  the ETag or Last-Modified value the resource must still have on resume, if any.
+     * @param lastByte   the last byte of the requested range, or -1 for the end of the resource.
+     */
+    public CodePushPausableInputStream(CodePushHttpTransport transport, CodePushHttpConnection connection, URL downloadUrl, String validator,
+                                       long firstByte, long lastByte, CodePushDownloadControl control, CodePushBandwidthLimiter limiter) throws IOException {
+        this(transport, connection, downloadUrl, validator, firstByte, lastByte, control, limiter, "identity");
+    }
+
+    /**
+     * @param acceptEncoding the Accept-Encoding the connection was opened with. Positions are
+     *                       counted in bytes of the encoded body, so a compressed body can only be
+     *                       resumed if the server serves the very same bytes again.
+     */
+    public CodePushPausableInputStream(CodePushHttpTransport transport, CodePushHttpConnection connection, URL downloadUrl, String validator,
+                                       long firstByte, long lastByte, CodePushDownloadControl control, CodePushBandwidthLimiter limiter,
+                                       String acceptEncoding) throws IOException {
+        mTransport = transport;
+        mDownloadUrl = downloadUrl;
+        mValidator = validator;
+        mLastByte = lastByte;
+        mControl = control;
+        mLimiter = limiter;
+        mAcceptEncoding = acceptEncoding;
+        mContentEncoding = getContentEncoding(connection);
+        mPosition = firstByte;
+        mConnectionPauseCount = control.getPauseCount();
+        mConnection = connection;
+        mControl.register(connection);
+        mInputStream = connection.getInputStream();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] data = new byte[1];
+        int numBytesRead = read(data, 0, 1);
+        return numBytesRead > 0 ? data[0] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        while (true) {
+            ensureConnected();
+            int allowedBytes = mLimiter.acquire(length, THROTTLE_POLL_MILLIS);
+            if (allowedBytes == 0) {
+                continue;
+            }
+
+            int numBytesRead = -1;
+            try {
+                numBytesRead = mInputStream.read(buffer, offset, allowedBytes);
+                if (numBytesRead > 0) {
+                    mPosition += numBytesRead;
+                }
+                return numBytesRead;
+            } catch (IOException e) {
+                if (!isInterrupted()) {
+                    throw e;
+                }
+            } finally {
+                mLimiter.release(allowedBytes - Math.max(0, numBytesRead));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeConnection();
+    }
+
+    private boolean isInterrupted() {
+        return mControl.isCancelled() || mControl.getPauseCount() != mConnectionPauseCount;
+    }
+
+    /**
+     * Waits out a pause and reconnects if the connection was dropped for it.
+     */
+    private void ensureConnected() throws IOException {
+        while (true) {
+            mControl.awaitRunning();
+            if (mControl.getPauseCount() == mConnectionPauseCount) {
+                return;
+            }
+
+            closeConnection();
+            try {
+                reconnect();
+            } catch (IOException e) {
+                if (!isInterrupted()) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void reconnect() throws IOException {
+        mConnectionPauseCount = mControl.getPauseCount();
+        if (!mContentEncoding.equals("identity") && (mValidator == null || !mValidator.startsWith("\""))) {
+            // Compressing on the fly may not give the same bytes twice, and only a strong ETag says
+            // it does; a Last-Modified date only covers the uncompressed resource.
+            throw new CodePushUnknownException("The compressed download of the update can't be resumed.");
+        }
+
+        CodePushHttpConnection connection = mTransport.openConnection(mDownloadUrl);
+        mConnection = connection;
+        mControl.register(connection);
+        connection.setRequestProperty("Accept-Encoding", mAcceptEncoding);
+        connection.setRequestProperty("Range", "bytes=" + mPosition + "-" + (mLastByte >= 0 ? String.valueOf(mLastByte) : ""));
+        if (mValidator != null) {
+            connection.setRequestProperty("If-Range", mValidator);
+        }
+
+        CodePushUtils.log("Resuming download of update at byte " + mPosition + ".");
+        int responseCode = connection.getResponseCode();
+        if (!getContentEncoding(connection).equals(mContentEncoding)) {
+            throw new CodePushUnknownException("The update changed encoding while its download was paused.");
+        } else if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+            long[] contentRange = CodePushUpdateUtils.parseContentRange(connection.getHeaderField("Content-Range"));
+            if (contentRange == null || contentRange[0] != mPosition) {
+                throw new CodePushUnknownException("The server did not resume the download at byte " + mPosition + ".");
+            }
+            mInputStream = connection.getInputStream();
+        } else if (responseCode == HttpURLConnection.HTTP_OK && mValidator == null) {
+            // Without a validator the server can't be asked for a range of the same version, so
+            // fetch it all again and drop what was already read.
+            mInputStream = connection.getInputStream();
+            skipFully(mInputStream, mPosition);
+        } else {
+            throw new CodePushUnknownException("The update changed on the server while its download was paused.");
+        }
+    }
+
+    private void closeConnection() {
+        if (mConnection == null) {
+            return;
+        }
+
+        mControl.unregister(mConnection);
+        try {
+            if (mInputStream != null) mInputStream.close();
+        } catch (IOException e) {
+            // The connection may already have been dropped by a pause or cancel.
+        }
+        mConnection.close();
+        mConnection = null;
+        mInputStream = null;
+    }
+
+    private static String getContentEncoding(CodePushHttpConnection connection) {
+        String contentEncoding = connection.getHeaderField("Content-Encoding");
+        return contentEncoding == null ? "identity" : contentEncoding.trim().toLowerCase(Locale.US);
+    }
+
+    private static void skipFully(InputStream inputStream, long count) throws IOException {
+        byte[] data = new byte[CodePushConstants.DOWNLOAD_BUFFER_SIZE];
+        while (count > 0) {
+            int numBytesRead = inputStream.read(data, 0, (int) Math.min(data.length, count));
+            if (numBytesRead < 0) {
+                throw new CodePushUnknownException("The update is shorter than before its download was paused.");
+            }
+            count -= numBytesRead;
+        }
+    }
+}
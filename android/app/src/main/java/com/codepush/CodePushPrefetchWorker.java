@@ -0,0 +1,107 @@
+package com.codepush;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+
+import androidx.work.BackoffPolicy;
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.NetworkType;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs {@link CodePushPrefetcher} when WorkManager finds the constraints set by
+ * {@link #createRequest} met. If they stop being met, the download is cancelled and WorkManager
+ * retries it the next time they are. The prefetch goes through the update manager of the
+ * {@link CodePush} instance of the process and is skipped if the app has not created one, e.g.
+ * in {@link android.app.Application#onCreate}.
+ */
+public class CodePushPrefetchWorker extends Worker {
+    static final String UNIQUE_WORK_NAME = "CodePushPrefetch";
+    static final String SERVER_URL_KEY = "serverUrl";
+    static final String APP_NAME_KEY = "appName";
+    static final String BUNDLE_FILE_NAME_KEY = "bundleFileName";
+    private static final long BACKOFF_MINUTES = 30;
+
+    private final CodePushDownloadControl mDownloadControl = new CodePushDownloadControl();
+
+    public CodePushPrefetchWorker(Context context, WorkerParameters workerParams) {
+        super(context, workerParams);
+    }
+
+    /**
+     * Builds the request scheduled by {@link CodePush#schedulePrefetch(long)}. Where the device
+     * idle constraint exists, a retried prefetch waits for the next idle window; WorkManager
+     * rejects backoff criteria on such idle mode jobs, so they are only set without it.
+     */
+    static PeriodicWorkRequest createRequest(String serverUrl, String appName, String bundleFileName, long repeatIntervalHours) {
+        Constraints.Builder constraints = new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.UNMETERED)
+                .setRequiresCharging(true)
+                .setRequiresStorageNotLow(true);
+        Data inputData = new Data.Builder()
+                .putString(SERVER_URL_KEY, serverUrl)
+                .putString(APP_NAME_KEY, appName)
+                .putString(BUNDLE_FILE_NAME_KEY, bundleFileName)
+                .build();
+        PeriodicWorkRequest.Builder requestBuilder = new PeriodicWorkRequest.Builder(CodePushPrefetchWorker.class, repeatIntervalHours, TimeUnit.HOURS)
+                .setInputData(inputData);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            constraints.setRequiresDeviceIdle(true);
+        } else {
+            requestBuilder.setBackoffCriteria(BackoffPolicy.EXPONENTIAL, BACKOFF_MINUTES, TimeUnit.MINUTES);
+        }
+
+        return requestBuilder.setConstraints(constraints.build()).build();
+    }
+
+    @Override
+    public Result doWork() {
+        Data inputData = getInputData();
+        String serverUrl = inputData.getString(SERVER_URL_KEY);
+        String appName = inputData.getString(APP_NAME_KEY);
+        String bundleFileName = inputData.getString(BUNDLE_FILE_NAME_KEY);
+        if (serverUrl == null || appName == null || bundleFileName == null) {
+            return Result.failure();
+        }
+
+        Context context = getApplicationContext();
+        String appVersion;
+        try {
+            appVersion = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionName;
+        } catch (PackageManager.NameNotFoundException e) {
+            CodePushUtils.log(e);
+            return Result.failure();
+        }
+
+        // Only the app's own update manager carries its public key and settings, and shares its
+        // locks with the app. Without one, the update is left for the app to fetch itself.
+        CodePushUpdateManager updateManager = CodePush.getCurrentUpdateManager();
+        if (updateManager == null) {
+            CodePushUtils.log("Skipping the prefetch, CodePush is not set up in this process.");
+            return Result.success();
+        }
+
+        CodePushPrefetcher prefetcher = new CodePushPrefetcher(updateManager,
+                new CodePushUpdateChecker(serverUrl, appName, appVersion, updateManager.getUpdateCheckCache(),
+                updateManager.getHttpTransport()), bundleFileName);
+        switch (prefetcher.prefetch(mDownloadControl)) {
+            case RETRY:
+                return Result.retry();
+            case FAILED:
+                return Result.failure();
+            default:
+                return Result.success();
+        }
+    }
+
+    @Override
+    public void onStopped() {
+        mDownloadControl.cancel();
+    }
+}
@@ -0,0 +1,59 @@
+package com.codepush;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+
+/**
+ * One background prefetch: checks for an update and, if there is one that isn't installed or
+ * staged yet, downloads it and stages it for the next cold start. Kept free of Android
+ * scheduling classes so that it can run against a local server on a plain JVM.
+ */
+class CodePushPrefetcher {
+    enum Result {
+        /** There is nothing newer than the installed or staged package. */
+        NO_UPDATE,
+        /** An update was downloaded and staged. */
+        STAGED,
+        /** The check or download failed in a way that may go away, e.g. the network dropped. */
+        RETRY,
+        /** The update was rejected; trying again would fetch the same rejected update. */
+        FAILED
+    }
+
+    private final CodePushUpdateManager mUpdateManager;
+    private final CodePushSync mSync;
+
+    public CodePushPrefetcher(CodePushUpdateManager updateManager, CodePushUpdateChecker updateChecker, String bundleFileName) {
+        mUpdateManager = updateManager;
+        mSync = new CodePushSync(updateManager, updateChecker, bundleFileName);
+    }
+
+    public Result prefetch(CodePushDownloadControl control) {
+        String currentPackageHash = mUpdateManager.getCurrentPackageHash();
+        try {
+            JSONObject updatePackage = mSync.sync(currentPackageHash.equals("-1") ? null : currentPackageHash, true,
+                    new DownloadProgress(new DownloadProgressCallback() {
+                        @Override
+                        public void call(DownloadProgress downloadProgress) {
+                        }
+                    }), control, new CodePushSync.StatusCallback() {
+                        @Override
+                        public void call(CodePushSync.Status status) {
+                        }
+                    });
+            if (updatePackage == null) {
+                return Result.NO_UPDATE;
+            }
+
+            CodePushUtils.log("Prefetched update " + updatePackage.optInt(CodePushConstants.PACKAGE_LABEL_KEY) + ".");
+            return Result.STAGED;
+        } catch (CodePushInvalidUpdateException | CodePushMalformedDataException e) {
+            CodePushUtils.log(e);
+            return Result.FAILED;
+        } catch (IOException | CodePushUnknownException | CodePushDownloadCancelledException e) {
+            CodePushUtils.log(e);
+            return Result.RETRY;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.codepush;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sends the requests of another transport again when they fail before a response arrives or get
+ * a response that says to try later (408, 429, 500, 502, 503 and 504), waiting twice as long
+ * before each retry. Failures while reading a body are not retried here; resumable downloads pick
+ * those up where they stopped.
+ */
+class CodePushRetryingTransport implements CodePushHttpTransport {
+    private final CodePushHttpTransport mTransport;
+    private final int mMaxRetries;
+    private final long mInitialBackoffMillis;
+
+    public CodePushRetryingTransport(CodePushHttpTransport transport, int maxRetries, long initialBackoffMillis) {
+        mTransport = transport;
+        mMaxRetries = maxRetries;
+        mInitialBackoffMillis = initialBackoffMillis;
+    }
+
+    @Override
+    public CodePushHttpConnection openConnection(URL url) throws IOException {
+        return new RetryingConnection(url, mTransport.openConnection(url));
+    }
+
+    private static boolean isRetryableResponseCode(int responseCode) {
+        return responseCode == 408 || responseCode == 429 || responseCode == 500
+                || responseCode == 502 || responseCode == 503 || responseCode == 504;
+    }
+
+    private class RetryingConnection implements CodePushHttpConnection {
+        private final URL mUrl;
+        private final Map<String, String> mRequestProperties = new LinkedHashMap<>();
+        private CodePushHttpConnection mConnection;
+        private boolean mIsDisconnected;
+        private int mResponseCode = -1;
+        private IOException mFailure;
+
+        RetryingConnection(URL url, CodePushHttpConnection connection) {
+            mUrl = url;
+            mConnection = connection;
+        }
+
+        @Override
+        public void setRequestProperty(String key, String value) {
+            mRequestProperties.put(key, value);
+            mConnection.setRequestProperty(key, value);
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            if (mResponseCode != -1) {
+                return mResponseCode;
+            } else if (mFailure != null) {
+                // Header getters swallow the failure, so the request must not be retried again.
+                throw mFailure;
+            }
+
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    int responseCode = getConnection().getResponseCode();
+                    if (attempt >= mMaxRetries || !isRetryableResponseCode(responseCode)) {
+                        mResponseCode = responseCode;
+                        return responseCode;
+                    }
+                    CodePushUtils.log("Request for " + mUrl + " failed with HTTP " + responseCode + ", retrying.");
+                } catch (IOException e) {
+                    if (attempt >= mMaxRetries || isDisconnected()) {
+                        mFailure = e;
+                        throw e;
+                    }
+                    CodePushUtils.log("Request for " + mUrl + " failed with " + e + ", retrying.");
+                }
+
+                getConnection().close();
+                waitBeforeRetry(mInitialBackoffMillis << Math.min(attempt, 16));
+                reopen();
+            }
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            try {
+                getResponseCode();
+            } catch (IOException e) {
+                return null;
+            }
+            return getConnection().getHeaderField(name);
+        }
+
+        @Override
+        public long getContentLength() {
+            try {
+                getResponseCode();
+            } catch (IOException e) {
+                return -1;
+            }
+            return getConnection().getContentLength();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            getResponseCode();
+            return getConnection().getInputStream();
+        }
+
+        @Override
+        public void close() {
+            getConnection().close();
+        }
+
+        @Override
+        public void disconnect() {
+            CodePushHttpConnection connection;
+            synchronized (this) {
+                mIsDisconnected = true;
+                connection = mConnection;
+                notifyAll();
+            }
+            connection.disconnect();
+        }
+
+        private synchronized CodePushHttpConnection getConnection() {
+            return mConnection;
+        }
+
+        private synchronized boolean isDisconnected() {
+            return mIsDisconnected;
+        }
+
+        private synchronized void waitBeforeRetry(long delayMillis) throws IOException {
+            long deadline = System.currentTimeMillis() + delayMillis;
+            long remainingMillis = delayMillis;
+            while (!mIsDisconnected && remainingMillis > 0) {
+                try {
+                    wait(remainingMillis);
+                } catch (InterruptedException e) {
+                    throw new CodePushUnknownException("Interrupted while waiting to retry a request.", e);
+                }
+                remainingMillis = deadline - System.currentTimeMillis();
+            }
+
+            if (mIsDisconnected) {
+                throw new IOException("The request was aborted.");
+            }
+        }
+
+        private void reopen() throws IOException {
+            CodePushHttpConnection connection = mTransport.openConnection(mUrl);
+            for (Map.Entry<String, String> requestProperty : mRequestProperties.entrySet()) {
+                connection.setRequestProperty(requestProperty.getKey(), requestProperty.getValue());
+            }
+
+            synchronized (this) {
+                mConnection = connection;
+                if (!mIsDisconnected) {
+                    return;
+                }
+            }
+            connection.disconnect();
+        }
+    }
+}
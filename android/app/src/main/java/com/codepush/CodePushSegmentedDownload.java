@@ -0,0 +1,197 @@
+package com.codepush;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads an update as several byte ranges fetched concurrently, each written at its own offset
+ * of a preallocated file. The first segment reuses the connection that was opened to probe the
+ * server, the remaining ones are requested with Range and If-Range headers.
+ */
+class CodePushSegmentedDownload {
+    private final CodePushHttpTransport mTransport;
+    private final CodePushBandwidthLimiter mLimiter;
+    private final URL mDownloadUrl;
+    private final String mValidator;
+    private final long mTotalBytes;
+    private final int mSegmentCount;
+    private final int mMinBufferSize;
+    private final int mMaxBufferSize;
+    private final DownloadProgress mProgress;
+    private final CodePushDownloadControl mControl;
+
+    private volatile long mContiguousBytes = 0;
+    private volatile boolean mFailed = false;
+
+    /**
+     * @param minBufferSize the smallest read buffer of each segment, see {@link CodePushDownloadBuffer}.
+     * @param maxBufferSize the largest read buffer of each segment.
+     */
+    public CodePushSegmentedDownload(CodePushHttpTransport transport, CodePushBandwidthLimiter limiter, URL downloadUrl, String validator,
+                                     long totalBytes, int segmentCount, int minBufferSize, int maxBufferSize,
+                                     DownloadProgress progress, CodePushDownloadControl control) {
+        mTransport = transport;
+        mLimiter = limiter;
+        mDownloadUrl = downloadUrl;
+        mValidator = validator;
+        mTotalBytes = totalBytes;
+        mSegmentCount = segmentCount;
+        mMinBufferSize = minBufferSize;
+        mMaxBufferSize = maxBufferSize;
+        mProgress = progress;
+        mControl = control;
+    }
+
+    /**
+     * Number of bytes from the start of the file that are known to be written, which is what a
+     * resumed download can safely keep if this one fails part way.
+     */
+    public long getContiguousBytes() {
+        return mContiguousBytes;
+    }
+
+    public void download(CodePushHttpConnection firstSegmentConnection, File downloadFile) throws IOException {
+        RandomAccessFile file = null;
+        ExecutorService executor = null;
+        try {
+            file = new RandomAccessFile(downloadFile, "rw");
+            file.setLength(mTotalBytes);
+            mProgress.reset(mTotalBytes, 0);
+            final FileChannel channel = file.getChannel();
+            long segmentSize = (mTotalBytes + mSegmentCount - 1) / mSegmentCount;
+
+            executor = Executors.newFixedThreadPool(mSegmentCount - 1);
+            List<Future<Void>> segmentFutures = new ArrayList<>();
+            for (int i = 1; i < mSegmentCount; i++) {
+                final long firstByte = i * segmentSize;
+                final long lastByte = Math.min(mTotalBytes, firstByte + segmentSize) - 1;
+                segmentFutures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        downloadSegment(openSegmentConnection(firstByte, lastByte), channel, firstByte, lastByte);
+                        return null;
+                    }
+                }));
+            }
+
+            downloadSegment(firstSegmentConnection, channel, 0, segmentSize - 1);
+            firstSegmentConnection = null;
+
+            for (Future<Void> segmentFuture : segmentFutures) {
+                try {
+                    segmentFuture.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new CodePushUnknownException("Error downloading update segment.", cause);
+                } catch (InterruptedException e) {
+                    throw new CodePushUnknownException("Interrupted while downloading update segments.", e);
+                }
+            }
+
+            mContiguousBytes = mTotalBytes;
+        } catch (IOException | RuntimeException e) {
+            mFailed = true;
+            throw e;
+        } finally {
+            if (firstSegmentConnection != null) firstSegmentConnection.close();
+            if (executor != null) executor.shutdownNow();
+            if (file != null && mFailed && mContiguousBytes > 0) {
+                forceContiguousBytes(file);
+            }
+            try {
+                if (file != null) file.close();
+            } catch (IOException e) {
+                throw new CodePushUnknownException("Error closing IO resources.", e);
+            }
+        }
+    }
+
+    /**
+     * Gets the contiguous bytes onto the disk before the journal records them for a resumed
+     * download, or stops vouching for them if that fails.
+     */
+    private void forceContiguousBytes(RandomAccessFile file) {
+        try {
+            file.getChannel().force(false);
+        } catch (IOException e) {
+            CodePushUtils.log(e);
+            mContiguousBytes = 0;
+        }
+    }
+
+    private CodePushHttpConnection openSegmentConnection(long firstByte, long lastByte) throws IOException {
+        CodePushHttpConnection connection = mTransport.openConnection(mDownloadUrl);
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        connection.setRequestProperty("Range", "bytes=" + firstByte + "-" + lastByte);
+        connection.setRequestProperty("If-Range", mValidator);
+
+        long[] contentRange = CodePushUpdateUtils.parseContentRange(connection.getHeaderField("Content-Range"));
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL
+                || contentRange == null || contentRange[0] != firstByte || contentRange[1] != mTotalBytes) {
+            connection.close();
+            throw new CodePushUnknownException("The server did not honour the range request for bytes " + firstByte + "-" + lastByte + ".");
+        }
+
+        return connection;
+    }
+
+    private void downloadSegment(CodePushHttpConnection connection, FileChannel channel, long firstByte, long lastByte) throws IOException {
+        InputStream inputStream = null;
+        try {
+            inputStream = new CodePushPausableInputStream(mTransport, connection, mDownloadUrl, mValidator, firstByte, lastByte, mControl, mLimiter);
+            CodePushDownloadBuffer downloadBuffer = new CodePushDownloadBuffer(mMinBufferSize, mMaxBufferSize);
+            long position = firstByte;
+            long remainingBytes = lastByte - firstByte + 1;
+            while (remainingBytes > 0 && !mFailed) {
+                int numBytesRead = downloadBuffer.fill(inputStream, remainingBytes);
+                if (numBytesRead < 0) {
+                    break;
+                }
+
+                ByteBuffer buffer = ByteBuffer.wrap(downloadBuffer.getData(), 0, numBytesRead);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+
+                remainingBytes -= numBytesRead;
+                if (firstByte == 0) {
+                    mContiguousBytes = position;
+                }
+                onBytesReceived(numBytesRead);
+            }
+
+            if (remainingBytes > 0) {
+                throw new CodePushUnknownException("Received " + (position - firstByte) + " bytes for range " + firstByte + "-" + lastByte + ", expected " + (lastByte - firstByte + 1));
+            }
+        } finally {
+            try {
+                if (inputStream != null) inputStream.close();
+            } catch (IOException e) {
+                CodePushUtils.log(e);
+            }
+            connection.close();
+        }
+    }
+
+    private void onBytesReceived(int count) {
+        mProgress.addReceivedBytes(count);
+    }
+}
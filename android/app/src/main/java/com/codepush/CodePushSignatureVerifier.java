@@ -0,0 +1,90 @@
+package com.codepush;
+
+import android.util.Base64;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.crypto.RSASSAVerifier;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+
+import org.json.JSONObject;
+
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.text.ParseException;
+
+/**
+ * Checks the signature published with an update: an RS256 JWT whose claims carry the archive
+ * hashes of the update metadata. Once the signature holds, the hashes in the metadata can be
+ * trusted and the downloaded bytes are only compared against them.
+ */
+class CodePushSignatureVerifier {
+    private static final String[] SIGNED_HASH_KEYS = {
+            CodePushConstants.PACKAGE_HASH_KEY,
+            CodePushConstants.FULL_PACKAGE_HASH_KEY
+    };
+
+    private final RSAPublicKey mPublicKey;
+
+    /**
+     * @param publicKey the X.509 encoded RSA public key, either PEM armoured or plain base64.
+     */
+    public CodePushSignatureVerifier(String publicKey) {
+        String encodedKey = publicKey
+                .replace("-----BEGIN PUBLIC KEY-----", "")
+                .replace("-----END PUBLIC KEY-----", "")
+                .replaceAll("\\s", "");
+        try {
+            byte[] keyBytes = Base64.decode(encodedKey, Base64.DEFAULT);
+            mPublicKey = (RSAPublicKey) KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(keyBytes));
+        } catch (IllegalArgumentException | InvalidKeySpecException | ClassCastException e) {
+            throw new CodePushUnknownException("The CodePush public key is not a valid RSA public key.", e);
+        } catch (NoSuchAlgorithmException e) {
+            // Should not happen.
+            throw new CodePushUnknownException("RSA is not available on this device.", e);
+        }
+    }
+
+    /**
+     * Verifies the signature of {@code updatePackage} and that every hash it publishes is one that
+     * was signed. Fills in {@link CodePushConstants#PACKAGE_HASH_KEY} from the signature if the
+     * metadata itself does not carry it.
+     */
+    public void verify(JSONObject updatePackage) {
+        String signature = updatePackage.optString(CodePushConstants.PACKAGE_SIGNATURE_KEY, null);
+        if (signature == null) {
+            throw new CodePushInvalidUpdateException("Update is invalid - a public key is configured but the update is not signed.");
+        }
+
+        try {
+            SignedJWT signedJWT = SignedJWT.parse(signature);
+            if (!signedJWT.verify(new RSASSAVerifier(mPublicKey))) {
+                throw new CodePushInvalidUpdateException("Update is invalid - its signature does not match the configured public key.");
+            }
+
+            JWTClaimsSet claims = signedJWT.getJWTClaimsSet();
+            for (String hashKey : SIGNED_HASH_KEYS) {
+                String signedHash = claims.getStringClaim(hashKey);
+                String publishedHash = updatePackage.optString(hashKey, null);
+                if (publishedHash == null) {
+                    if (signedHash != null) {
+                        CodePushUtils.setJSONValueForKey(updatePackage, hashKey, signedHash);
+                    }
+                } else if (!publishedHash.equals(signedHash)) {
+                    throw new CodePushInvalidUpdateException("Update is invalid - its " + hashKey + " is not covered by its signature.");
+                }
+            }
+
+            if (updatePackage.optString(CodePushConstants.PACKAGE_HASH_KEY, null) == null) {
+                throw new CodePushInvalidUpdateException("Update is invalid - its signature does not name a " + CodePushConstants.PACKAGE_HASH_KEY + ".");
+            }
+        } catch (ParseException e) {
+            throw new CodePushInvalidUpdateException("Update is invalid - its signature is malformed.");
+        } catch (JOSEException e) {
+            throw new CodePushInvalidUpdateException("Update is invalid - its signature could not be verified: " + e.getMessage());
+        }
+    }
+}
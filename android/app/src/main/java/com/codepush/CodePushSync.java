@@ -0,0 +1,108 @@
+package com.codepush;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+
+/**
+ * Checks for an update and, if there is one, downloads and installs or stages it. The download and
+ * the install can also be run separately, so that each can run on the thread meant for it. Like
+ * {@link CodePushPrefetcher}, it is kept free of React Native classes so that it can run against a
+ * local server on a plain JVM.
+ */
+class CodePushSync {
+    /**
+     * The statuses reported along the way, numbered like the {@code SyncStatus} of the CodePush JS
+     * API.
+     */
+    enum Status {
+        UP_TO_DATE(0),
+        UPDATE_INSTALLED(1),
+        CHECKING_FOR_UPDATE(5),
+        DOWNLOADING_PACKAGE(7),
+        INSTALLING_UPDATE(8);
+
+        private final int mValue;
+
+        Status(int value) {
+            mValue = value;
+        }
+
+        public int getValue() {
+            return mValue;
+        }
+    }
+
+    interface StatusCallback {
+        void call(Status status);
+    }
+
+    private final CodePushUpdateManager mUpdateManager;
+    private final CodePushUpdateChecker mUpdateChecker;
+    private final String mBundleFileName;
+
+    public CodePushSync(CodePushUpdateManager updateManager, CodePushUpdateChecker updateChecker, String bundleFileName) {
+        mUpdateManager = updateManager;
+        mUpdateChecker = updateChecker;
+        mBundleFileName = bundleFileName;
+    }
+
+    /**
+     * Returns the metadata of the update that was installed or staged, or null if there is nothing
+     * newer than the installed or staged package. Runs {@link #download} and {@link #install}
+     * back to back.
+     */
+    public JSONObject sync(String currentPackageHash, boolean stage, DownloadProgress progress, CodePushDownloadControl control,
+                           StatusCallback statusCallback) throws IOException {
+        JSONObject updatePackage = download(currentPackageHash, stage, progress, control, statusCallback);
+        if (updatePackage != null) {
+            install(updatePackage, stage, statusCallback);
+        }
+        return updatePackage;
+    }
+
+    /**
+     * Returns the metadata of the update that was downloaded, or null if there is nothing newer
+     * than the installed or staged package.
+     *
+     * @param currentPackageHash the label of the package running now, or null if it is the binary
+     *                           bundle or a package the app no longer runs.
+     * @param stage              whether the update will be staged for the next cold start, in which
+     *                           case the server is asked about updates to the staged package.
+     */
+    public JSONObject download(String currentPackageHash, boolean stage, DownloadProgress progress, CodePushDownloadControl control,
+                               StatusCallback statusCallback) throws IOException {
+        String pendingPackageHash = mUpdateManager.getPendingPackageHash();
+        // The server reports what is newest relative to what the next launch will run.
+        String latestPackageHash = stage && !pendingPackageHash.equals("-1") ? pendingPackageHash : currentPackageHash;
+
+        statusCallback.call(Status.CHECKING_FOR_UPDATE);
+        JSONObject updatePackage = mUpdateChecker.checkForUpdate(latestPackageHash);
+        String packageHash = updatePackage == null ? null : String.valueOf(updatePackage.optInt(CodePushConstants.PACKAGE_LABEL_KEY, -1));
+        if (packageHash == null || packageHash.equals(latestPackageHash) || packageHash.equals(currentPackageHash)) {
+            statusCallback.call(Status.UP_TO_DATE);
+            return null;
+        }
+
+        statusCallback.call(Status.DOWNLOADING_PACKAGE);
+        mUpdateManager.downloadPackage(updatePackage, mBundleFileName, progress, control);
+        return updatePackage;
+    }
+
+    /**
+     * Installs or stages an update returned by {@link #download}.
+     *
+     * @param stage whether to stage the update for the next cold start, see
+     *              {@link CodePushUpdateManager#stagePackage}, instead of installing it.
+     */
+    public void install(JSONObject updatePackage, boolean stage, StatusCallback statusCallback) {
+        statusCallback.call(Status.INSTALLING_UPDATE);
+        if (stage) {
+            mUpdateManager.stagePackage(updatePackage);
+        } else {
+            mUpdateManager.installPackage(updatePackage);
+        }
+
+        statusCallback.call(Status.UPDATE_INSTALLED);
+    }
+}
@@ -0,0 +1,176 @@
+package com.codepush;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * The last response of the update server, kept on disk so that the next update check can reuse
+ * it while the server's {@code Cache-Control: max-age} says it is fresh, and revalidate it with
+ * {@code If-None-Match} and {@code If-Modified-Since} once it is not. Only the response of the
+ * last request is kept: the request names the installed package, so installing another one moves
+ * on to a request that is not cached yet.
+ *
+ * Responses without a max-age are stored to be revalidated every time, and responses marked
+ * {@code no-store} are not stored.
+ */
+class CodePushUpdateCheckCache {
+    private static final String URL_KEY = "url";
+    private static final String ETAG_KEY = "etag";
+    private static final String LAST_MODIFIED_KEY = "lastModified";
+    private static final String DATE_KEY = "date";
+    private static final String MAX_AGE_KEY = "maxAge";
+    private static final String BODY_KEY = "body";
+
+    private final String mCachePath;
+
+    public CodePushUpdateCheckCache(String cachePath) {
+        mCachePath = cachePath;
+    }
+
+    /**
+     * Returns the cached response to a request for {@code url}, or null if there is none.
+     */
+    public JSONObject get(String url) {
+        if (!FileUtils.fileAtPathExists(mCachePath)) {
+            return null;
+        }
+
+        try {
+            JSONObject entry = CodePushUtils.getJsonObjectFromFile(mCachePath);
+            return url.equals(entry.optString(URL_KEY)) && entry.has(BODY_KEY) ? entry : null;
+        } catch (IOException | CodePushMalformedDataException e) {
+            CodePushUtils.log(e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns whether {@code entry} can be used without asking the server at {@code now}. A clock
+     * set back to before the response was received makes it stale.
+     */
+    public static boolean isFresh(JSONObject entry, long now) {
+        long date = entry.optLong(DATE_KEY);
+        return now >= date && now - date < entry.optLong(MAX_AGE_KEY);
+    }
+
+    public static String getBody(JSONObject entry) {
+        return entry.optString(BODY_KEY);
+    }
+
+    /**
+     * Sets the validators of {@code entry} on a request for it, making the server answer with a
+     * 304 if the response didn't change.
+     */
+    public static void addConditionalHeaders(JSONObject entry, CodePushHttpConnection connection) {
+        String etag = entry.optString(ETAG_KEY, null);
+        if (etag != null) {
+            connection.setRequestProperty("If-None-Match", etag);
+        }
+
+        String lastModified = entry.optString(LAST_MODIFIED_KEY, null);
+        if (lastModified != null) {
+            connection.setRequestProperty("If-Modified-Since", lastModified);
+        }
+    }
+
+    /**
+     * Stores {@code body}, the response to a request for {@code url} received at {@code now}.
+     */
+    public void put(String url, CodePushHttpConnection connection, String body, long now) {
+        long maxAge = getMaxAgeMillis(connection.getHeaderField("Cache-Control"), connection.getHeaderField("Age"));
+        if (maxAge < 0) {
+            clear();
+            return;
+        }
+
+        JSONObject entry = new JSONObject();
+        CodePushUtils.setJSONValueForKey(entry, URL_KEY, url);
+        CodePushUtils.setJSONValueForKey(entry, ETAG_KEY, connection.getHeaderField("ETag"));
+        CodePushUtils.setJSONValueForKey(entry, LAST_MODIFIED_KEY, connection.getHeaderField("Last-Modified"));
+        CodePushUtils.setJSONValueForKey(entry, BODY_KEY, body);
+        write(entry, now, maxAge);
+    }
+
+    /**
+     * Marks {@code entry} as revalidated by a 304 received at {@code now}, taking the caching
+     * headers of the 304 over those of the response it revalidated.
+     */
+    public void refresh(JSONObject entry, CodePushHttpConnection connection, long now) {
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        long maxAge = cacheControl == null ? entry.optLong(MAX_AGE_KEY) : getMaxAgeMillis(cacheControl, connection.getHeaderField("Age"));
+        if (maxAge < 0) {
+            clear();
+            return;
+        }
+
+        String etag = connection.getHeaderField("ETag");
+        if (etag != null) {
+            CodePushUtils.setJSONValueForKey(entry, ETAG_KEY, etag);
+        }
+
+        String lastModified = connection.getHeaderField("Last-Modified");
+        if (lastModified != null) {
+            CodePushUtils.setJSONValueForKey(entry, LAST_MODIFIED_KEY, lastModified);
+        }
+        write(entry, now, maxAge);
+    }
+
+    public void clear() {
+        new File(mCachePath).delete();
+        new File(FileUtils.getBackupFilePath(mCachePath)).delete();
+    }
+
+    private void write(JSONObject entry, long now, long maxAge) {
+        CodePushUtils.setJSONValueForKey(entry, DATE_KEY, now);
+        CodePushUtils.setJSONValueForKey(entry, MAX_AGE_KEY, maxAge);
+        try {
+            new File(mCachePath).getParentFile().mkdirs();
+            CodePushUtils.writeJsonToFile(entry, mCachePath);
+        } catch (IOException e) {
+            // The next check just asks the server again.
+            CodePushUtils.log(e);
+        }
+    }
+
+    /**
+     * Returns for how long a response stays fresh, 0 if it has to be revalidated every time, or -1
+     * if it must not be stored.
+     */
+    private static long getMaxAgeMillis(String cacheControl, String age) {
+        if (cacheControl == null) {
+            return 0;
+        }
+
+        long maxAgeSeconds = 0;
+        boolean noCache = false;
+        for (String directive : cacheControl.toLowerCase(Locale.US).split(",")) {
+            directive = directive.trim();
+            if (directive.equals("no-store")) {
+                return -1;
+            } else if (directive.equals("no-cache")) {
+                noCache = true;
+            } else if (directive.startsWith("max-age=")) {
+                maxAgeSeconds = parseSeconds(directive.substring("max-age=".length()));
+            }
+        }
+
+        if (noCache) {
+            return 0;
+        }
+
+        // Time the response already spent in caches on the way counts against its max-age.
+        long ageSeconds = age == null ? 0 : parseSeconds(age.trim());
+        return Math.max(0, maxAgeSeconds - ageSeconds) * 1000;
+    }
+
+    private static long parseSeconds(String value) {
+        try {
+            return Math.max(0, Long.parseLong(value.replace("\"", "")));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.codepush;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+
+/**
+ * Asks the update server for the latest update of this binary, the same way the JS side does, so
+ * that updates can be checked for without a JS context. Given a response cache, responses are
+ * reused and revalidated as the server's caching headers allow.
+ */
+class CodePushUpdateChecker {
+    private final String mServerUrl;
+    private final String mAppName;
+    private final String mAppVersion;
+    private final CodePushUpdateCheckCache mResponseCache;
+    private final CodePushHttpTransport mTransport;
+
+    /**
+     * @param serverUrl the base URL of the update API, ending with a slash; download URLs returned
+     *                  by the server are relative to it.
+     */
+    public CodePushUpdateChecker(String serverUrl, String appName, String appVersion) {
+        this(serverUrl, appName, appVersion, null, new CodePushUrlConnectionTransport());
+    }
+
+    /**
+     * @param responseCache where to keep the last response, or null to always ask the server.
+     */
+    public CodePushUpdateChecker(String serverUrl, String appName, String appVersion, CodePushUpdateCheckCache responseCache,
+                                 CodePushHttpTransport transport) {
+        mServerUrl = serverUrl;
+        mAppName = appName;
+        mAppVersion = appVersion;
+        mResponseCache = responseCache;
+        mTransport = transport;
+    }
+
+    /**
+     * Returns the metadata of the latest update for this binary, ready to be passed to
+     * {@link CodePushUpdateManager#downloadPackage}, or null if the server has none.
+     *
+     * @param currentPackageHash the bundle version installed now, or null if running the binary bundle.
+     */
+    public JSONObject checkForUpdate(String currentPackageHash) throws IOException {
+        String checkUrlString = mServerUrl + "getLastUpdate?appName=" + encode(mAppName)
+                + "&platformType=android&currentAppVersion=" + encode(mAppVersion);
+        if (currentPackageHash != null) {
+            checkUrlString += "&bundleNumber=" + encode(currentPackageHash);
+        }
+
+        return parseUpdate(getResponse(checkUrlString));
+    }
+
+    private String getResponse(String checkUrlString) throws IOException {
+        JSONObject cachedResponse = mResponseCache != null ? mResponseCache.get(checkUrlString) : null;
+        if (cachedResponse != null && CodePushUpdateCheckCache.isFresh(cachedResponse, System.currentTimeMillis())) {
+            return CodePushUpdateCheckCache.getBody(cachedResponse);
+        }
+
+        CodePushHttpConnection connection = null;
+        InputStream inputStream = null;
+        try {
+            connection = mTransport.openConnection(new URL(checkUrlString));
+            if (cachedResponse != null) {
+                CodePushUpdateCheckCache.addConditionalHeaders(cachedResponse, connection);
+            }
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cachedResponse != null) {
+                mResponseCache.refresh(cachedResponse, connection, System.currentTimeMillis());
+                return CodePushUpdateCheckCache.getBody(cachedResponse);
+            } else if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Update check failed with HTTP " + responseCode + ".");
+            }
+
+            inputStream = connection.getInputStream();
+            String response = readFully(inputStream);
+            if (mResponseCache != null) {
+                mResponseCache.put(checkUrlString, connection, response, System.currentTimeMillis());
+            }
+            return response;
+        } catch (MalformedURLException e) {
+            throw new CodePushMalformedDataException(checkUrlString, e);
+        } finally {
+            try {
+                if (inputStream != null) inputStream.close();
+                if (connection != null) connection.close();
+            } catch (IOException e) {
+                throw new CodePushUnknownException("Error closing IO resources.", e);
+            }
+        }
+    }
+
+    private JSONObject parseUpdate(String response) throws IOException {
+        JSONObject update;
+        try {
+            update = new JSONObject(response);
+        } catch (JSONException e) {
+            throw new IOException("The update server returned malformed JSON.", e);
+        }
+
+        String downloadUrl = update.optString(CodePushConstants.DOWNLOAD_URL_KEY, null);
+        if (!"true".equals(update.optString("success")) || downloadUrl == null
+                || update.optInt(CodePushConstants.PACKAGE_LABEL_KEY, -1) == -1) {
+            return null;
+        }
+
+        CodePushUtils.setJSONValueForKey(update, CodePushConstants.DOWNLOAD_URL_KEY, mServerUrl + downloadUrl);
+        CodePushUtils.setJSONValueForKey(update, "appVersion", mAppVersion);
+        return update;
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // Should not happen.
+            throw new CodePushUnknownException("UTF-8 is not supported.", e);
+        }
+    }
+
+    private static String readFully(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8 * 1024];
+        int numBytesRead;
+        while ((numBytesRead = inputStream.read(buffer)) >= 0) {
+            outputStream.write(buffer, 0, numBytesRead);
+        }
+        return outputStream.toString("UTF-8");
+    }
+}
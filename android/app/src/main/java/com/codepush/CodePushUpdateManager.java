@@ -1,23 +1,195 @@
 package com.codepush;
 
+import com.facebook.react.bridge.WritableMap;
+
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
 
 public class CodePushUpdateManager {
 
+    private static final int ZIP_HEADER_MAGIC = 0x504b0304;
+    private static final long JOURNAL_COMMIT_INTERVAL = 1024 * 1024;
+
     private String mDocumentsDirectory;
+    private final CodePushBlobStore mBlobStore;
+    private final CodePushPackageCache mPackageCache;
+    private final CodePushUpdateCheckCache mUpdateCheckCache;
+    private final AtomicReference<CodePushMetadataSnapshot> mSnapshot = new AtomicReference<>();
+    // Serializes every operation that changes the packages in the CodePush folder.
+    private final Object mWriteLock = new Object();
+    // Serializes downloads, which share the download file, its journal and the staging folder.
+    private final Object mDownloadLock = new Object();
+    // The package a diff update being downloaded applies to, which must not be evicted meanwhile.
+    private volatile String mDownloadBasePackageHash;
+    // Number of times the updates were cleared, guarded by mWriteLock. A download started before a
+    // clear must not add its package after it.
+    private int mClearCount = 0;
+    private boolean mPipelinedDownloadEnabled = true;
+    private boolean mCompressedTransferEnabled = true;
+    private boolean mResumableDownloadEnabled = false;
+    private int mDownloadSegmentCount = 1;
+    private long mMinDownloadSegmentSize = CodePushConstants.DEFAULT_MIN_DOWNLOAD_SEGMENT_SIZE;
+    private int mMinDownloadBufferSize = CodePushConstants.DEFAULT_MIN_DOWNLOAD_BUFFER_SIZE;
+    private int mMaxDownloadBufferSize = CodePushConstants.DOWNLOAD_BUFFER_SIZE;
+    private final CodePushBandwidthLimiter mBandwidthLimiter = new CodePushBandwidthLimiter();
+    private CodePushSignatureVerifier mSignatureVerifier;
+    private CodePushHttpTransport mBaseHttpTransport = new CodePushUrlConnectionTransport();
+    private int mMaxHttpRetries = 0;
+    private long mInitialHttpRetryBackoffMillis = CodePushConstants.DEFAULT_HTTP_RETRY_BACKOFF_MILLIS;
+    private volatile CodePushHttpTransport mHttpTransport = mBaseHttpTransport;
 
     public CodePushUpdateManager(String documentsDirectory) {
         mDocumentsDirectory = documentsDirectory;
+        mBlobStore = new CodePushBlobStore(CodePushUtils.appendPathComponent(getCodePushPath(), CodePushConstants.BLOB_STORE_FOLDER_NAME));
+        mPackageCache = new CodePushPackageCache(CodePushUtils.appendPathComponent(getCodePushPath(), CodePushConstants.RETAINED_PACKAGES_FILE));
+        mUpdateCheckCache = new CodePushUpdateCheckCache(CodePushUtils.appendPathComponent(getCodePushPath(), CodePushConstants.UPDATE_CHECK_CACHE_FILE));
+    }
+
+    /**
+     * Returns the cache of update check responses, which lives in the CodePush folder and so goes
+     * away with {@link #clearUpdates()}.
+     */
+    public CodePushUpdateCheckCache getUpdateCheckCache() {
+        return mUpdateCheckCache;
+    }
+
+    /**
+     * Sends the requests of downloads and update checks through {@code transport} from then on.
+     * The default is a {@link CodePushUrlConnectionTransport}.
+     */
+    public synchronized void setHttpTransport(CodePushHttpTransport transport) {
+        mBaseHttpTransport = transport;
+        updateHttpTransport();
+    }
+
+    /**
+     * Sends a failed request up to {@code maxRetries} more times, the first retry after
+     * {@code initialBackoffMillis} and every further one after twice as long as the one before.
+     * Requests are not retried by default.
+     */
+    public synchronized void setHttpRetryPolicy(int maxRetries, long initialBackoffMillis) {
+        mMaxHttpRetries = Math.max(0, maxRetries);
+        mInitialHttpRetryBackoffMillis = Math.max(0, initialBackoffMillis);
+        updateHttpTransport();
+    }
+
+    private void updateHttpTransport() {
+        mHttpTransport = mMaxHttpRetries == 0
+                ? mBaseHttpTransport
+                : new CodePushRetryingTransport(mBaseHttpTransport, mMaxHttpRetries, mInitialHttpRetryBackoffMillis);
+    }
+
+    /**
+     * Returns the transport requests are sent through, with the retry policy applied.
+     */
+    public CodePushHttpTransport getHttpTransport() {
+        return mHttpTransport;
+    }
+
+    /**
+     * When enabled (the default), updates are extracted or written to their package folder while
+     * they download instead of being staged as {@link CodePushConstants#DOWNLOAD_FILE_NAME} first.
+     */
+    public void setPipelinedDownloadEnabled(boolean enabled) {
+        mPipelinedDownloadEnabled = enabled;
+    }
+
+    /**
+     * When enabled (the default), pipelined downloads offer to take the update gzip-encoded and
+     * inflate it while it streams in. Hashes are checked against the inflated bytes, so servers
+     * that don't compress are unaffected. Staged downloads are always taken as is, since their
+     * byte ranges have to address the update itself.
+     */
+    public void setCompressedTransferEnabled(boolean enabled) {
+        mCompressedTransferEnabled = enabled;
+    }
+
+    /**
+     * When enabled, an interrupted download is kept on disk together with a journal and a later
+     * download of the same package continues it with a Range request. Resumable downloads are
+     * staged as {@link CodePushConstants#DOWNLOAD_FILE_NAME}, so they take precedence over
+     * pipelined extraction.
+     */
+    public void setResumableDownloadEnabled(boolean enabled) {
+        mResumableDownloadEnabled = enabled;
+    }
+
+    /**
+     * Splits downloads into up to {@code segmentCount} byte ranges fetched concurrently, as long as
+     * the server advertises range support and every segment is at least {@code minSegmentSize}
+     * bytes. A segment count of 1 downloads through a single stream. Segmented downloads are staged
+     * as {@link CodePushConstants#DOWNLOAD_FILE_NAME}, so they take precedence over pipelined
+     * extraction.
+     */
+    public void setSegmentedDownloadOptions(int segmentCount, long minSegmentSize) {
+        mDownloadSegmentCount = Math.max(1, segmentCount);
+        mMinDownloadSegmentSize = Math.max(1, minSegmentSize);
+    }
+
+    /**
+     * Bounds the read buffers of staged and segmented downloads, which start at {@code minSize}
+     * and grow or shrink with the throughput they get. Pipelined downloads are read at the pace of
+     * the extraction and use a buffer of {@code maxSize}.
+     */
+    public void setDownloadBufferSizeLimits(int minSize, int maxSize) {
+        mMinDownloadBufferSize = Math.max(1, minSize);
+        mMaxDownloadBufferSize = Math.max(mMinDownloadBufferSize, maxSize);
+    }
+
+    /**
+     * Caps the bandwidth of all downloads together at {@code bytesPerSecond}, or lifts the cap if
+     * 0. Takes effect immediately, including for downloads in progress.
+     */
+    public void setMaxDownloadBytesPerSecond(long bytesPerSecond) {
+        mBandwidthLimiter.setBytesPerSecond(bytesPerSecond);
+    }
+
+    public long getMaxDownloadBytesPerSecond() {
+        return mBandwidthLimiter.getBytesPerSecond();
+    }
+
+    /**
+     * Keeps up to {@code maxPackageCount} packages, the current one included, and no more than
+     * {@code maxBytes} of them (0 for no limit) so that they can be installed again without a
+     * download. The current and staged packages are never evicted.
+     */
+    public void setPackageRetention(int maxPackageCount, long maxBytes) {
+        mPackageCache.setLimits(maxPackageCount, maxBytes);
+    }
+
+    /**
+     * When a public key is set, every update must carry a signature made with the matching private
+     * key over the archive hashes in its metadata. Pass null to accept unsigned updates.
+     */
+    public void setPublicKey(String publicKey) {
+        mSignatureVerifier = publicKey == null ? null : new CodePushSignatureVerifier(publicKey);
+    }
+
+    private String getDownloadFolderPath() {
+        return CodePushUtils.appendPathComponent(getCodePushPath(), CodePushConstants.DOWNLOAD_FOLDER_NAME);
     }
 
     private String getUnzippedFolderPath() {
@@ -33,37 +205,192 @@ public class CodePushUpdateManager {
         return codePushPath;
     }
 
-    public void updateCurrentPackageInfo(JSONObject packageInfo) {
-        try {
-            CodePushUtils.writeJsonToFile(packageInfo, getStatusFilePath());
-        } catch (IOException e) {
-            // Should not happen.
-            throw new CodePushUnknownException("Error updating current package info", e);
+    /**
+     * Returns the latest published metadata snapshot, reading it from disk only the first time.
+     * Readers never block: a snapshot loaded concurrently with a write is dropped in favour of the
+     * one published by the writer.
+     */
+    private CodePushMetadataSnapshot getSnapshot() {
+        CodePushMetadataSnapshot snapshot = mSnapshot.get();
+        if (snapshot != null) {
+            return snapshot;
+        }
+
+        CodePushMetadataSnapshot loadedSnapshot = createSnapshot(readCurrentPackageInfo());
+        if (mSnapshot.compareAndSet(null, loadedSnapshot)) {
+            return loadedSnapshot;
         }
+
+        return mSnapshot.get();
     }
 
-    public String getCurrentPackageFolderPath() {
-        JSONObject info = getCurrentPackageInfo();
-        String packageHash = String.valueOf(info.optInt(CodePushConstants.CURRENT_LABEL_KEY, -1));
+    private CodePushMetadataSnapshot createSnapshot(JSONObject packageInfo) {
+        String packageHash = String.valueOf(packageInfo.optInt(CodePushConstants.CURRENT_LABEL_KEY, -1));
         if (packageHash.equals("-1")) {
+            return new CodePushMetadataSnapshot(packageInfo, packageHash, null, null);
+        }
+
+        return new CodePushMetadataSnapshot(packageInfo, packageHash, getPackageFolderPath(packageHash), readPackage(packageHash));
+    }
+
+    public void updateCurrentPackageInfo(JSONObject packageInfo) {
+        updateCurrentPackageInfo(packageInfo, false);
+    }
+
+    /**
+     * @param reloadCurrentPackage whether to read the current package metadata again even if the
+     *                             current package stays the same. Otherwise it is only read when
+     *                             the current package changes, so that the cached metadata and map
+     *                             survive writes that only stage or flag packages.
+     */
+    private void updateCurrentPackageInfo(JSONObject packageInfo, boolean reloadCurrentPackage) {
+        synchronized (mWriteLock) {
+            // Dropped first, so that a crash between the two writes can't leave a stale record behind.
+            new File(getActiveBundleRecordPath()).delete();
+            try {
+                CodePushUtils.writeJsonToFile(packageInfo, getStatusFilePath());
+            } catch (IOException e) {
+                // Should not happen.
+                throw new CodePushUnknownException("Error updating current package info", e);
+            }
+
+            CodePushMetadataSnapshot previousSnapshot = mSnapshot.get();
+            String packageHash = String.valueOf(packageInfo.optInt(CodePushConstants.CURRENT_LABEL_KEY, -1));
+            CodePushMetadataSnapshot snapshot = !reloadCurrentPackage && previousSnapshot != null
+                    && packageHash.equals(previousSnapshot.getCurrentPackageHash())
+                    ? previousSnapshot.withPackageInfo(packageInfo)
+                    : createSnapshot(packageInfo);
+            mSnapshot.set(snapshot);
+            writeActiveBundleRecord(snapshot, null);
+        }
+    }
+
+    /**
+     * Returns the record {@link CodePush#getJSBundleFile} picks the bundle from, or null if it is
+     * missing or damaged and the JSON metadata has to be read instead.
+     */
+    public CodePushActiveBundleRecord readActiveBundleRecord() {
+        return CodePushActiveBundleRecord.read(getActiveBundleRecordPath());
+    }
+
+    /**
+     * Writes the active bundle record from the current metadata if there is no readable one, e.g.
+     * after {@link #clearUpdates()} or for packages installed before records were kept.
+     */
+    public void repairActiveBundleRecord() {
+        synchronized (mWriteLock) {
+            if (readActiveBundleRecord() == null) {
+                writeActiveBundleRecord(getSnapshot(), null);
+            }
+        }
+    }
+
+    /**
+     * Notes in the active bundle record that the current package was released for an older binary
+     * than the one with {@code appVersion}, so that later launches of it go straight to the
+     * binary bundle. The note is dropped with the next change of the metadata.
+     */
+    public void markCurrentPackageOutdated(String appVersion) {
+        synchronized (mWriteLock) {
+            writeActiveBundleRecord(getSnapshot(), appVersion);
+        }
+    }
+
+    /**
+     * Returns the path of the bundle {@code record} points to, or null if it points to the
+     * binary bundle.
+     */
+    public String getActiveBundlePath(CodePushActiveBundleRecord record, String bundleFileName) {
+        String packageHash = record.getPackageHash();
+        if (packageHash == null) {
             return null;
         }
 
-        return getPackageFolderPath(packageHash);
+        String relativeBundlePath = record.getRelativeBundlePath();
+        return CodePushUtils.appendPathComponent(getPackageFolderPath(packageHash),
+                relativeBundlePath != null ? relativeBundlePath : bundleFileName);
+    }
+
+    /**
+     * Checks the bundle at {@code bundlePath} against the chunk hashes kept in {@code record}.
+     */
+    public boolean verifyActiveBundle(CodePushActiveBundleRecord record, String bundlePath) {
+        File bundleFile = new File(bundlePath);
+        return bundleFile.isFile() && CodePushPackageIntegrity.verifyBundleChunks(bundleFile, record.getBundleChunks());
+    }
+
+    private void writeActiveBundleRecord(CodePushMetadataSnapshot snapshot, String outdatedForAppVersion) {
+        String recordPath = getActiveBundleRecordPath();
+        String packageHash = snapshot.getCurrentPackageHash();
+        JSONObject packageInfo = snapshot.getPackageInfo();
+        boolean hasPendingPackage = packageInfo.optInt(CodePushConstants.PENDING_LABEL_KEY, -1) != -1;
+        CodePushActiveBundleRecord record;
+        if (packageHash.equals("-1")) {
+            record = new CodePushActiveBundleRecord(null, null, null, false, hasPendingPackage, null,
+                    CodePushPackageIntegrity.BundleChunks.NONE);
+        } else {
+            JSONObject currentPackage = snapshot.getCurrentPackage();
+            String relativeBundlePath = currentPackage != null
+                    ? currentPackage.optString(CodePushConstants.RELATIVE_BUNDLE_PATH_KEY, null) : null;
+            CodePushPackageIntegrity.BundleChunks bundleChunks = currentPackage != null
+                    ? CodePushPackageIntegrity.readBundleChunks(new File(snapshot.getCurrentPackageFolderPath()), relativeBundlePath) : null;
+            if (bundleChunks == null) {
+                // Without its metadata or with a damaged manifest, the package needs the full checks.
+                new File(recordPath).delete();
+                return;
+            }
+
+            boolean isCorrupt = packageHash.equals(packageInfo.optString(CodePushConstants.CORRUPT_LABEL_KEY, null));
+            record = new CodePushActiveBundleRecord(packageHash, currentPackage.optString("appVersion", null),
+                    relativeBundlePath, isCorrupt, hasPendingPackage, outdatedForAppVersion, bundleChunks);
+        }
+
+        try {
+            record.write(recordPath);
+        } catch (IOException e) {
+            CodePushUtils.log(e);
+            new File(recordPath).delete();
+        }
+    }
+
+    private String getActiveBundleRecordPath() {
+        return CodePushUtils.appendPathComponent(getCodePushPath(), CodePushConstants.ACTIVE_BUNDLE_FILE);
+    }
+
+    public String getCurrentPackageFolderPath() {
+        return getSnapshot().getCurrentPackageFolderPath();
     }
 
     public String getCurrentPackageBundlePath(String bundleFileName) {
-        String packageFolder = getCurrentPackageFolderPath();
+        CodePushMetadataSnapshot snapshot = getSnapshot();
+        String packageFolder = snapshot.getCurrentPackageFolderPath();
         if (packageFolder == null) {
             return null;
         }
 
-        JSONObject currentPackage = getCurrentPackage();
+        JSONObject currentPackage = snapshot.getCurrentPackage();
         if (currentPackage == null) {
             return null;
         }
 
-        String relativeBundlePath = currentPackage.optString(CodePushConstants.RELATIVE_BUNDLE_PATH_KEY, null);
+        return getPackageBundlePath(packageFolder, currentPackage, bundleFileName);
+    }
+
+    /**
+     * Returns the bundle path of the package staged by {@link #stagePackage}, or null if none is.
+     */
+    public String getPendingPackageBundlePath(String bundleFileName) {
+        String pendingPackageHash = getPendingPackageHash();
+        JSONObject pendingPackage = pendingPackageHash.equals("-1") ? null : readPackage(pendingPackageHash);
+        if (pendingPackage == null) {
+            return null;
+        }
+
+        return getPackageBundlePath(getPackageFolderPath(pendingPackageHash), pendingPackage, bundleFileName);
+    }
+
+    private String getPackageBundlePath(String packageFolder, JSONObject packageMetadata, String bundleFileName) {
+        String relativeBundlePath = packageMetadata.optString(CodePushConstants.RELATIVE_BUNDLE_PATH_KEY, null);
         if (relativeBundlePath == null) {
             return CodePushUtils.appendPathComponent(packageFolder, bundleFileName);
         } else {
@@ -75,22 +402,40 @@ public class CodePushUpdateManager {
         return CodePushUtils.appendPathComponent(getCodePushPath(), packageHash);
     }
 
+    /**
+     * The returned metadata is shared with other callers and must not be modified.
+     */
     public JSONObject getCurrentPackage() {
-        String packageHash = getCurrentPackageHash();
-        if (packageHash == null) {
-            return null;
+        return getSnapshot().getCurrentPackage();
+    }
+
+    /**
+     * Returns {@code packageMetadata} as a new {@link WritableMap}. The metadata of the current
+     * package is copied from a map cached with the snapshot instead of being converted again.
+     */
+    public WritableMap createPackageMap(JSONObject packageMetadata) {
+        CodePushMetadataSnapshot snapshot = getSnapshot();
+        if (packageMetadata != null && packageMetadata == snapshot.getCurrentPackage()) {
+            return snapshot.createCurrentPackageMap();
         }
-        return getPackage(packageHash);
+
+        return CodePushUtils.convertJsonObjectToWritable(packageMetadata);
     }
 
     public String getCurrentPackageHash() {
-        JSONObject info = getCurrentPackageInfo();
-        return String.valueOf(info.optInt(CodePushConstants.CURRENT_LABEL_KEY, -1));
+        return getSnapshot().getCurrentPackageHash();
     }
 
+    /**
+     * The returned metadata is shared with other callers and must not be modified.
+     */
     public JSONObject getCurrentPackageInfo() {
+        return getSnapshot().getPackageInfo();
+    }
+
+    private JSONObject readCurrentPackageInfo() {
         String statusFilePath = getStatusFilePath();
-        if (!FileUtils.fileAtPathExists(statusFilePath)) {
+        if (!FileUtils.fileAtPathExists(statusFilePath) && !FileUtils.fileAtPathExists(FileUtils.getBackupFilePath(statusFilePath))) {
             return new JSONObject();
         }
         try {
@@ -106,6 +451,15 @@ public class CodePushUpdateManager {
     }
 
     public JSONObject getPackage(String packageHash) {
+        CodePushMetadataSnapshot snapshot = getSnapshot();
+        if (packageHash != null && packageHash.equals(snapshot.getCurrentPackageHash())) {
+            return snapshot.getCurrentPackage();
+        }
+
+        return readPackage(packageHash);
+    }
+
+    private JSONObject readPackage(String packageHash) {
         String folderPath = getPackageFolderPath(packageHash);
         String packageFilePath = CodePushUtils.appendPathComponent(folderPath, CodePushConstants.PACKAGE_FILE_NAME);
         try {
@@ -115,46 +469,408 @@ public class CodePushUpdateManager {
         }
     }
 
-    public void downloadPackage(JSONObject updatePackage, String expectedBundleFileName, DownloadProgressCallback progressCallback) throws IOException {
-        //clear all bundles if downloading new
-        clearUpdates();
+    public void downloadPackage(JSONObject updatePackage, String expectedBundleFileName, DownloadProgress progress) throws IOException {
+        downloadPackage(updatePackage, expectedBundleFileName, progress, new CodePushDownloadControl());
+    }
+
+    /**
+     * Downloads the update, which can be paused, resumed or cancelled through {@code control}
+     * while its bytes are being fetched. A cancelled download throws
+     * {@link CodePushDownloadCancelledException} and, if resumable, keeps its partial file.
+     * The update is fetched without holding the write lock, so that installs and clears don't
+     * wait for the network or a paused download. Every change to the CodePush folder, from
+     * extracting the update to moving its package into place, is made under the write lock, and
+     * a download overtaken by {@link #clearUpdates} fails instead of adding its package.
+     */
+    public void downloadPackage(JSONObject updatePackage, String expectedBundleFileName, DownloadProgress progress,
+                                CodePushDownloadControl control) throws IOException {
+        control.awaitRunning();
+        synchronized (mDownloadLock) {
+            synchronized (mWriteLock) {
+                if (reuseRetainedPackage(updatePackage, expectedBundleFileName, progress)) {
+                    return;
+                }
+            }
+
+            try {
+                downloadPackageWithFallback(updatePackage, expectedBundleFileName, progress, control);
+            } finally {
+                mDownloadBasePackageHash = null;
+            }
+        }
+    }
+
+    /**
+     * Completes the download of {@code updatePackage} from a retained package with the same label
+     * and hash whose bundle is still intact. Returns false if it has to be downloaded.
+     */
+    private boolean reuseRetainedPackage(JSONObject updatePackage, String expectedBundleFileName, DownloadProgress progress) {
+        String packageHash = String.valueOf(updatePackage.optInt(CodePushConstants.PACKAGE_LABEL_KEY, -1));
+        JSONObject retainedPackage = mPackageCache.contains(packageHash) ? readPackage(packageHash) : null;
+        if (retainedPackage == null) {
+            return false;
+        }
+
+        String expectedPackageHash = updatePackage.optString(CodePushConstants.PACKAGE_HASH_KEY, null);
+        if (expectedPackageHash != null && !expectedPackageHash.equals(retainedPackage.optString(CodePushConstants.PACKAGE_HASH_KEY, null))) {
+            return false;
+        }
+
+        CodePushSignatureVerifier signatureVerifier = mSignatureVerifier;
+        if (signatureVerifier != null) {
+            signatureVerifier.verify(updatePackage);
+        }
+
+        String packageFolderPath = getPackageFolderPath(packageHash);
+        File bundleFile = new File(getPackageBundlePath(packageFolderPath, retainedPackage, expectedBundleFileName));
+        if (!bundleFile.isFile() || !CodePushPackageIntegrity.verifyBundle(new File(packageFolderPath), bundleFile)) {
+            return false;
+        }
+
+        CodePushUtils.log("Update " + packageHash + " is retained from an earlier download, skipping its download.");
+        CodePushUtils.setJSONValueForKey(updatePackage, CodePushConstants.RELATIVE_BUNDLE_PATH_KEY,
+                retainedPackage.optString(CodePushConstants.RELATIVE_BUNDLE_PATH_KEY, null));
+        long packageSize = mPackageCache.getSize(packageHash);
+        progress.reset(packageSize, packageSize);
+        return true;
+    }
+
+    private void downloadPackageWithFallback(JSONObject updatePackage, String expectedBundleFileName, DownloadProgress progress,
+                                             CodePushDownloadControl control) throws IOException {
+        // Checked once up front: the signature also vouches for the hash of the full update.
+        CodePushSignatureVerifier signatureVerifier = mSignatureVerifier;
+        if (signatureVerifier != null) {
+            signatureVerifier.verify(updatePackage);
+        }
+
+        try {
+            downloadPackageContents(updatePackage, expectedBundleFileName, progress, control);
+        } catch (CodePushInvalidUpdateException e) {
+            // Patch and diff updates may name a full update to use when they can't be applied.
+            String fullDownloadUrl = updatePackage.optString(CodePushConstants.FULL_DOWNLOAD_URL_KEY, null);
+            if (fullDownloadUrl == null) {
+                throw e;
+            }
+
+            String fullPackageHash = updatePackage.optString(CodePushConstants.FULL_PACKAGE_HASH_KEY, null);
+            if (fullPackageHash == null && signatureVerifier != null) {
+                // The full update would not be covered by the signature.
+                throw e;
+            }
+
+            CodePushUtils.log(e.getMessage() + " Falling back to the full update.");
+            updatePackage.remove(CodePushConstants.FULL_DOWNLOAD_URL_KEY);
+            updatePackage.remove(CodePushConstants.FULL_PACKAGE_HASH_KEY);
+            updatePackage.remove(CodePushConstants.CONTENT_HASHES_KEY);
+            updatePackage.remove(CodePushConstants.PACKAGE_HASH_KEY);
+            CodePushUtils.setJSONValueForKey(updatePackage, CodePushConstants.DOWNLOAD_URL_KEY, fullDownloadUrl);
+            if (fullPackageHash != null) {
+                CodePushUtils.setJSONValueForKey(updatePackage, CodePushConstants.PACKAGE_HASH_KEY, fullPackageHash);
+            }
+            downloadPackageContents(updatePackage, expectedBundleFileName, progress, control);
+        }
+    }
+
+    private void downloadPackageContents(JSONObject updatePackage, String expectedBundleFileName, DownloadProgress progress,
+                                         CodePushDownloadControl control) throws IOException {
         String newUpdateHash = String.valueOf(updatePackage.optInt(CodePushConstants.PACKAGE_LABEL_KEY, -1));
-        String newUpdateFolderPath = getPackageFolderPath(newUpdateHash);
+        String downloadUrlString = updatePackage.optString(CodePushConstants.DOWNLOAD_URL_KEY, null);
+        // Resuming and segmenting need the bytes on disk, which an in-flight inflater cannot provide.
+        boolean isPipelined = mPipelinedDownloadEnabled && !mResumableDownloadEnabled && mDownloadSegmentCount <= 1;
+        // Hashes are computed while the bytes go by, so verifying them costs no extra read.
+        String expectedPackageHash = updatePackage.optString(CodePushConstants.PACKAGE_HASH_KEY, null);
+        JSONObject expectedContentHashes = updatePackage.optJSONObject(CodePushConstants.CONTENT_HASHES_KEY);
+        MessageDigest packageDigest = expectedPackageHash != null ? CodePushUpdateUtils.createMessageDigest() : null;
+        // Extracted files are hashed on the way in, which also spares the blob store reading them again.
+        Map<String, String> entryHashes = expectedContentHashes != null || CodePushBlobStore.isSupported() ? new HashMap<String, String>() : null;
+
+        // A diff update applies to the package that is current now, even if another one gets
+        // installed while it downloads.
+        CodePushMetadataSnapshot snapshot = getSnapshot();
+        String currentPackageHash = snapshot.getCurrentPackageHash();
+        String currentPackageFolderPath = snapshot.getCurrentPackageFolderPath();
+        mDownloadBasePackageHash = currentPackageHash;
+
+        // The package is assembled here and only moved to its own folder once complete.
+        String newUpdateFolderPath = getDownloadFolderPath();
+
+        //clear all bundles except the current one if downloading new
+        int clearCount;
+        synchronized (mWriteLock) {
+            clearUpdatesForDownload();
+            if (FileUtils.fileAtPathExists(newUpdateFolderPath)) {
+                FileUtils.deleteDirectoryAtPath(newUpdateFolderPath);
+            }
+            clearCount = mClearCount;
+        }
+
+        File downloadFile = new File(getCodePushPath(), CodePushConstants.DOWNLOAD_FILE_NAME);
+        boolean isZip = false;
+
+        if (isPipelined) {
+            CodePushHttpTransport transport = mHttpTransport;
+            CodePushHttpConnection connection = null;
+            BufferedInputStream bin = null;
+
+            // Download the file while checking if it is a zip and notifying client of progress.
+            try {
+                URL downloadUrl = new URL(downloadUrlString);
+                connection = transport.openConnection(downloadUrl);
+                String acceptEncoding = mCompressedTransferEnabled ? "gzip" : "identity";
+                connection.setRequestProperty("Accept-Encoding", acceptEncoding);
+
+                // Progress counts the bytes on the wire, compressed or not, so that it completes.
+                long totalBytes = connection.getContentLength();
+                DownloadProgressInputStream progressStream = new DownloadProgressInputStream(new CodePushPausableInputStream(
+                        transport, connection, downloadUrl, getValidator(connection), 0, -1, control, mBandwidthLimiter, acceptEncoding),
+                        totalBytes, progress);
+                InputStream packageStream = progressStream;
+                String contentEncoding = connection.getHeaderField("Content-Encoding");
+                if ("gzip".equalsIgnoreCase(contentEncoding)) {
+                    packageStream = new DecompressingProgressInputStream(progressStream, progress);
+                } else if (contentEncoding != null && !contentEncoding.equalsIgnoreCase("identity")) {
+                    throw new CodePushUnknownException("The update was sent with the unsupported encoding " + contentEncoding + ".");
+                }
+                if (packageDigest != null) {
+                    packageStream = new DigestInputStream(packageStream, packageDigest);
+                }
+                bin = new BufferedInputStream(packageStream, mMaxDownloadBufferSize);
+                isZip = streamPackageContents(bin, newUpdateFolderPath, expectedBundleFileName, entryHashes);
+                // Anything after the end of the gzip stream still counts as received.
+                drainStream(progressStream);
+                long receivedBytes = progressStream.getReceivedBytes();
+
+                if (totalBytes != receivedBytes) {
+                    throw new CodePushUnknownException("Received " + receivedBytes + " bytes, expected " + totalBytes);
+                }
+                verifyPackageHash(packageDigest, expectedPackageHash);
+            } catch (MalformedURLException e) {
+                throw new CodePushMalformedDataException(downloadUrlString, e);
+            } finally {
+                try {
+                    if (bin != null) bin.close();
+                    if (connection != null) connection.close();
+                } catch (IOException e) {
+                    throw new CodePushUnknownException("Error closing IO resources.", e);
+                }
+            }
+        } else {
+            isZip = downloadPackageToFile(downloadUrlString, newUpdateHash, downloadFile, packageDigest, progress, control);
+            try {
+                verifyPackageHash(packageDigest, expectedPackageHash);
+            } catch (CodePushInvalidUpdateException e) {
+                // Don't let a resumed download build on corrupt bytes.
+                FileUtils.deleteFileOrFolderSilently(downloadFile);
+                throw e;
+            }
+        }
+
+        synchronized (mWriteLock) {
+            if (mClearCount != clearCount) {
+                FileUtils.deleteFileOrFolderSilently(new File(newUpdateFolderPath));
+                FileUtils.deleteFileOrFolderSilently(downloadFile);
+                throw new CodePushUnknownException("The updates were cleared while update " + newUpdateHash + " was being downloaded.");
+            }
+
+            if (!isPipelined && !isZip && isGzipFile(downloadFile)) {
+                isZip = gunzipDownloadFile(downloadFile);
+            }
+
+            assembleDownloadedPackage(updatePackage, newUpdateHash, isZip, isPipelined, downloadFile, newUpdateFolderPath,
+                    expectedBundleFileName, expectedContentHashes, entryHashes, currentPackageHash, currentPackageFolderPath);
+        }
+    }
+
+    /**
+     * Turns the downloaded update into a package: extracts it into the staging folder unless that
+     * happened while it downloaded, applies a diff update to the package it was made for, finds
+     * the bundle and moves the package into place. Called with the write lock held.
+     */
+    private void assembleDownloadedPackage(JSONObject updatePackage, String newUpdateHash, boolean isZip, boolean isPipelined,
+                                           File downloadFile, String newUpdateFolderPath, String expectedBundleFileName,
+                                           JSONObject expectedContentHashes, Map<String, String> entryHashes,
+                                           String currentPackageHash, String currentPackageFolderPath) throws IOException {
         String newUpdateMetadataPath = CodePushUtils.appendPathComponent(newUpdateFolderPath, CodePushConstants.PACKAGE_FILE_NAME);
-        if (FileUtils.fileAtPathExists(newUpdateFolderPath)) {
-            // This removes any stale data in newPackageFolderPath that could have been left
-            // uncleared due to a crash or error during the download or install process.
-            FileUtils.deleteDirectoryAtPath(newUpdateFolderPath);
+        if (isZip) {
+            // Pipelined downloads have already been inflated into the package folder.
+            if (!isPipelined) {
+                // Unzip the downloaded file and then delete the zip
+                String unzippedFolderPath = getUnzippedFolderPath();
+                FileUtils.unzipFile(downloadFile, unzippedFolderPath, entryHashes);
+                FileUtils.deleteFileOrFolderSilently(downloadFile);
+
+                FileUtils.copyDirectoryContents(unzippedFolderPath, newUpdateFolderPath);
+                FileUtils.deleteFileAtPathSilently(unzippedFolderPath);
+            }
+
+            if (expectedContentHashes != null) {
+                CodePushUpdateUtils.verifyContentHashes(expectedContentHashes, entryHashes);
+            }
+
+            // Merge contents with current update based on the manifest
+            String diffManifestFilePath = CodePushUtils.appendPathComponent(newUpdateFolderPath, CodePushConstants.DIFF_MANIFEST_FILE_NAME);
+            boolean isDiffUpdate = FileUtils.fileAtPathExists(diffManifestFilePath);
+            if (isDiffUpdate) {
+                CodePushUpdateUtils.applyPatchesFromCurrentPackage(diffManifestFilePath, currentPackageFolderPath, newUpdateFolderPath, entryHashes);
+                CodePushUpdateUtils.copyUnchangedFilesFromCurrentPackage(diffManifestFilePath, currentPackageFolderPath, newUpdateFolderPath,
+                        mBlobStore, currentPackageHash, newUpdateHash);
+                File diffManifestFile = new File(diffManifestFilePath);
+                diffManifestFile.delete();
+            }
+
+            // For zip updates, we need to find the relative path to the jsBundle and save it in the
+            // metadata so that we can find and run it easily the next time.
+            String relativeBundlePath = CodePushUpdateUtils.findJSBundleInUpdateContents(newUpdateFolderPath, expectedBundleFileName);
+
+            if (relativeBundlePath == null) {
+                throw new CodePushInvalidUpdateException("Update is invalid - A JS bundle file named \"" + expectedBundleFileName + "\" could not be found within the downloaded contents. Please check that you are releasing your CodePush updates using the exact same JS bundle file name that was shipped with your app's binary.");
+            } else {
+                if (FileUtils.fileAtPathExists(newUpdateMetadataPath)) {
+                    File metadataFileFromOldUpdate = new File(newUpdateMetadataPath);
+                    metadataFileFromOldUpdate.delete();
+                }
+
+                if (isDiffUpdate) {
+                    CodePushUtils.log("Applying diff update.");
+                } else {
+                    CodePushUtils.log("Applying full update.");
+                }
+
+                CodePushUtils.setJSONValueForKey(updatePackage, CodePushConstants.RELATIVE_BUNDLE_PATH_KEY, relativeBundlePath);
+            }
+        } else {
+            if (!isPipelined) {
+                // File is a jsbundle, move it to a folder with the packageHash as its name
+                FileUtils.moveFile(downloadFile, newUpdateFolderPath, expectedBundleFileName);
+            }
+
+            // Recorded so that the bundle can be told apart from other files at install time.
+            CodePushUtils.setJSONValueForKey(updatePackage, CodePushConstants.RELATIVE_BUNDLE_PATH_KEY, expectedBundleFileName);
         }
 
-        String downloadUrlString = updatePackage.optString(CodePushConstants.DOWNLOAD_URL_KEY, null);
-        HttpURLConnection connection = null;
+        commitDownloadedPackage(updatePackage, newUpdateHash, newUpdateFolderPath, entryHashes);
+    }
+
+    /**
+     * Moves the package assembled in {@code stagingFolderPath} to its own folder and records it.
+     * Called with the write lock held.
+     */
+    private void commitDownloadedPackage(JSONObject updatePackage, String packageHash, String stagingFolderPath,
+                                         Map<String, String> entryHashes) throws IOException {
+        File stagingFolder = new File(stagingFolderPath);
+        String packageFolderPath = getPackageFolderPath(packageHash);
+        File packageFolder = new File(packageFolderPath);
+        try {
+            if (packageFolder.exists()) {
+                // This removes any stale data in packageFolderPath that could have been left
+                // uncleared due to a crash or error during the download or install process.
+                mPackageCache.remove(packageHash);
+                FileUtils.deleteDirectoryAtPath(packageFolderPath);
+            }
+
+            if (!stagingFolder.renameTo(packageFolder)) {
+                throw new CodePushUnknownException("Unable to move " + stagingFolderPath + " to " + packageFolderPath + ".");
+            }
+
+            // Back the package files by the blob store so that later diff updates can link them.
+            mBlobStore.addPackage(packageHash, packageFolder, entryHashes);
+
+            // Save metadata to the folder.
+            CodePushUtils.writeJsonToFile(updatePackage, CodePushUtils.appendPathComponent(packageFolderPath, CodePushConstants.PACKAGE_FILE_NAME));
+            mPackageCache.touch(packageHash, packageFolder);
+            evictPackages(packageHash);
+        } finally {
+            // Re-downloading the current package replaces its folder and metadata.
+            CodePushMetadataSnapshot snapshot = getSnapshot();
+            if (packageHash.equals(snapshot.getCurrentPackageHash())) {
+                mSnapshot.set(createSnapshot(snapshot.getPackageInfo()));
+            }
+        }
+    }
+
+    /**
+     * Downloads the update into {@code downloadFile}, continuing a previous partial download of the
+     * same package when a matching journal is found. Returns whether the file is a zip.
+     */
+    private boolean downloadPackageToFile(String downloadUrlString, String packageHash, File downloadFile, MessageDigest packageDigest,
+                                          DownloadProgress progress, CodePushDownloadControl control) throws IOException {
+        File journalFile = new File(getCodePushPath(), CodePushConstants.DOWNLOAD_JOURNAL_FILE_NAME);
+        CodePushDownloadJournal journal = null;
+        if (mResumableDownloadEnabled) {
+            journal = CodePushDownloadJournal.load(journalFile);
+            if (journal != null && (!journal.canResume(downloadUrlString, packageHash) || downloadFile.length() < journal.getCommittedBytes())) {
+                journal = null;
+            }
+        }
+
+        long resumeOffset = journal != null ? journal.getCommittedBytes() : 0;
+        CodePushHttpTransport transport = mHttpTransport;
+        CodePushHttpConnection connection = null;
         BufferedInputStream bin = null;
         FileOutputStream fos = null;
-        BufferedOutputStream bout = null;
-        File downloadFile = null;
-        boolean isZip = false;
+        long receivedBytes = 0;
+        boolean isCompleted = false;
 
         // Download the file while checking if it is a zip and notifying client of progress.
         try {
             URL downloadUrl = new URL(downloadUrlString);
-            connection = (HttpURLConnection) (downloadUrl.openConnection());
-            connection.setRequestProperty("Accept-Encoding", "identity");
-            bin = new BufferedInputStream(connection.getInputStream());
-
-            long totalBytes = connection.getContentLength();
-            long receivedBytes = 0;
-
-            File downloadFolder = new File(getCodePushPath());
-            downloadFolder.mkdirs();
-            downloadFile = new File(downloadFolder, CodePushConstants.DOWNLOAD_FILE_NAME);
-            fos = new FileOutputStream(downloadFile);
-            bout = new BufferedOutputStream(fos, CodePushConstants.DOWNLOAD_BUFFER_SIZE);
-            byte[] data = new byte[CodePushConstants.DOWNLOAD_BUFFER_SIZE];
+            connection = openDownloadConnection(transport, downloadUrl, journal, resumeOffset);
+            if (resumeOffset > 0 && !isResumedResponse(connection, journal, resumeOffset)) {
+                CodePushUtils.log("The partially downloaded update is stale, restarting the download.");
+                resumeOffset = 0;
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    connection.close();
+                    connection = openDownloadConnection(transport, downloadUrl, null, 0);
+                }
+            } else if (resumeOffset > 0) {
+                CodePushUtils.log("Resuming download of update at byte " + resumeOffset + ".");
+            }
+
+            long contentLength = connection.getContentLength();
+            long totalBytes = contentLength < 0 ? contentLength : resumeOffset + contentLength;
+            if (resumeOffset == 0) {
+                journal = new CodePushDownloadJournal(downloadUrlString, packageHash,
+                        connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"), totalBytes);
+            }
+
+            downloadFile.getParentFile().mkdirs();
             byte[] header = new byte[4];
+            if (resumeOffset == 0 && shouldDownloadInSegments(connection, journal, totalBytes)) {
+                int segmentCount = (int) Math.min(mDownloadSegmentCount, totalBytes / mMinDownloadSegmentSize);
+                CodePushSegmentedDownload segmentedDownload = new CodePushSegmentedDownload(transport, mBandwidthLimiter, downloadUrl, journal.getValidator(),
+                        totalBytes, segmentCount, mMinDownloadBufferSize, mMaxDownloadBufferSize, progress, control);
+                CodePushHttpConnection firstSegmentConnection = connection;
+                connection = null;
+                try {
+                    segmentedDownload.download(firstSegmentConnection, downloadFile);
+                } finally {
+                    receivedBytes = segmentedDownload.getContiguousBytes();
+                }
+
+                readFileHeader(downloadFile, header, totalBytes);
+                if (packageDigest != null) {
+                    // Segments arrive out of order, so hash the file while it is still in the page cache.
+                    CodePushUpdateUtils.updateDigest(packageDigest, downloadFile, totalBytes);
+                }
+                isCompleted = true;
+                return ByteBuffer.wrap(header).getInt() == ZIP_HEADER_MAGIC;
+            }
+
+            bin = new BufferedInputStream(new CodePushPausableInputStream(transport, connection, downloadUrl, journal.getValidator(), resumeOffset, -1, control, mBandwidthLimiter));
+            truncateDownloadFile(downloadFile, resumeOffset, header);
+            if (packageDigest != null && resumeOffset > 0) {
+                // The digest of the previous attempt is gone, so pick the kept bytes up again.
+                CodePushUpdateUtils.updateDigest(packageDigest, downloadFile, resumeOffset);
+            }
+            fos = new FileOutputStream(downloadFile, true);
+            CodePushDownloadBuffer downloadBuffer = new CodePushDownloadBuffer(mMinDownloadBufferSize, mMaxDownloadBufferSize);
+            receivedBytes = resumeOffset;
+            progress.reset(totalBytes, receivedBytes);
+            long nextJournalCommit = receivedBytes + JOURNAL_COMMIT_INTERVAL;
 
             int numBytesRead = 0;
-            while ((numBytesRead = bin.read(data, 0, CodePushConstants.DOWNLOAD_BUFFER_SIZE)) >= 0) {
+            while ((numBytesRead = downloadBuffer.fill(bin, Long.MAX_VALUE)) >= 0) {
+                byte[] data = downloadBuffer.getData();
                 if (receivedBytes < 4) {
                     for (int i = 0; i < numBytesRead; i++) {
                         int headerOffset = (int) (receivedBytes) + i;
@@ -167,91 +883,505 @@ public class CodePushUpdateManager {
                 }
 
                 receivedBytes += numBytesRead;
-                bout.write(data, 0, numBytesRead);
-                progressCallback.call(new DownloadProgress(totalBytes, receivedBytes));
+                // The buffer fills completely before each write, so it doubles as the write buffer.
+                fos.write(data, 0, numBytesRead);
+                if (packageDigest != null) {
+                    packageDigest.update(data, 0, numBytesRead);
+                }
+                progress.addReceivedBytes(numBytesRead);
+
+                if (mResumableDownloadEnabled && receivedBytes >= nextJournalCommit) {
+                    // The journal vouches for these bytes, so they have to be on disk before it is.
+                    fos.getFD().sync();
+                    journal.setCommittedBytes(receivedBytes);
+                    journal.save(journalFile);
+                    nextJournalCommit = receivedBytes + JOURNAL_COMMIT_INTERVAL;
+                }
             }
 
             if (totalBytes != receivedBytes) {
                 throw new CodePushUnknownException("Received " + receivedBytes + " bytes, expected " + totalBytes);
             }
 
-            isZip = ByteBuffer.wrap(header).getInt() == 0x504b0304;
+            isCompleted = true;
+            return ByteBuffer.wrap(header).getInt() == ZIP_HEADER_MAGIC;
         } catch (MalformedURLException e) {
             throw new CodePushMalformedDataException(downloadUrlString, e);
         } finally {
+            if (!isCompleted && mResumableDownloadEnabled && journal != null && receivedBytes > 0) {
+                try {
+                    // Segmented downloads sync the file themselves before closing it.
+                    if (fos != null) fos.getFD().sync();
+                    journal.setCommittedBytes(Math.min(receivedBytes, downloadFile.length()));
+                    journal.save(journalFile);
+                } catch (IOException e) {
+                    CodePushUtils.log(e);
+                }
+            }
+
             try {
-                if (bout != null) bout.close();
                 if (fos != null) fos.close();
                 if (bin != null) bin.close();
-                if (connection != null) connection.disconnect();
+                if (connection != null) connection.close();
             } catch (IOException e) {
                 throw new CodePushUnknownException("Error closing IO resources.", e);
             }
+
+            if (isCompleted) {
+                FileUtils.deleteFileAtPathSilently(journalFile.getAbsolutePath());
+            }
         }
+    }
 
-        if (isZip) {
-            // Unzip the downloaded file and then delete the zip
-            String unzippedFolderPath = getUnzippedFolderPath();
-            FileUtils.unzipFile(downloadFile, unzippedFolderPath);
-            FileUtils.deleteFileOrFolderSilently(downloadFile);
+    private void verifyPackageHash(MessageDigest packageDigest, String expectedPackageHash) {
+        if (packageDigest == null) {
+            return;
+        }
 
-            // Merge contents with current update based on the manifest
-            String diffManifestFilePath = CodePushUtils.appendPathComponent(unzippedFolderPath, CodePushConstants.DIFF_MANIFEST_FILE_NAME);
-            boolean isDiffUpdate = FileUtils.fileAtPathExists(diffManifestFilePath);
-            if (isDiffUpdate) {
-                String currentPackageFolderPath = getCurrentPackageFolderPath();
-                CodePushUpdateUtils.copyNecessaryFilesFromCurrentPackage(diffManifestFilePath, currentPackageFolderPath, newUpdateFolderPath);
-                File diffManifestFile = new File(diffManifestFilePath);
-                diffManifestFile.delete();
+        String packageHash = CodePushUpdateUtils.toHexString(packageDigest.digest());
+        if (!packageHash.equalsIgnoreCase(expectedPackageHash)) {
+            throw new CodePushInvalidUpdateException("Update is invalid - the downloaded package hash " + packageHash + " does not match the expected " + expectedPackageHash + ".");
+        }
+    }
+
+    private CodePushHttpConnection openDownloadConnection(CodePushHttpTransport transport, URL downloadUrl, CodePushDownloadJournal journal,
+                                                          long resumeOffset) throws IOException {
+        CodePushHttpConnection connection = transport.openConnection(downloadUrl);
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        if (journal != null && resumeOffset > 0) {
+            connection.setRequestProperty("Range", "bytes=" + resumeOffset + "-");
+            connection.setRequestProperty("If-Range", journal.getValidator());
+        }
+
+        return connection;
+    }
+
+    private static String getValidator(CodePushHttpConnection connection) {
+        return CodePushUpdateUtils.getRangeValidator(connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"));
+    }
+
+    private boolean isResumedResponse(CodePushHttpConnection connection, CodePushDownloadJournal journal, long resumeOffset) throws IOException {
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+            return false;
+        }
+
+        long[] contentRange = CodePushUpdateUtils.parseContentRange(connection.getHeaderField("Content-Range"));
+        return contentRange != null && contentRange[0] == resumeOffset
+                && journal.isSameResource(connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"), contentRange[1]);
+    }
+
+    private boolean shouldDownloadInSegments(CodePushHttpConnection connection, CodePushDownloadJournal journal, long totalBytes) {
+        return mDownloadSegmentCount > 1
+                && totalBytes >= 2 * mMinDownloadSegmentSize
+                && journal.getValidator() != null
+                && "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"));
+    }
+
+    /**
+     * Cuts the download file back to the bytes the journal vouches for (or empties it) and reads
+     * back whatever part of the zip header is already on disk.
+     */
+    private void truncateDownloadFile(File downloadFile, long length, byte[] header) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(downloadFile, "rw");
+        try {
+            file.setLength(length);
+        } finally {
+            file.close();
+        }
+
+        readFileHeader(downloadFile, header, length);
+    }
+
+    private void readFileHeader(File file, byte[] header, long fileLength) throws IOException {
+        if (fileLength <= 0) {
+            return;
+        }
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            randomAccessFile.readFully(header, 0, (int) Math.min(header.length, fileLength));
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Deletes everything in the CodePush folder except what the next download can build on: the
+     * current, staged and retained packages and their status files, the blob store, the update
+     * check cache and, for resumable downloads, the partially downloaded file and its journal.
+     */
+    private void clearUpdatesForDownload() {
+        File[] files = new File(getCodePushPath()).listFiles();
+        if (files == null) {
+            return;
+        }
+
+        String currentPackageHash = getCurrentPackageHash();
+        String pendingPackageHash = getPendingPackageHash();
+        for (File file : files) {
+            String fileName = file.getName();
+            if (fileName.equals(CodePushConstants.STATUS_FILE)
+                    || fileName.equals(CodePushConstants.ACTIVE_BUNDLE_FILE)
+                    || fileName.equals(CodePushConstants.RETAINED_PACKAGES_FILE)
+                    || fileName.equals(FileUtils.getBackupFilePath(CodePushConstants.RETAINED_PACKAGES_FILE))
+                    || fileName.equals(CodePushConstants.UPDATE_CHECK_CACHE_FILE)
+                    || fileName.equals(FileUtils.getBackupFilePath(CodePushConstants.UPDATE_CHECK_CACHE_FILE))
+                    || fileName.equals(CodePushConstants.BLOB_STORE_FOLDER_NAME)
+                    || fileName.equals(currentPackageHash)
+                    || fileName.equals(pendingPackageHash)
+                    || mPackageCache.contains(fileName)) {
+                continue;
             }
 
-            FileUtils.copyDirectoryContents(unzippedFolderPath, newUpdateFolderPath);
-            FileUtils.deleteFileAtPathSilently(unzippedFolderPath);
+            if (mResumableDownloadEnabled
+                    && (fileName.equals(CodePushConstants.DOWNLOAD_FILE_NAME) || fileName.equals(CodePushConstants.DOWNLOAD_JOURNAL_FILE_NAME))) {
+                continue;
+            }
 
-            // For zip updates, we need to find the relative path to the jsBundle and save it in the
-            // metadata so that we can find and run it easily the next time.
-            String relativeBundlePath = CodePushUpdateUtils.findJSBundleInUpdateContents(newUpdateFolderPath, expectedBundleFileName);
+            FileUtils.deleteFileOrFolderSilently(file);
+        }
+    }
 
-            if (relativeBundlePath == null) {
-                throw new CodePushInvalidUpdateException("Update is invalid - A JS bundle file named \"" + expectedBundleFileName + "\" could not be found within the downloaded contents. Please check that you are releasing your CodePush updates using the exact same JS bundle file name that was shipped with your app's binary.");
-            } else {
-                if (FileUtils.fileAtPathExists(newUpdateMetadataPath)) {
-                    File metadataFileFromOldUpdate = new File(newUpdateMetadataPath);
-                    metadataFileFromOldUpdate.delete();
-                }
+    /**
+     * Deletes the folders of the packages evicted from the package cache and releases their files
+     * from the blob store. The current, staged and {@code protectedPackageHash} packages are kept.
+     */
+    private void evictPackages(String protectedPackageHash) {
+        Set<String> protectedHashes = new HashSet<>();
+        protectedHashes.add(getCurrentPackageHash());
+        protectedHashes.add(getPendingPackageHash());
+        String downloadBasePackageHash = mDownloadBasePackageHash;
+        if (downloadBasePackageHash != null) {
+            protectedHashes.add(downloadBasePackageHash);
+        }
+        if (protectedPackageHash != null) {
+            protectedHashes.add(protectedPackageHash);
+        }
 
-                if (isDiffUpdate) {
-                    CodePushUtils.log("Applying diff update.");
-                } else {
-                    CodePushUtils.log("Applying full update.");
-                }
+        try {
+            for (String packageHash : mPackageCache.evict(protectedHashes)) {
+                CodePushUtils.log("Evicting retained update " + packageHash + ".");
+                FileUtils.deleteDirectoryAtPath(getPackageFolderPath(packageHash));
+            }
 
-                CodePushUtils.setJSONValueForKey(updatePackage, CodePushConstants.RELATIVE_BUNDLE_PATH_KEY, relativeBundlePath);
+            Set<String> retainedHashes = new HashSet<>(mPackageCache.getPackageHashes());
+            retainedHashes.addAll(protectedHashes);
+            mBlobStore.retainPackages(retainedHashes);
+        } catch (IOException e) {
+            CodePushUtils.log(e);
+        }
+    }
+
+    /**
+     * Deletes the folder of {@code packageHash}, e.g. because it was found corrupt, and forgets it.
+     */
+    private void removePackage(String packageHash) {
+        try {
+            mPackageCache.remove(packageHash);
+        } catch (IOException e) {
+            CodePushUtils.log(e);
+        }
+
+        FileUtils.deleteDirectoryAtPath(getPackageFolderPath(packageHash));
+        evictPackages(null);
+    }
+
+    /**
+     * Returns the metadata of the retained packages, most recently used first. Any of them can be
+     * passed to {@link #installPackage} to switch to it without a download.
+     */
+    public List<JSONObject> getRetainedPackages() {
+        List<JSONObject> retainedPackages = new ArrayList<>();
+        for (String packageHash : mPackageCache.getPackageHashes()) {
+            JSONObject retainedPackage = getPackage(packageHash);
+            if (retainedPackage != null) {
+                retainedPackages.add(retainedPackage);
             }
+        }
+
+        return retainedPackages;
+    }
+
+    /**
+     * Writes the update arriving on {@code inputStream} straight into its package folder, inflating
+     * it on the fly when the leading bytes carry the zip magic. Returns whether it was a zip.
+     */
+    private boolean streamPackageContents(InputStream inputStream, String newUpdateFolderPath, String expectedBundleFileName,
+                                          Map<String, String> entryHashes) throws IOException {
+        return streamPackageContents(inputStream, newUpdateFolderPath, expectedBundleFileName, entryHashes, true);
+    }
+
+    private boolean streamPackageContents(InputStream inputStream, String newUpdateFolderPath, String expectedBundleFileName,
+                                          Map<String, String> entryHashes, boolean allowGzip) throws IOException {
+        PushbackInputStream pushbackStream = new PushbackInputStream(inputStream, 4);
+        byte[] header = new byte[4];
+        int headerLength = 0;
+        int numBytesRead;
+        while (headerLength < header.length && (numBytesRead = pushbackStream.read(header, headerLength, header.length - headerLength)) >= 0) {
+            headerLength += numBytesRead;
+        }
+        pushbackStream.unread(header, 0, headerLength);
+
+        if (allowGzip && isGzipHeader(header, headerLength)) {
+            // A gzip-compressed update; its contents are told apart the same way.
+            boolean isZip = streamPackageContents(new GZIPInputStream(pushbackStream, CodePushConstants.DOWNLOAD_BUFFER_SIZE),
+                    newUpdateFolderPath, expectedBundleFileName, entryHashes, false);
+            drainStream(pushbackStream);
+            return isZip;
+        }
+
+        boolean isZip = headerLength == header.length && ByteBuffer.wrap(header).getInt() == ZIP_HEADER_MAGIC;
+        if (isZip) {
+            FileUtils.unzipStream(pushbackStream, newUpdateFolderPath, entryHashes);
+            // The central directory trails the last entry; drain it so the byte count stays accurate.
+            drainStream(pushbackStream);
         } else {
-            // File is a jsbundle, move it to a folder with the packageHash as its name
-            FileUtils.moveFile(downloadFile, newUpdateFolderPath, expectedBundleFileName);
+            // File is a jsbundle, write it to a folder with the packageHash as its name
+            FileUtils.writeStreamToFile(pushbackStream, new File(newUpdateFolderPath, expectedBundleFileName), CodePushConstants.DOWNLOAD_BUFFER_SIZE);
+        }
+
+        return isZip;
+    }
+
+    private static void drainStream(InputStream inputStream) throws IOException {
+        byte[] drainBuffer = new byte[CodePushConstants.DOWNLOAD_BUFFER_SIZE];
+        while (inputStream.read(drainBuffer) >= 0) {
+            // Discard.
+        }
+    }
+
+    private static boolean isGzipHeader(byte[] header, int headerLength) {
+        return headerLength >= 2 && (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b;
+    }
+
+    private boolean isGzipFile(File file) throws IOException {
+        byte[] header = new byte[2];
+        long fileLength = file.length();
+        readFileHeader(file, header, fileLength);
+        return isGzipHeader(header, (int) Math.min(header.length, fileLength));
+    }
+
+    /**
+     * Replaces a downloaded gzip-compressed update with its contents. Returns whether they are a zip.
+     */
+    private boolean gunzipDownloadFile(File downloadFile) throws IOException {
+        File gunzippedFile = new File(downloadFile.getPath() + ".gunzip");
+        InputStream inputStream = null;
+        try {
+            inputStream = new GZIPInputStream(new FileInputStream(downloadFile), CodePushConstants.DOWNLOAD_BUFFER_SIZE);
+            FileUtils.writeStreamToFile(inputStream, gunzippedFile, CodePushConstants.DOWNLOAD_BUFFER_SIZE);
+        } finally {
+            try {
+                if (inputStream != null) inputStream.close();
+            } catch (IOException e) {
+                throw new CodePushUnknownException("Error closing IO resources.", e);
+            }
         }
 
-        // Save metadata to the folder.
-        CodePushUtils.writeJsonToFile(updatePackage, newUpdateMetadataPath);
+        if (!downloadFile.delete() || !gunzippedFile.renameTo(downloadFile)) {
+            throw new CodePushUnknownException("Unable to replace " + downloadFile.getAbsolutePath() + " with its contents.");
+        }
+
+        byte[] header = new byte[4];
+        readFileHeader(downloadFile, header, downloadFile.length());
+        return downloadFile.length() >= header.length && ByteBuffer.wrap(header).getInt() == ZIP_HEADER_MAGIC;
     }
 
     public void installPackage(JSONObject updatePackage) {
         String packageHash = String.valueOf(updatePackage.optInt(CodePushConstants.PACKAGE_LABEL_KEY, -1));
-        JSONObject info = getCurrentPackageInfo();
+        synchronized (mWriteLock) {
+            JSONObject info = getCurrentPackageInfo();
+
+            String currentPackageHash = String.valueOf(info.optInt(CodePushConstants.CURRENT_LABEL_KEY, -1));
+            if (!packageHash.equals("-1") && packageHash.equals(currentPackageHash) && !isCurrentPackageCorrupt()) {
+                // The current package is already the one being installed, so we should no-op.
+                return;
+            }
+
+            // Metadata is only written once a download has been verified.
+            JSONObject packageMetadata = packageHash.equals("-1") ? null : readPackage(packageHash);
+            if (!packageHash.equals("-1") && packageMetadata == null) {
+                throw new CodePushInvalidUpdateException("Update " + packageHash + " has not been downloaded and verified.");
+            }
+
+            if (packageMetadata != null) {
+                writeIntegrityManifest(packageHash, packageMetadata);
+            }
 
-        String currentPackageHash = String.valueOf(info.optInt(CodePushConstants.CURRENT_LABEL_KEY, -1));
-        if (!packageHash.equals("-1") && packageHash.equals(currentPackageHash)) {
-            // The current package is already the one being installed, so we should no-op.
+            // The package being replaced counts as used until now, so it is retained ahead of older ones.
+            try {
+                if (!currentPackageHash.equals("-1") && !isCurrentPackageCorrupt()) {
+                    mPackageCache.touch(currentPackageHash, new File(getPackageFolderPath(currentPackageHash)));
+                }
+                if (packageMetadata != null) {
+                    mPackageCache.touch(packageHash, new File(getPackageFolderPath(packageHash)));
+                }
+            } catch (IOException e) {
+                CodePushUtils.log(e);
+            }
+
+            JSONObject newInfo = copyCurrentPackageInfo();
+            CodePushUtils.setJSONValueForKey(newInfo, CodePushConstants.CURRENT_LABEL_KEY, packageHash);
+            newInfo.remove(CodePushConstants.CORRUPT_LABEL_KEY);
+            newInfo.remove(CodePushConstants.PENDING_LABEL_KEY);
+            updateCurrentPackageInfo(newInfo, true);
+            evictPackages(null);
+        }
+    }
+
+    /**
+     * Marks the downloaded {@code updatePackage} to be installed by {@link #installPendingPackage()},
+     * typically on the next cold start. Its hash manifest is written now, so that installing it
+     * then only has to switch the current package.
+     */
+    public void stagePackage(JSONObject updatePackage) {
+        String packageHash = String.valueOf(updatePackage.optInt(CodePushConstants.PACKAGE_LABEL_KEY, -1));
+        synchronized (mWriteLock) {
+            JSONObject packageMetadata = readPackage(packageHash);
+            if (packageMetadata == null) {
+                throw new CodePushInvalidUpdateException("Update " + packageHash + " has not been downloaded and verified.");
+            }
+
+            writeIntegrityManifest(packageHash, packageMetadata);
+            JSONObject newInfo = copyCurrentPackageInfo();
+            CodePushUtils.setJSONValueForKey(newInfo, CodePushConstants.PENDING_LABEL_KEY, packageHash);
+            updateCurrentPackageInfo(newInfo);
+        }
+    }
+
+    public String getPendingPackageHash() {
+        return String.valueOf(getCurrentPackageInfo().optInt(CodePushConstants.PENDING_LABEL_KEY, -1));
+    }
+
+    /**
+     * Returns the metadata of the staged package, or null if there is none or it is gone.
+     */
+    public JSONObject getPendingPackage() {
+        String pendingPackageHash = getPendingPackageHash();
+        return pendingPackageHash.equals("-1") ? null : readPackage(pendingPackageHash);
+    }
+
+    /**
+     * Installs the package staged by {@link #stagePackage}, if it is still there. Returns whether
+     * a package was installed.
+     */
+    public boolean installPendingPackage() {
+        synchronized (mWriteLock) {
+            JSONObject pendingPackage = getPendingPackage();
+            if (pendingPackage == null) {
+                discardPendingPackage();
+                return false;
+            }
+
+            installPackage(pendingPackage);
+            return true;
+        }
+    }
+
+    public void discardPendingPackage() {
+        synchronized (mWriteLock) {
+            String pendingPackageHash = getPendingPackageHash();
+            if (pendingPackageHash.equals("-1")) {
+                return;
+            }
+
+            JSONObject newInfo = copyCurrentPackageInfo();
+            newInfo.remove(CodePushConstants.PENDING_LABEL_KEY);
+            updateCurrentPackageInfo(newInfo);
+            if (!pendingPackageHash.equals(getCurrentPackageHash())) {
+                removePackage(pendingPackageHash);
+            }
+        }
+    }
+
+    private void writeIntegrityManifest(String packageHash, JSONObject packageMetadata) {
+        File packageFolder = new File(getPackageFolderPath(packageHash));
+        if (new File(packageFolder, CodePushConstants.PACKAGE_MANIFEST_FILE_NAME).exists()) {
+            // Written when the package was staged; rewriting it would also bless later damage.
             return;
         }
 
-        CodePushUtils.setJSONValueForKey(info, CodePushConstants.CURRENT_LABEL_KEY, packageHash);
-        updateCurrentPackageInfo(info);
+        try {
+            CodePushPackageIntegrity.writeManifest(packageFolder,
+                    packageMetadata.optString(CodePushConstants.RELATIVE_BUNDLE_PATH_KEY, null), mBlobStore.getFileHashes(packageHash));
+        } catch (IOException e) {
+            // The package can still be installed, it just won't be checked for corruption.
+            CodePushUtils.log(e);
+        }
+    }
+
+    /**
+     * Checks the bundle of the current package, found at {@code bundlePath}, against the hash
+     * manifest written when the package was installed.
+     */
+    public boolean verifyCurrentPackageBundle(String bundlePath) {
+        String packageFolderPath = getCurrentPackageFolderPath();
+        return packageFolderPath == null || CodePushPackageIntegrity.verifyBundle(new File(packageFolderPath), new File(bundlePath));
+    }
+
+    /**
+     * Checks a random sample of about {@code byteBudget} bytes of the other files of
+     * {@code packageHash} against its hash manifest.
+     */
+    public boolean verifyPackageFileSample(String packageHash, long byteBudget) {
+        return CodePushPackageIntegrity.verifyFileSample(new File(getPackageFolderPath(packageHash)), byteBudget);
+    }
+
+    public boolean isCurrentPackageCorrupt() {
+        String currentPackageHash = getCurrentPackageHash();
+        return !currentPackageHash.equals("-1")
+                && currentPackageHash.equals(getCurrentPackageInfo().optString(CodePushConstants.CORRUPT_LABEL_KEY, null));
+    }
+
+    /**
+     * Marks {@code packageHash} as corrupt if it is still the current package, so that the next
+     * launch rolls it back instead of loading it.
+     */
+    public void markPackageCorrupt(String packageHash) {
+        synchronized (mWriteLock) {
+            if (!packageHash.equals(getCurrentPackageHash())) {
+                return;
+            }
+
+            JSONObject newInfo = copyCurrentPackageInfo();
+            CodePushUtils.setJSONValueForKey(newInfo, CodePushConstants.CORRUPT_LABEL_KEY, packageHash);
+            updateCurrentPackageInfo(newInfo);
+        }
+    }
+
+    /**
+     * Falls back to the binary bundle and deletes the current package, which was found corrupt.
+     */
+    public void rollBackCorruptPackage() {
+        synchronized (mWriteLock) {
+            String corruptPackageHash = getCurrentPackageHash();
+            JSONObject newInfo = copyCurrentPackageInfo();
+            newInfo.remove(CodePushConstants.CURRENT_LABEL_KEY);
+            newInfo.remove(CodePushConstants.CORRUPT_LABEL_KEY);
+            newInfo.remove(CodePushConstants.PENDING_LABEL_KEY);
+            updateCurrentPackageInfo(newInfo);
+            if (!corruptPackageHash.equals("-1")) {
+                removePackage(corruptPackageHash);
+            }
+        }
+    }
+
+    // The published info is shared with readers, so writers update a copy of it.
+    private JSONObject copyCurrentPackageInfo() {
+        try {
+            return new JSONObject(getCurrentPackageInfo().toString());
+        } catch (JSONException e) {
+            // Should not happen.
+            throw new CodePushUnknownException("Unable to copy current package info", e);
+        }
     }
 
     public void clearUpdates() {
-        FileUtils.deleteDirectoryAtPath(getCodePushPath());
+        synchronized (mWriteLock) {
+            mClearCount++;
+            FileUtils.deleteDirectoryAtPath(getCodePushPath());
+            mPackageCache.reset();
+            mSnapshot.set(createSnapshot(new JSONObject()));
+        }
     }
 }
@@ -0,0 +1,162 @@
+package com.codepush;
+
+import android.os.Process;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the operations of the native module off the JS thread on threads of its own, instead of
+ * the executor shared with the rest of the app. Reads of the update metadata run concurrently,
+ * while the operations that change the update folders run one at a time in the order they were
+ * requested. Downloads run one at a time on a thread of their own, so that a slow or paused one
+ * doesn't hold up installs and clears while it waits for the network. Once the bytes are in, the
+ * update manager makes every change of a download to the update folders under the lock the
+ * writes run under, so the two are still serialized.
+ */
+class CodePushUpdateScheduler {
+    private static final int READ_PARALLELISM = 2;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    // Downloads mostly wait on the network, so they can yield to everything else.
+    private static final int DOWNLOAD_THREAD_PRIORITY = Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_LESS_FAVORABLE;
+
+    private final ThreadPoolExecutor mReadExecutor;
+    private final ThreadPoolExecutor mWriteExecutor;
+    private final ThreadPoolExecutor mDownloadExecutor;
+    private final Map<String, OperationStats> mOperationStats = new LinkedHashMap<>();
+
+    public CodePushUpdateScheduler() {
+        mReadExecutor = createExecutor("CodePushRead", READ_PARALLELISM);
+        mWriteExecutor = createExecutor("CodePushWrite", 1);
+        mDownloadExecutor = createExecutor("CodePushDownload", 1);
+    }
+
+    /**
+     * Runs {@code operation}, which must only read the update metadata, alongside other reads.
+     */
+    public void submitRead(String operationName, Runnable operation) {
+        mReadExecutor.execute(createTask(operationName, Process.THREAD_PRIORITY_BACKGROUND, operation));
+    }
+
+    /**
+     * Queues {@code operation}, which changes the installed updates, behind all the ones queued
+     * before it.
+     */
+    public void submitWrite(String operationName, Runnable operation) {
+        mWriteExecutor.execute(createTask(operationName, Process.THREAD_PRIORITY_BACKGROUND, operation));
+    }
+
+    /**
+     * Queues a download behind the ones queued before it, at a lower thread priority. Downloads
+     * don't wait in the write queue; {@link CodePushUpdateManager#downloadPackage} takes the write
+     * lock for every change it makes to the update folders.
+     */
+    public void submitDownload(String operationName, Runnable operation) {
+        mDownloadExecutor.execute(createTask(operationName, DOWNLOAD_THREAD_PRIORITY, operation));
+    }
+
+    public int getPendingReadCount() {
+        return mReadExecutor.getQueue().size() + mReadExecutor.getActiveCount();
+    }
+
+    public int getPendingWriteCount() {
+        return mWriteExecutor.getQueue().size() + mWriteExecutor.getActiveCount();
+    }
+
+    public int getPendingDownloadCount() {
+        return mDownloadExecutor.getQueue().size() + mDownloadExecutor.getActiveCount();
+    }
+
+    /**
+     * Queue depths and, for every operation run so far, how many times it ran and how long it
+     * waited in the queue and took to run on average and at worst, in milliseconds.
+     */
+    public WritableMap createMetricsMap() {
+        WritableMap metricsMap = Arguments.createMap();
+        metricsMap.putInt("pendingReads", getPendingReadCount());
+        metricsMap.putInt("pendingWrites", getPendingWriteCount());
+        metricsMap.putInt("pendingDownloads", getPendingDownloadCount());
+
+        WritableMap operationsMap = Arguments.createMap();
+        synchronized (mOperationStats) {
+            for (Map.Entry<String, OperationStats> entry : mOperationStats.entrySet()) {
+                OperationStats stats = entry.getValue();
+                WritableMap statsMap = Arguments.createMap();
+                statsMap.putInt("count", stats.count);
+                statsMap.putDouble("averageWaitMillis", toMillis(stats.totalWaitNanos) / stats.count);
+                statsMap.putDouble("maxWaitMillis", toMillis(stats.maxWaitNanos));
+                statsMap.putDouble("averageRunMillis", toMillis(stats.totalRunNanos) / stats.count);
+                statsMap.putDouble("maxRunMillis", toMillis(stats.maxRunNanos));
+                operationsMap.putMap(entry.getKey(), statsMap);
+            }
+        }
+        metricsMap.putMap("operations", operationsMap);
+        return metricsMap;
+    }
+
+    private Runnable createTask(final String operationName, final int threadPriority, final Runnable operation) {
+        final long submitNanos = System.nanoTime();
+        return new Runnable() {
+            @Override
+            public void run() {
+                long startNanos = System.nanoTime();
+                Process.setThreadPriority(threadPriority);
+                try {
+                    operation.run();
+                } finally {
+                    recordOperation(operationName, startNanos - submitNanos, System.nanoTime() - startNanos);
+                }
+            }
+        };
+    }
+
+    private void recordOperation(String operationName, long waitNanos, long runNanos) {
+        synchronized (mOperationStats) {
+            OperationStats stats = mOperationStats.get(operationName);
+            if (stats == null) {
+                stats = new OperationStats();
+                mOperationStats.put(operationName, stats);
+            }
+
+            stats.count++;
+            stats.totalWaitNanos += waitNanos;
+            stats.maxWaitNanos = Math.max(stats.maxWaitNanos, waitNanos);
+            stats.totalRunNanos += runNanos;
+            stats.maxRunNanos = Math.max(stats.maxRunNanos, runNanos);
+        }
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1000000.0;
+    }
+
+    private static ThreadPoolExecutor createExecutor(final String threadName, int threadCount) {
+        final AtomicInteger threadNumber = new AtomicInteger(1);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, threadName + "-" + threadNumber.getAndIncrement());
+                    }
+                });
+        // Let the threads go while the app isn't checking for updates.
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static class OperationStats {
+        int count;
+        long totalWaitNanos;
+        long maxWaitNanos;
+        long totalRunNanos;
+        long maxRunNanos;
+    }
+}
@@ -5,27 +5,230 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 public class CodePushUpdateUtils {
 
-    public static void copyNecessaryFilesFromCurrentPackage(String diffManifestFilePath, String currentPackageFolderPath, String newPackageFolderPath) throws IOException {
+    private static final int HASH_BUFFER_SIZE = 1024 * 64;
+
+    /**
+     * Rebuilds the files listed under "patchedFiles" in the diff manifest by applying the binary
+     * patch shipped in the update to the same file of the current package, then deletes the patch.
+     * Each rebuilt file must match the SHA-256 hash published in the manifest. {@code fileHashes}
+     * (if not null), the hashes of the files in the new package folder, is updated to match.
+     */
+    public static void applyPatchesFromCurrentPackage(String diffManifestFilePath, String currentPackageFolderPath, String newPackageFolderPath,
+                                                      Map<String, String> fileHashes) throws IOException {
+        JSONObject diffManifest = CodePushUtils.getJsonObjectFromFile(diffManifestFilePath);
+        JSONArray patchedFiles = diffManifest.optJSONArray("patchedFiles");
+        if (patchedFiles == null || patchedFiles.length() == 0) {
+            return;
+        }
+
+        if (currentPackageFolderPath == null) {
+            throw new CodePushInvalidUpdateException("Update is invalid - it patches files of a previous update, but no update is installed.");
+        }
+
+        try {
+            for (int i = 0; i < patchedFiles.length(); i++) {
+                JSONObject patchedFile = patchedFiles.getJSONObject(i);
+                String relativePath = patchedFile.getString("path");
+                File oldFile = new File(validatePathInFolder(relativePath, currentPackageFolderPath));
+                File newFile = new File(validatePathInFolder(relativePath, newPackageFolderPath));
+                File patchFile = new File(validatePathInFolder(patchedFile.getString("patch"), newPackageFolderPath));
+                if (!oldFile.exists() || !patchFile.exists()) {
+                    throw new CodePushInvalidUpdateException("Update is invalid - unable to patch \"" + relativePath + "\", the patch or the file it applies to is missing.");
+                }
+
+                String newFileHash = CodePushBinaryPatch.apply(oldFile, patchFile, newFile);
+                patchFile.delete();
+                if (!newFileHash.equals(patchedFile.getString("hash"))) {
+                    newFile.delete();
+                    throw new CodePushInvalidUpdateException("Update is invalid - the patched \"" + relativePath + "\" does not match its expected hash.");
+                }
+
+                if (fileHashes != null) {
+                    fileHashes.remove(new File(patchedFile.getString("patch")).getPath());
+                    fileHashes.put(new File(relativePath).getPath(), newFileHash);
+                }
+            }
+        } catch (JSONException e) {
+            throw new CodePushInvalidUpdateException("Update is invalid - the patchedFiles entry of the diff manifest is malformed.");
+        }
+    }
+
+    private static String validatePathInFolder(String relativePath, String folderPath) throws IOException {
+        String canonicalPath = new File(folderPath, relativePath).getCanonicalPath();
+        if (!canonicalPath.startsWith(new File(folderPath).getCanonicalPath() + File.separator)) {
+            throw new CodePushInvalidUpdateException("Update is invalid - \"" + relativePath + "\" is outside the package folder.");
+        }
+        return canonicalPath;
+    }
+
+    /**
+     * Completes a diff update whose contents are already in their package folder: files that the
+     * update neither shipped nor deleted are brought over from the current package, hard linked
+     * from the blob store when possible and copied otherwise.
+     */
+    public static void copyUnchangedFilesFromCurrentPackage(String diffManifestFilePath, String currentPackageFolderPath, String newPackageFolderPath,
+                                                            CodePushBlobStore blobStore, String currentPackageHash, String newPackageHash) throws IOException {
         if (currentPackageFolderPath == null)
             return;
-        FileUtils.copyDirectoryContents(currentPackageFolderPath, newPackageFolderPath);
         JSONObject diffManifest = CodePushUtils.getJsonObjectFromFile(diffManifestFilePath);
+        Set<String> deletedFiles = new HashSet<>();
         try {
-            JSONArray deletedFiles = diffManifest.getJSONArray("deletedFiles");
-            for (int i = 0; i < deletedFiles.length(); i++) {
-                String fileNameToDelete = deletedFiles.getString(i);
-                File fileToDelete = new File(newPackageFolderPath, fileNameToDelete);
-                if (fileToDelete.exists()) {
-                    fileToDelete.delete();
-                }
+            JSONArray deletedFilesArray = diffManifest.getJSONArray("deletedFiles");
+            for (int i = 0; i < deletedFilesArray.length(); i++) {
+                deletedFiles.add(new File(deletedFilesArray.getString(i)).getPath());
             }
         } catch (JSONException e) {
             throw new CodePushUnknownException("Unable to copy files from current package during diff update", e);
         }
+
+        Map<String, File[]> missingFiles = new HashMap<>();
+        collectMissingFiles(new File(currentPackageFolderPath), new File(newPackageFolderPath), null, deletedFiles, missingFiles);
+        Map<String, File> destFiles = new HashMap<>(missingFiles.size() * 2);
+        for (Map.Entry<String, File[]> missingFile : missingFiles.entrySet()) {
+            destFiles.put(missingFile.getKey(), missingFile.getValue()[1]);
+        }
+
+        for (String relativePath : blobStore.linkFiles(currentPackageHash, destFiles, newPackageHash)) {
+            File[] missingFile = missingFiles.get(relativePath);
+            FileUtils.copyFile(missingFile[0], missingFile[1]);
+        }
+    }
+
+    /**
+     * Collects the files of the current package that the new one neither has nor deletes, keyed
+     * by their relative path, as {source, destination} pairs.
+     */
+    private static void collectMissingFiles(File sourceDir, File destDir, String relativePath, Set<String> deletedFiles,
+                                            Map<String, File[]> missingFiles) {
+        if (!destDir.exists()) {
+            destDir.mkdirs();
+        }
+
+        for (File sourceFile : sourceDir.listFiles()) {
+            String fileRelativePath = relativePath == null ? sourceFile.getName() : new File(relativePath, sourceFile.getName()).getPath();
+            File destFile = new File(destDir, sourceFile.getName());
+            if (sourceFile.isDirectory()) {
+                collectMissingFiles(sourceFile, destFile, fileRelativePath, deletedFiles, missingFiles);
+            } else if (!destFile.exists() && !deletedFiles.contains(fileRelativePath)
+                    && !(relativePath == null && isPackageMetadataFile(sourceFile.getName()))) {
+                missingFiles.put(fileRelativePath, new File[]{sourceFile, destFile});
+            }
+        }
+    }
+
+    /**
+     * Whether a file at the root of a package folder is package metadata (or a backup of it)
+     * rather than part of the update contents.
+     */
+    public static boolean isPackageMetadataFile(String fileName) {
+        return fileName.equals(CodePushConstants.PACKAGE_FILE_NAME) || fileName.startsWith(CodePushConstants.PACKAGE_FILE_NAME + ".")
+                || fileName.equals(CodePushConstants.PACKAGE_MANIFEST_FILE_NAME) || fileName.startsWith(CodePushConstants.PACKAGE_MANIFEST_FILE_NAME + ".");
+    }
+
+    /**
+     * Parses a "bytes first-last/complete" Content-Range header into {first, complete}, where an
+     * unknown complete length is reported as -1. Returns null if the header is missing or invalid.
+     */
+    public static long[] parseContentRange(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return null;
+        }
+
+        try {
+            int dashIndex = contentRange.indexOf('-');
+            int slashIndex = contentRange.indexOf('/');
+            long firstBytePosition = Long.parseLong(contentRange.substring("bytes ".length(), dashIndex).trim());
+            String completeLength = contentRange.substring(slashIndex + 1).trim();
+            long totalBytes = completeLength.equals("*") ? -1 : Long.parseLong(completeLength);
+            return new long[]{firstBytePosition, totalBytes};
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value to send as If-Range for a resource, or null if it has no validator a
+     * server would honour: If-Range needs a strong validator, and a server that gets a weak ETag
+     * answers every Range request with the full body.
+     */
+    public static String getRangeValidator(String eTag, String lastModified) {
+        return eTag != null && !eTag.startsWith("W/") ? eTag : lastModified;
+    }
+
+    public static MessageDigest createMessageDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Should not happen.
+            throw new CodePushUnknownException("SHA-256 is not available on this device.", e);
+        }
+    }
+
+    public static String computeHash(File file) throws IOException {
+        MessageDigest messageDigest = createMessageDigest();
+        updateDigest(messageDigest, file, file.length());
+        return toHexString(messageDigest.digest());
+    }
+
+    /**
+     * Feeds the first {@code length} bytes of {@code file} to {@code messageDigest}.
+     */
+    public static void updateDigest(MessageDigest messageDigest, File file, long length) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[HASH_BUFFER_SIZE];
+            long remainingBytes = length;
+            int numBytesRead;
+            while (remainingBytes > 0 && (numBytesRead = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remainingBytes))) != -1) {
+                messageDigest.update(buffer, 0, numBytesRead);
+                remainingBytes -= numBytesRead;
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Checks the hash of every file extracted from an update archive against the
+     * {@link CodePushConstants#CONTENT_HASHES_KEY} published with it. Every extracted file must be
+     * listed and every listed file must have been extracted.
+     */
+    public static void verifyContentHashes(JSONObject expectedHashes, Map<String, String> entryHashes) {
+        for (Map.Entry<String, String> entryHash : entryHashes.entrySet()) {
+            String expectedHash = expectedHashes.optString(entryHash.getKey(), null);
+            if (expectedHash == null) {
+                throw new CodePushInvalidUpdateException("Update is invalid - \"" + entryHash.getKey() + "\" is not listed in its content hashes.");
+            }
+
+            if (!expectedHash.equalsIgnoreCase(entryHash.getValue())) {
+                throw new CodePushInvalidUpdateException("Update is invalid - \"" + entryHash.getKey() + "\" does not match its expected hash.");
+            }
+        }
+
+        if (expectedHashes.length() != entryHashes.size()) {
+            throw new CodePushInvalidUpdateException("Update is invalid - " + (expectedHashes.length() - entryHashes.size()) + " of the files listed in its content hashes are missing.");
+        }
+    }
+
+    public static String toHexString(byte[] bytes) {
+        StringBuilder hexString = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hexString.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hexString.append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return hexString.toString();
     }
 
     public static String findJSBundleInUpdateContents(String folderPath, String expectedFileName) {
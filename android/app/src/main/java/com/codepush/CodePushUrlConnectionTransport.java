@@ -0,0 +1,108 @@
+package com.codepush;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Transport on top of {@link HttpURLConnection}, whose keep-alive pool is shared with everything
+ * else in the process using it. Connections are only dropped when a request is aborted or its
+ * response is left unread.
+ */
+public class CodePushUrlConnectionTransport implements CodePushHttpTransport {
+    private final int mConnectTimeoutMillis;
+    private final int mReadTimeoutMillis;
+
+    public CodePushUrlConnectionTransport() {
+        this(CodePushConstants.DEFAULT_CONNECT_TIMEOUT_MILLIS, CodePushConstants.DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param connectTimeoutMillis the timeout of setting up a connection, or 0 for none.
+     * @param readTimeoutMillis    the longest wait for the next bytes of a response, or 0 for none.
+     */
+    public CodePushUrlConnectionTransport(int connectTimeoutMillis, int readTimeoutMillis) {
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+    }
+
+    @Override
+    public CodePushHttpConnection openConnection(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) (url.openConnection());
+        connection.setConnectTimeout(mConnectTimeoutMillis);
+        connection.setReadTimeout(mReadTimeoutMillis);
+        // A ResponseCache installed by the app would answer conditional and range requests itself.
+        connection.setUseCaches(false);
+        return new UrlConnection(connection);
+    }
+
+    private static class UrlConnection implements CodePushHttpConnection {
+        private final HttpURLConnection mConnection;
+        private InputStream mInputStream;
+        private int mResponseCode = -1;
+
+        UrlConnection(HttpURLConnection connection) {
+            mConnection = connection;
+        }
+
+        @Override
+        public void setRequestProperty(String key, String value) {
+            mConnection.setRequestProperty(key, value);
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            mResponseCode = mConnection.getResponseCode();
+            return mResponseCode;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        @Override
+        public long getContentLength() {
+            // getContentLength() is limited to 2 GB and getContentLengthLong() needs API 24.
+            String contentLength = mConnection.getHeaderField("Content-Length");
+            try {
+                return contentLength != null ? Long.parseLong(contentLength.trim()) : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (mInputStream == null) {
+                mInputStream = mConnection.getInputStream();
+            }
+            return mInputStream;
+        }
+
+        @Override
+        public synchronized void close() {
+            try {
+                if (mInputStream == null && mResponseCode != -1) {
+                    // Closing the body of a response nobody read, e.g. the empty body of a 304,
+                    // hands the connection back for reuse where possible.
+                    mInputStream = mResponseCode < HttpURLConnection.HTTP_BAD_REQUEST ? mConnection.getInputStream() : mConnection.getErrorStream();
+                }
+                if (mInputStream == null) {
+                    mConnection.disconnect();
+                    return;
+                }
+                mInputStream.close();
+            } catch (IOException e) {
+                // The connection may already have been dropped by a pause or cancel.
+                mConnection.disconnect();
+            }
+        }
+
+        @Override
+        public void disconnect() {
+            mConnection.disconnect();
+        }
+    }
+}
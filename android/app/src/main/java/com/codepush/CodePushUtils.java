@@ -1,9 +1,12 @@
 package com.codepush;
 
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
 import android.util.Log;
+import android.util.MalformedJsonException;
 
 import com.facebook.react.bridge.Arguments;
-import com.facebook.react.bridge.NoSuchKeyException;
 import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.ReadableMapKeySetIterator;
@@ -15,9 +18,19 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayDeque;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 public class CodePushUtils {
 
@@ -25,158 +38,314 @@ public class CodePushUtils {
         return new File(basePath, appendPathComponent).getAbsolutePath();
     }
 
-    public static WritableArray convertJsonArrayToWritable(JSONArray jsonArr) {
-        WritableArray arr = Arguments.createArray();
-        for (int i = 0; i < jsonArr.length(); i++) {
-            Object obj = null;
-            try {
-                obj = jsonArr.get(i);
-            } catch (JSONException jsonException) {
-                // Should not happen.
-                throw new CodePushUnknownException(i + " should be within bounds of array " + jsonArr.toString(), jsonException);
-            }
+    /**
+     * A JSON container being walked by one of the converters below, which keep an explicit stack
+     * of these instead of recursing into nested values.
+     */
+    private static class JsonFrame {
+        final JSONObject object;
+        final JSONArray array;
+        final Iterator<String> keys;
+        final String key;
+        int index = 0;
+        WritableMap writableMap;
+        WritableArray writableArray;
+
+        JsonFrame(JSONObject object, String key) {
+            this.object = object;
+            this.array = null;
+            this.keys = object.keys();
+            this.key = key;
+        }
+
+        JsonFrame(JSONArray array, String key) {
+            this.object = null;
+            this.array = array;
+            this.keys = null;
+            this.key = key;
+        }
 
-            if (obj instanceof JSONObject)
-                arr.pushMap(convertJsonObjectToWritable((JSONObject) obj));
-            else if (obj instanceof JSONArray)
-                arr.pushArray(convertJsonArrayToWritable((JSONArray) obj));
-            else if (obj instanceof String)
-                arr.pushString((String) obj);
-            else if (obj instanceof Double)
-                arr.pushDouble((Double) obj);
-            else if (obj instanceof Integer)
-                arr.pushInt((Integer) obj);
-            else if (obj instanceof Boolean)
-                arr.pushBoolean((Boolean) obj);
-            else if (obj == null)
-                arr.pushNull();
-            else
-                throw new CodePushUnknownException("Unrecognized object: " + obj);
+        boolean hasNext() {
+            return object != null ? keys.hasNext() : index < array.length();
         }
+    }
 
-        return arr;
+    public static WritableArray convertJsonArrayToWritable(JSONArray jsonArr) {
+        JsonFrame root = new JsonFrame(jsonArr, null);
+        convertToWritable(root);
+        return root.writableArray;
     }
 
     public static WritableMap convertJsonObjectToWritable(JSONObject jsonObj) {
-        WritableMap map = Arguments.createMap();
-        Iterator<String> it = jsonObj.keys();
-        while (it.hasNext()) {
-            String key = it.next();
-            Object obj = null;
-            try {
-                obj = jsonObj.get(key);
-            } catch (JSONException jsonException) {
-                // Should not happen.
-                throw new CodePushUnknownException("Key " + key + " should exist in " + jsonObj.toString() + ".", jsonException);
+        JsonFrame root = new JsonFrame(jsonObj, null);
+        convertToWritable(root);
+        return root.writableMap;
+    }
+
+    /**
+     * Fills the writable counterpart of {@code root}. A native map or array copies a nested one
+     * when it is put, so nested containers are only put into their parent once complete.
+     */
+    private static void convertToWritable(JsonFrame root) {
+        ArrayDeque<JsonFrame> stack = new ArrayDeque<>();
+        startWritable(root);
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            JsonFrame frame = stack.peek();
+            if (!frame.hasNext()) {
+                stack.pop();
+                JsonFrame parent = stack.peek();
+                if (parent != null) {
+                    if (frame.writableMap != null) {
+                        if (parent.writableMap != null) parent.writableMap.putMap(frame.key, frame.writableMap);
+                        else parent.writableArray.pushMap(frame.writableMap);
+                    } else {
+                        if (parent.writableMap != null) parent.writableMap.putArray(frame.key, frame.writableArray);
+                        else parent.writableArray.pushArray(frame.writableArray);
+                    }
+                }
+                continue;
             }
 
-            if (obj instanceof JSONObject)
-                map.putMap(key, convertJsonObjectToWritable((JSONObject) obj));
-            else if (obj instanceof JSONArray)
-                map.putArray(key, convertJsonArrayToWritable((JSONArray) obj));
-            else if (obj instanceof String)
-                map.putString(key, (String) obj);
-            else if (obj instanceof Double)
-                map.putDouble(key, (Double) obj);
-            else if (obj instanceof Long)
-                map.putDouble(key, ((Long) obj).doubleValue());
-            else if (obj instanceof Integer)
-                map.putInt(key, (Integer) obj);
-            else if (obj instanceof Boolean)
-                map.putBoolean(key, (Boolean) obj);
-            else if (obj == null)
-                map.putNull(key);
-            else
-                throw new CodePushUnknownException("Unrecognized object: " + obj);
-        }
-
-        return map;
+            String key = frame.object != null ? frame.keys.next() : null;
+            Object obj = frame.object != null ? frame.object.opt(key) : frame.array.opt(frame.index++);
+            if (obj instanceof JSONObject || obj instanceof JSONArray) {
+                JsonFrame child = obj instanceof JSONObject ? new JsonFrame((JSONObject) obj, key) : new JsonFrame((JSONArray) obj, key);
+                startWritable(child);
+                stack.push(child);
+            } else if (frame.writableMap != null) {
+                WritableMap map = frame.writableMap;
+                if (obj instanceof String)
+                    map.putString(key, (String) obj);
+                else if (obj instanceof Double)
+                    map.putDouble(key, (Double) obj);
+                else if (obj instanceof Long)
+                    map.putDouble(key, ((Long) obj).doubleValue());
+                else if (obj instanceof Integer)
+                    map.putInt(key, (Integer) obj);
+                else if (obj instanceof Boolean)
+                    map.putBoolean(key, (Boolean) obj);
+                else if (obj == null || obj == JSONObject.NULL)
+                    map.putNull(key);
+                else
+                    throw new CodePushUnknownException("Unrecognized object: " + obj);
+            } else {
+                WritableArray arr = frame.writableArray;
+                if (obj instanceof String)
+                    arr.pushString((String) obj);
+                else if (obj instanceof Double)
+                    arr.pushDouble((Double) obj);
+                else if (obj instanceof Long)
+                    arr.pushDouble(((Long) obj).doubleValue());
+                else if (obj instanceof Integer)
+                    arr.pushInt((Integer) obj);
+                else if (obj instanceof Boolean)
+                    arr.pushBoolean((Boolean) obj);
+                else if (obj == null || obj == JSONObject.NULL)
+                    arr.pushNull();
+                else
+                    throw new CodePushUnknownException("Unrecognized object: " + obj);
+            }
+        }
+    }
+
+    private static void startWritable(JsonFrame frame) {
+        if (frame.object != null) {
+            frame.writableMap = Arguments.createMap();
+        } else {
+            frame.writableArray = Arguments.createArray();
+        }
     }
 
     public static JSONArray convertReadableToJsonArray(ReadableArray arr) {
         JSONArray jsonArr = new JSONArray();
-        for (int i = 0; i < arr.size(); i++) {
-            ReadableType type = arr.getType(i);
-            switch (type) {
-                case Map:
-                    jsonArr.put(convertReadableToJsonObject(arr.getMap(i)));
+        convertToJson(arr.toArrayList(), jsonArr);
+        return jsonArr;
+    }
+
+    /**
+     * Converts a map received from JS through its {@link ReadableMap#toHashMap} copy.
+     */
+    public static JSONObject convertReadableToJsonObject(ReadableMap map) {
+        JSONObject jsonObj = new JSONObject();
+        convertToJson(map.toHashMap(), jsonObj);
+        return jsonObj;
+    }
+
+    /**
+     * Copies the maps and lists of {@code root} into {@code rootJson} without recursion. As before,
+     * whole numbers in arrays become longs and null values are left out of objects.
+     */
+    @SuppressWarnings("unchecked")
+    private static void convertToJson(Object root, Object rootJson) {
+        ArrayDeque<Object[]> stack = new ArrayDeque<>();
+        stack.push(new Object[]{root, rootJson});
+        while (!stack.isEmpty()) {
+            Object[] pair = stack.pop();
+            if (pair[0] instanceof Map) {
+                JSONObject jsonObj = (JSONObject) pair[1];
+                for (Map.Entry<String, Object> entry : ((Map<String, Object>) pair[0]).entrySet()) {
+                    Object value = entry.getValue();
+                    Object jsonValue = newJsonContainer(value);
+                    try {
+                        jsonObj.put(entry.getKey(), jsonValue != null ? jsonValue : value);
+                    } catch (JSONException jsonException) {
+                        throw new CodePushUnknownException("Error setting key: " + entry.getKey() + " in JSONObject", jsonException);
+                    }
+
+                    if (jsonValue != null) {
+                        stack.push(new Object[]{value, jsonValue});
+                    }
+                }
+            } else {
+                JSONArray jsonArr = (JSONArray) pair[1];
+                for (Object value : (List<Object>) pair[0]) {
+                    Object jsonValue = newJsonContainer(value);
+                    if (jsonValue != null) {
+                        jsonArr.put(jsonValue);
+                        stack.push(new Object[]{value, jsonValue});
+                    } else if (value instanceof Double) {
+                        Double number = (Double) value;
+                        if ((number == Math.floor(number)) && !Double.isInfinite(number)) {
+                            // This is a whole number.
+                            jsonArr.put(number.longValue());
+                        } else {
+                            try {
+                                jsonArr.put(number.doubleValue());
+                            } catch (JSONException jsonException) {
+                                throw new CodePushUnknownException("Unable to put value " + number + " in JSONArray");
+                            }
+                        }
+                    } else {
+                        jsonArr.put(value);
+                    }
+                }
+            }
+        }
+    }
+
+    private static Object newJsonContainer(Object value) {
+        if (value instanceof Map) {
+            return new JSONObject();
+        } else if (value instanceof List) {
+            return new JSONArray();
+        }
+
+        return null;
+    }
+
+    /**
+     * Reads a JSON file written by {@link #writeJsonToFile}, falling back to its previous version
+     * if the file is missing or cannot be parsed.
+     */
+    public static JSONObject getJsonObjectFromFile(String filePath) throws IOException {
+        try {
+            return parseJsonFile(filePath);
+        } catch (IOException | CodePushMalformedDataException e) {
+            String backupFilePath = FileUtils.getBackupFilePath(filePath);
+            if (!FileUtils.fileAtPathExists(backupFilePath)) {
+                throw e;
+            }
+
+            try {
+                JSONObject json = parseJsonFile(backupFilePath);
+                log("Unable to read " + filePath + ", using its previous version instead.");
+                return json;
+            } catch (IOException | CodePushMalformedDataException backupException) {
+                throw e;
+            }
+        }
+    }
+
+    private static JSONObject parseJsonFile(String filePath) throws IOException {
+        JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(filePath), "UTF-8")));
+        try {
+            return readJson(reader);
+        } catch (MalformedJsonException | EOFException | IllegalStateException | NumberFormatException e) {
+            throw new CodePushMalformedDataException(filePath, e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parses a JSON object straight from {@code reader} into the same values {@link JSONObject}
+     * would produce from the whole string, without holding that string in memory.
+     */
+    private static JSONObject readJson(JsonReader reader) throws IOException {
+        JSONObject root = new JSONObject();
+        ArrayDeque<Object> stack = new ArrayDeque<>();
+        reader.beginObject();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Object container = stack.peek();
+            if (!reader.hasNext()) {
+                if (container instanceof JSONObject) reader.endObject();
+                else reader.endArray();
+                stack.pop();
+                continue;
+            }
+
+            String key = container instanceof JSONObject ? reader.nextName() : null;
+            Object value;
+            switch (reader.peek()) {
+                case BEGIN_OBJECT:
+                    reader.beginObject();
+                    value = new JSONObject();
                     break;
-                case Array:
-                    jsonArr.put(convertReadableToJsonArray(arr.getArray(i)));
+                case BEGIN_ARRAY:
+                    reader.beginArray();
+                    value = new JSONArray();
                     break;
-                case String:
-                    jsonArr.put(arr.getString(i));
+                case STRING:
+                    value = reader.nextString();
                     break;
-                case Number:
-                    Double number = arr.getDouble(i);
-                    if ((number == Math.floor(number)) && !Double.isInfinite(number)) {
-                        // This is a whole number.
-                        jsonArr.put(number.longValue());
-                    } else {
-                        try {
-                            jsonArr.put(number.doubleValue());
-                        } catch (JSONException jsonException) {
-                            throw new CodePushUnknownException("Unable to put value " + arr.getDouble(i) + " in JSONArray");
-                        }
-                    }
+                case NUMBER:
+                    value = parseJsonNumber(reader.nextString());
                     break;
-                case Boolean:
-                    jsonArr.put(arr.getBoolean(i));
+                case BOOLEAN:
+                    value = reader.nextBoolean();
                     break;
-                case Null:
-                    jsonArr.put(null);
+                case NULL:
+                    reader.nextNull();
+                    value = JSONObject.NULL;
                     break;
+                default:
+                    throw new MalformedJsonException("Unexpected " + reader.peek());
+            }
+
+            if (key != null) {
+                setJSONValueForKey((JSONObject) container, key, value);
+            } else {
+                ((JSONArray) container).put(value);
+            }
+
+            if (value instanceof JSONObject || value instanceof JSONArray) {
+                stack.push(value);
             }
         }
 
-        return jsonArr;
+        if (reader.peek() != JsonToken.END_DOCUMENT) {
+            throw new MalformedJsonException("Unexpected content after the JSON object.");
+        }
+        return root;
     }
 
-    public static JSONObject convertReadableToJsonObject(ReadableMap map) {
-        JSONObject jsonObj = new JSONObject();
-        ReadableMapKeySetIterator it = map.keySetIterator();
-        while (it.hasNextKey()) {
-            String key = it.nextKey();
-            ReadableType type = map.getType(key);
+    // Mirrors JSONTokener: integers become Integer or Long, anything else Double.
+    private static Object parseJsonNumber(String literal) {
+        if (literal.indexOf('.') == -1 && literal.indexOf('e') == -1 && literal.indexOf('E') == -1) {
             try {
-                switch (type) {
-                    case Map:
-                        jsonObj.put(key, convertReadableToJsonObject(map.getMap(key)));
-                        break;
-                    case Array:
-                        jsonObj.put(key, convertReadableToJsonArray(map.getArray(key)));
-                        break;
-                    case String:
-                        jsonObj.put(key, map.getString(key));
-                        break;
-                    case Number:
-                        jsonObj.put(key, map.getDouble(key));
-                        break;
-                    case Boolean:
-                        jsonObj.put(key, map.getBoolean(key));
-                        break;
-                    case Null:
-                        jsonObj.put(key, null);
-                        break;
-                    default:
-                        throw new CodePushUnknownException("Unrecognized type: " + type + " of key: " + key);
+                long longValue = Long.parseLong(literal);
+                if (longValue <= Integer.MAX_VALUE && longValue >= Integer.MIN_VALUE) {
+                    return (int) longValue;
                 }
-            } catch (JSONException jsonException) {
-                throw new CodePushUnknownException("Error setting key: " + key + " in JSONObject", jsonException);
+                return longValue;
+            } catch (NumberFormatException e) {
+                // Too large for a long, fall through to double.
             }
         }
 
-        return jsonObj;
-    }
-
-    public static JSONObject getJsonObjectFromFile(String filePath) throws IOException {
-        String content = FileUtils.readFileToString(filePath);
-        try {
-            return new JSONObject(content);
-        } catch (JSONException jsonException) {
-            // Should not happen
-            throw new CodePushMalformedDataException(filePath, jsonException);
-        }
+        return Double.valueOf(literal);
     }
 
     public static void log(String message) {
@@ -199,16 +368,88 @@ public class CodePushUtils {
         }
     }
 
+    /**
+     * Returns the value of {@code key} as a string, or null if it is missing or neither a string
+     * nor a number. Numbers, e.g. bundle versions sent as such, are read as integers.
+     */
     public static String tryGetString(ReadableMap map, String key) {
-        try {
-            return String.valueOf(map.getInt(key));
-        } catch (NoSuchKeyException e) {
+        if (!map.hasKey(key)) {
             return null;
         }
+
+        switch (map.getType(key)) {
+            case String:
+                return map.getString(key);
+            case Number:
+                return String.valueOf(map.getInt(key));
+            default:
+                return null;
+        }
     }
 
+    /**
+     * Streams {@code json} to a file written with the same guarantees as
+     * {@link FileUtils#writeStringToFileAtomically}, without building the whole string first.
+     */
     public static void writeJsonToFile(JSONObject json, String filePath) throws IOException {
-        String jsonString = json.toString();
-        FileUtils.writeStringToFile(jsonString, filePath);
+        FileOutputStream out = FileUtils.openAtomicWrite(filePath);
+        try {
+            JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, "UTF-8")));
+            writeJson(writer, json);
+            writer.flush();
+        } catch (IOException | RuntimeException e) {
+            FileUtils.abortAtomicWrite(out, filePath);
+            throw e;
+        }
+
+        FileUtils.commitAtomicWrite(out, filePath);
+    }
+
+    private static void writeJson(JsonWriter writer, JSONObject json) throws IOException {
+        ArrayDeque<JsonFrame> stack = new ArrayDeque<>();
+        writer.beginObject();
+        stack.push(new JsonFrame(json, null));
+        while (!stack.isEmpty()) {
+            JsonFrame frame = stack.peek();
+            if (!frame.hasNext()) {
+                if (frame.object != null) writer.endObject();
+                else writer.endArray();
+                stack.pop();
+                continue;
+            }
+
+            Object value;
+            if (frame.object != null) {
+                String key = frame.keys.next();
+                writer.name(key);
+                value = frame.object.opt(key);
+            } else {
+                value = frame.array.opt(frame.index++);
+            }
+
+            if (value instanceof JSONObject) {
+                writer.beginObject();
+                stack.push(new JsonFrame((JSONObject) value, null));
+            } else if (value instanceof JSONArray) {
+                writer.beginArray();
+                stack.push(new JsonFrame((JSONArray) value, null));
+            } else if (value == null || value == JSONObject.NULL) {
+                writer.nullValue();
+            } else if (value instanceof Boolean) {
+                writer.value((Boolean) value);
+            } else if (value instanceof Double || value instanceof Float) {
+                // Like JSONObject, write whole doubles without a fraction.
+                double doubleValue = ((Number) value).doubleValue();
+                if (doubleValue == (long) doubleValue) {
+                    writer.value((long) doubleValue);
+                } else {
+                    writer.value(doubleValue);
+                }
+            } else if (value instanceof Number) {
+                writer.value(((Number) value).longValue());
+            } else {
+                writer.value(value.toString());
+            }
+        }
     }
 }
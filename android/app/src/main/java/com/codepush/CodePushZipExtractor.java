@@ -0,0 +1,215 @@
+package com.codepush;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Extracts a zip file through {@link ZipFile}, which reads the central directory so that the
+ * entries can be inflated concurrently on the shared I/O threads. Every entry is checked against
+ * the size and CRC recorded for it, since, unlike {@link java.util.zip.ZipInputStream}, the
+ * streams of a {@link ZipFile} don't verify them.
+ */
+class CodePushZipExtractor {
+    private static final int EXTRACT_BUFFER_SIZE = 1024 * 64;
+
+    private static class Entry {
+        ZipEntry zipEntry;
+        String relativePath;
+    }
+
+    /**
+     * Extracts {@code zipFile} into {@code destination}, recording the SHA-256 hash of every file
+     * in {@code entryHashes} (if not null).
+     */
+    public void extract(File zipFile, String destination, final Map<String, String> entryHashes) throws IOException {
+        final ZipFile archive = new ZipFile(zipFile);
+        try {
+            List<Entry> entries = readEntries(archive);
+
+            // Create every directory once instead of checking the parent of every file.
+            final File destinationFolder = new File(destination);
+            Set<String> directories = new TreeSet<>();
+            List<Entry> files = new ArrayList<>(entries.size());
+            for (Entry entry : entries) {
+                if (entry.relativePath.endsWith("/")) {
+                    directories.add(entry.relativePath);
+                } else {
+                    files.add(entry);
+                    int separatorIndex = entry.relativePath.lastIndexOf('/');
+                    if (separatorIndex > 0) {
+                        directories.add(entry.relativePath.substring(0, separatorIndex + 1));
+                    }
+                }
+            }
+
+            destinationFolder.mkdirs();
+            for (String directory : directories) {
+                new File(destinationFolder, directory).mkdirs();
+            }
+
+            // Start with the largest entries so that the workers finish at about the same time.
+            Collections.sort(files, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry lhs, Entry rhs) {
+                    return Long.valueOf(rhs.zipEntry.getCompressedSize()).compareTo(lhs.zipEntry.getCompressedSize());
+                }
+            });
+
+            if (files.size() <= 1) {
+                for (Entry entry : files) {
+                    extractEntry(archive, entry, destinationFolder, entryHashes);
+                }
+                return;
+            }
+
+            List<Callable<Void>> extractTasks = new ArrayList<>(files.size());
+            for (final Entry entry : files) {
+                extractTasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        extractEntry(archive, entry, destinationFolder, entryHashes);
+                        return null;
+                    }
+                });
+            }
+            FileUtils.runIoTasks(extractTasks, "extracting " + zipFile.getName());
+        } finally {
+            archive.close();
+        }
+    }
+
+    /**
+     * Lists the entries of the archive, validating every name against path traversal without
+     * touching the file system. Two entries resolving to the same path would be written to the
+     * same file at once, so such an archive is rejected.
+     */
+    private static List<Entry> readEntries(ZipFile archive) throws ZipException {
+        List<Entry> entries = new ArrayList<>(archive.size());
+        Set<String> relativePaths = new HashSet<>(archive.size() * 2);
+        Enumeration<? extends ZipEntry> zipEntries = archive.entries();
+        while (zipEntries.hasMoreElements()) {
+            ZipEntry zipEntry = zipEntries.nextElement();
+            String relativePath = normalizeEntryName(zipEntry.getName());
+            if (relativePath == null) {
+                continue;
+            }
+
+            String path = relativePath.endsWith("/") ? relativePath.substring(0, relativePath.length() - 1) : relativePath;
+            if (!relativePaths.add(path)) {
+                throw new ZipException("Duplicate entry " + relativePath + ".");
+            }
+
+            Entry entry = new Entry();
+            entry.zipEntry = zipEntry;
+            entry.relativePath = relativePath;
+            entries.add(entry);
+        }
+
+        return entries;
+    }
+
+    /**
+     * Resolves "." and ".." segments of an entry name, rejecting names that would escape the
+     * extraction folder. Returns null for entries that name the folder itself.
+     */
+    private static String normalizeEntryName(String entryName) {
+        String[] segments = entryName.replace('\\', '/').split("/");
+        List<String> normalizedSegments = new ArrayList<>(segments.length);
+        for (String segment : segments) {
+            if (segment.isEmpty() || segment.equals(".")) {
+                continue;
+            }
+
+            if (segment.equals("..")) {
+                if (normalizedSegments.isEmpty()) {
+                    throw new IllegalStateException("File is outside extraction target directory.");
+                }
+                normalizedSegments.remove(normalizedSegments.size() - 1);
+            } else {
+                normalizedSegments.add(segment);
+            }
+        }
+
+        if (normalizedSegments.isEmpty()) {
+            return null;
+        }
+
+        StringBuilder normalizedName = new StringBuilder(entryName.length());
+        for (String segment : normalizedSegments) {
+            if (normalizedName.length() > 0) {
+                normalizedName.append('/');
+            }
+            normalizedName.append(segment);
+        }
+
+        if (entryName.endsWith("/") || entryName.endsWith("\\")) {
+            normalizedName.append('/');
+        }
+        return normalizedName.toString();
+    }
+
+    private static void extractEntry(ZipFile archive, Entry entry, File destinationFolder, Map<String, String> entryHashes) throws IOException {
+        ZipEntry zipEntry = entry.zipEntry;
+        File file = new File(destinationFolder, entry.relativePath);
+        MessageDigest messageDigest = entryHashes != null ? CodePushUpdateUtils.createMessageDigest() : null;
+        CRC32 crc = new CRC32();
+        long size = 0;
+        byte[] buffer = new byte[(int) Math.min(EXTRACT_BUFFER_SIZE, Math.max(1, zipEntry.getSize()))];
+        InputStream inputStream = null;
+        FileOutputStream outputStream = null;
+        try {
+            inputStream = archive.getInputStream(zipEntry);
+            outputStream = new FileOutputStream(file);
+            int numBytesRead;
+            while ((numBytesRead = inputStream.read(buffer)) != -1) {
+                crc.update(buffer, 0, numBytesRead);
+                if (messageDigest != null) {
+                    messageDigest.update(buffer, 0, numBytesRead);
+                }
+                outputStream.write(buffer, 0, numBytesRead);
+                size += numBytesRead;
+            }
+        } finally {
+            try {
+                if (outputStream != null) outputStream.close();
+                if (inputStream != null) inputStream.close();
+            } catch (IOException e) {
+                throw new CodePushUnknownException("Error closing IO resources.", e);
+            }
+        }
+
+        if ((zipEntry.getSize() >= 0 && size != zipEntry.getSize())
+                || (zipEntry.getCrc() >= 0 && crc.getValue() != zipEntry.getCrc())) {
+            throw new ZipException("Corrupt entry " + entry.relativePath + ".");
+        }
+
+        if (messageDigest != null) {
+            String hash = CodePushUpdateUtils.toHexString(messageDigest.digest());
+            synchronized (entryHashes) {
+                entryHashes.put(entry.relativePath, hash);
+            }
+        }
+
+        long time = zipEntry.getTime();
+        if (time > 0) {
+            file.setLastModified(time);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.codepush;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Inflates a gzip-encoded download and counts the inflated bytes into the decompressed bytes of a
+ * {@link DownloadProgress}, while the stream below it keeps counting the compressed bytes taken
+ * off the network.
+ */
+class DecompressingProgressInputStream extends FilterInputStream {
+    private final DownloadProgress mProgress;
+
+    public DecompressingProgressInputStream(InputStream compressedStream, DownloadProgress progress) throws IOException {
+        super(new GZIPInputStream(compressedStream, CodePushConstants.DOWNLOAD_BUFFER_SIZE));
+        mProgress = progress;
+        mProgress.startDecompressing();
+    }
+
+    @Override
+    public int read() throws IOException {
+        int value = super.read();
+        if (value >= 0) {
+            mProgress.addDecompressedBytes(1);
+        }
+        return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int numBytesRead = super.read(buffer, offset, length);
+        if (numBytesRead > 0) {
+            mProgress.addDecompressedBytes(numBytesRead);
+        }
+        return numBytesRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        if (skipped > 0) {
+            mProgress.addDecompressedBytes(skipped);
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
@@ -3,32 +3,128 @@ package com.codepush;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.bridge.WritableNativeMap;
 
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte counters of a download. The downloader publishes into them from any number of threads and
+ * the callback is handed this same object every time, so reporting progress allocates nothing; it
+ * is up to the callback to decide whether the new values are worth an event.
+ */
 class DownloadProgress {
-    private long mTotalBytes;
-    private long mReceivedBytes;
+    // Throughput is measured over windows of this length, long enough to even out bursty reads.
+    private static final long THROUGHPUT_WINDOW_NANOS = 500 * 1000000L;
+
+    private final DownloadProgressCallback mProgressCallback;
+    private final AtomicLong mTotalBytes = new AtomicLong(-1);
+    private final AtomicLong mReceivedBytes = new AtomicLong(0);
+    private final AtomicLong mDecompressedBytes = new AtomicLong(-1);
+    private final AtomicLong mWindowStartNanos = new AtomicLong(System.nanoTime());
+    private final AtomicLong mWindowStartBytes = new AtomicLong(0);
+    private final AtomicLong mBytesPerSecond = new AtomicLong(-1);
 
-    public DownloadProgress(long totalBytes, long receivedBytes) {
-        mTotalBytes = totalBytes;
-        mReceivedBytes = receivedBytes;
+    public DownloadProgress(DownloadProgressCallback progressCallback) {
+        mProgressCallback = progressCallback;
     }
 
-    public WritableMap createWritableMap() {
-        WritableMap map = new WritableNativeMap();
-        if (mTotalBytes < Integer.MAX_VALUE) {
-            map.putInt("totalBytes", (int) mTotalBytes);
-            map.putInt("receivedBytes", (int) mReceivedBytes);
-        } else {
-            map.putDouble("totalBytes", mTotalBytes);
-            map.putDouble("receivedBytes", mReceivedBytes);
+    /**
+     * Starts counting a new transfer of {@code totalBytes}, or of an unknown size if negative,
+     * of which {@code receivedBytes} are already there.
+     */
+    public void reset(long totalBytes, long receivedBytes) {
+        mTotalBytes.set(totalBytes);
+        mReceivedBytes.set(receivedBytes);
+        mDecompressedBytes.set(-1);
+        mWindowStartNanos.set(System.nanoTime());
+        mWindowStartBytes.set(receivedBytes);
+        mBytesPerSecond.set(-1);
+        mProgressCallback.call(this);
+    }
+
+    public void addReceivedBytes(long count) {
+        long receivedBytes = mReceivedBytes.addAndGet(count);
+        long windowStartNanos = mWindowStartNanos.get();
+        long elapsedNanos = System.nanoTime() - windowStartNanos;
+        // Only the thread that closes a window measures it, the others carry on counting. A
+        // transfer that completes within its first window is measured as a whole.
+        boolean isWindowClosed = elapsedNanos >= THROUGHPUT_WINDOW_NANOS
+                || (mBytesPerSecond.get() < 0 && receivedBytes == mTotalBytes.get() && elapsedNanos > 0);
+        if (isWindowClosed && mWindowStartNanos.compareAndSet(windowStartNanos, windowStartNanos + elapsedNanos)) {
+            long windowBytes = receivedBytes - mWindowStartBytes.getAndSet(receivedBytes);
+            mBytesPerSecond.set(windowBytes * 1000000000L / elapsedNanos);
         }
-        return map;
+        mProgressCallback.call(this);
+    }
+
+    /**
+     * Marks the transfer as compressed: the total and received bytes count compressed bytes from
+     * then on, and the bytes they decompress to are counted by {@link #addDecompressedBytes}.
+     */
+    public void startDecompressing() {
+        mDecompressedBytes.set(0);
+    }
+
+    /**
+     * Counts decompressed bytes. These trail the received bytes they come from and are reported
+     * with the next update of those, so this doesn't notify the callback.
+     */
+    public void addDecompressedBytes(long count) {
+        mDecompressedBytes.addAndGet(count);
+    }
+
+    public long getTotalBytes() {
+        return mTotalBytes.get();
+    }
+
+    public long getReceivedBytes() {
+        return mReceivedBytes.get();
+    }
+
+    /**
+     * Returns the number of bytes the received bytes decompressed to, or -1 if the transfer is
+     * not compressed.
+     */
+    public long getDecompressedBytes() {
+        return mDecompressedBytes.get();
+    }
+
+    /**
+     * Returns the rate at which bytes were received over the last half second, or -1 until a
+     * transfer has run for that long or completed.
+     */
+    public long getBytesPerSecond() {
+        return mBytesPerSecond.get();
     }
 
     public boolean isCompleted() {
-        return mTotalBytes == mReceivedBytes;
+        return mTotalBytes.get() == mReceivedBytes.get();
+    }
+
+    /**
+     * @param decompressedBytes added to the map only if not negative, i.e. for compressed transfers.
+     * @param bytesPerSecond    added to the map only if not negative, i.e. once measured.
+     */
+    public static WritableMap createWritableMap(long totalBytes, long receivedBytes, long decompressedBytes, long bytesPerSecond) {
+        WritableMap map = new WritableNativeMap();
+        if (totalBytes < Integer.MAX_VALUE && decompressedBytes < Integer.MAX_VALUE) {
+            map.putInt("totalBytes", (int) totalBytes);
+            map.putInt("receivedBytes", (int) receivedBytes);
+            if (decompressedBytes >= 0) {
+                map.putInt("decompressedBytes", (int) decompressedBytes);
+            }
+        } else {
+            map.putDouble("totalBytes", totalBytes);
+            map.putDouble("receivedBytes", receivedBytes);
+            if (decompressedBytes >= 0) {
+                map.putDouble("decompressedBytes", decompressedBytes);
+            }
+        }
+        if (bytesPerSecond >= 0) {
+            map.putDouble("bytesPerSecond", bytesPerSecond);
+        }
+        return map;
     }
 }
 
 interface DownloadProgressCallback {
     void call(DownloadProgress downloadProgress);
-}
\ No newline at end of file
+}
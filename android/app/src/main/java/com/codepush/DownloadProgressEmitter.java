@@ -0,0 +1,101 @@
+package com.codepush;
+
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.modules.core.ChoreographerCompat;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+import com.facebook.react.modules.core.ReactChoreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Turns the progress counters of one download into {@link CodePushConstants#DOWNLOAD_PROGRESS_EVENT_NAME}
+ * events. Updates are coalesced into at most one event per {@code minIntervalMillis} and per
+ * {@code minByteDelta} bytes, emitted on the next frame; the event for a completed download is
+ * emitted right away and never dropped.
+ */
+class DownloadProgressEmitter implements DownloadProgressCallback {
+    private final ReactApplicationContext mReactContext;
+    private final long mMinIntervalNanos;
+    private final long mMinByteDelta;
+    private final DownloadProgress mProgress = new DownloadProgress(this);
+    private final AtomicBoolean mFrameScheduled = new AtomicBoolean(false);
+
+    // Read by the downloading threads to throttle, written under the lock by emitters.
+    private volatile long mLastEmitNanos = 0;
+    private volatile long mLastEmittedReceivedBytes = -1;
+    private long mLastEmittedTotalBytes = -1;
+    private long mLastEmittedDecompressedBytes = -1;
+
+    private final Runnable mScheduleFrame = new Runnable() {
+        @Override
+        public void run() {
+            ReactChoreographer.getInstance().postFrameCallback(ReactChoreographer.CallbackType.TIMERS_EVENTS, mFrameCallback);
+        }
+    };
+
+    private final ChoreographerCompat.FrameCallback mFrameCallback = new ChoreographerCompat.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFrameScheduled.set(false);
+            emitIfChanged(false);
+        }
+    };
+
+    public DownloadProgressEmitter(ReactApplicationContext reactContext, long minIntervalMillis, long minByteDelta) {
+        mReactContext = reactContext;
+        mMinIntervalNanos = Math.max(0, minIntervalMillis) * 1000000L;
+        mMinByteDelta = Math.max(0, minByteDelta);
+    }
+
+    public DownloadProgress getProgress() {
+        return mProgress;
+    }
+
+    @Override
+    public void call(DownloadProgress downloadProgress) {
+        // If the download is completed, synchronously send the last event.
+        if (downloadProgress.isCompleted()) {
+            emitIfChanged(true);
+            return;
+        }
+
+        // Going backwards means a new transfer started, which is always worth an event.
+        long newBytes = downloadProgress.getReceivedBytes() - mLastEmittedReceivedBytes;
+        if ((newBytes >= 0 && newBytes < mMinByteDelta) || System.nanoTime() - mLastEmitNanos < mMinIntervalNanos) {
+            return;
+        }
+
+        if (mFrameScheduled.compareAndSet(false, true)) {
+            mReactContext.runOnUiQueueThread(mScheduleFrame);
+        }
+    }
+
+    /**
+     * Emits the final state of a successful download, for servers that don't send its length.
+     */
+    public void finish() {
+        emitIfChanged(true);
+    }
+
+    private synchronized void emitIfChanged(boolean isFinal) {
+        long receivedBytes = mProgress.getReceivedBytes();
+        long totalBytes = mProgress.getTotalBytes();
+        long decompressedBytes = mProgress.getDecompressedBytes();
+        if (isFinal && totalBytes < 0) {
+            totalBytes = receivedBytes;
+        }
+        if (receivedBytes == mLastEmittedReceivedBytes && totalBytes == mLastEmittedTotalBytes
+                && decompressedBytes == mLastEmittedDecompressedBytes) {
+            return;
+        }
+
+        mLastEmittedReceivedBytes = receivedBytes;
+        mLastEmittedTotalBytes = totalBytes;
+        mLastEmittedDecompressedBytes = decompressedBytes;
+        mLastEmitNanos = System.nanoTime();
+        mReactContext
+                .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit(CodePushConstants.DOWNLOAD_PROGRESS_EVENT_NAME,
+                        DownloadProgress.createWritableMap(totalBytes, receivedBytes, decompressedBytes, mProgress.getBytesPerSecond()));
+    }
+}
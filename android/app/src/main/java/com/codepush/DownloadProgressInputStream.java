@@ -0,0 +1,62 @@
+package com.codepush;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes pulled off the network and reports them to a {@link DownloadProgress},
+ * so that consumers which never see the raw bytes (e.g. a {@link java.util.zip.ZipInputStream})
+ * still drive download progress.
+ */
+class DownloadProgressInputStream extends FilterInputStream {
+    private final DownloadProgress mProgress;
+    private long mReceivedBytes = 0;
+
+    public DownloadProgressInputStream(InputStream in, long totalBytes, DownloadProgress progress) {
+        super(in);
+        mProgress = progress;
+        mProgress.reset(totalBytes, 0);
+    }
+
+    public long getReceivedBytes() {
+        return mReceivedBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int value = super.read();
+        if (value >= 0) {
+            onBytesReceived(1);
+        }
+        return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int numBytesRead = super.read(buffer, offset, length);
+        if (numBytesRead > 0) {
+            onBytesReceived(numBytesRead);
+        }
+        return numBytesRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        if (skipped > 0) {
+            onBytesReceived(skipped);
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void onBytesReceived(long count) {
+        mReceivedBytes += count;
+        mProgress.addReceivedBytes(count);
+    }
+}
@@ -1,55 +1,158 @@
 package com.codepush;
 
-import java.io.BufferedInputStream;
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 public class FileUtils {
 
     private static final int WRITE_BUFFER_SIZE = 1024 * 8;
+    private static final String BACKUP_FILE_SUFFIX = ".bak";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    static final int IO_PARALLELISM = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final long IO_KEEP_ALIVE_SECONDS = 30;
+    private static final ThreadPoolExecutor IO_EXECUTOR = createIoExecutor();
 
+    /**
+     * Copies the contents of a directory tree. The destination directories are created up front
+     * and the files are then copied with {@link FileChannel#transferTo} on the shared I/O threads.
+     */
     public static void copyDirectoryContents(String sourceDirectoryPath, String destinationDirectoryPath) throws IOException {
-        File sourceDir = new File(sourceDirectoryPath);
-        File destDir = new File(destinationDirectoryPath);
+        List<File[]> filesToCopy = new ArrayList<>();
+        collectFilesToCopy(new File(sourceDirectoryPath), new File(destinationDirectoryPath), filesToCopy);
+        if (filesToCopy.size() <= 1) {
+            for (File[] fileToCopy : filesToCopy) {
+                copyFile(fileToCopy[0], fileToCopy[1]);
+            }
+            return;
+        }
+
+        List<Callable<Void>> copyTasks = new ArrayList<>(filesToCopy.size());
+        for (final File[] fileToCopy : filesToCopy) {
+            copyTasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    copyFile(fileToCopy[0], fileToCopy[1]);
+                    return null;
+                }
+            });
+        }
+        runIoTasks(copyTasks, "copying " + sourceDirectoryPath);
+    }
+
+    private static void collectFilesToCopy(File sourceDir, File destDir, List<File[]> filesToCopy) {
         if (!destDir.exists()) {
-            destDir.mkdir();
+            destDir.mkdirs();
         }
 
         for (File sourceFile : sourceDir.listFiles()) {
+            File destFile = new File(destDir, sourceFile.getName());
             if (sourceFile.isDirectory()) {
-                copyDirectoryContents(
-                        CodePushUtils.appendPathComponent(sourceDirectoryPath, sourceFile.getName()),
-                        CodePushUtils.appendPathComponent(destinationDirectoryPath, sourceFile.getName()));
+                collectFilesToCopy(sourceFile, destFile, filesToCopy);
             } else {
-                File destFile = new File(destDir, sourceFile.getName());
-                FileInputStream fromFileStream = null;
-                BufferedInputStream fromBufferedStream = null;
-                FileOutputStream destStream = null;
-                byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+                filesToCopy.add(new File[]{sourceFile, destFile});
+            }
+        }
+    }
+
+    /**
+     * Runs {@code tasks} on the I/O threads shared by all copies and extractions, which are
+     * bounded to {@link #IO_PARALLELISM}, and waits for all of them. The first failure cancels
+     * the tasks that haven't finished and is rethrown.
+     */
+    static void runIoTasks(List<Callable<Void>> tasks, String description) throws IOException {
+        List<Future<Void>> futures = new ArrayList<>(tasks.size());
+        try {
+            for (Callable<Void> task : tasks) {
+                futures.add(IO_EXECUTOR.submit(task));
+            }
+
+            for (Future<Void> future : futures) {
                 try {
-                    fromFileStream = new FileInputStream(sourceFile);
-                    fromBufferedStream = new BufferedInputStream(fromFileStream);
-                    destStream = new FileOutputStream(destFile);
-                    int bytesRead;
-                    while ((bytesRead = fromBufferedStream.read(buffer)) > 0) {
-                        destStream.write(buffer, 0, bytesRead);
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
                     }
-                } finally {
-                    try {
-                        if (fromFileStream != null) fromFileStream.close();
-                        if (fromBufferedStream != null) fromBufferedStream.close();
-                        if (destStream != null) destStream.close();
-                    } catch (IOException e) {
-                        throw new CodePushUnknownException("Error closing IO resources.", e);
+                    throw new CodePushUnknownException("Error " + description + ".", cause);
+                } catch (InterruptedException e) {
+                    throw new CodePushUnknownException("Interrupted while " + description + ".", e);
+                }
+            }
+        } finally {
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static ThreadPoolExecutor createIoExecutor() {
+        final AtomicInteger threadNumber = new AtomicInteger(1);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(IO_PARALLELISM, IO_PARALLELISM, IO_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, "CodePushIO-" + threadNumber.getAndIncrement());
                     }
+                });
+        // Let the threads go between installs.
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public static void copyFile(File sourceFile, File destFile) throws IOException {
+        FileInputStream fromFileStream = null;
+        FileOutputStream destStream = null;
+        try {
+            fromFileStream = new FileInputStream(sourceFile);
+            destStream = new FileOutputStream(destFile);
+            FileChannel sourceChannel = fromFileStream.getChannel();
+            FileChannel destChannel = destStream.getChannel();
+            long size = sourceChannel.size();
+            long position = 0;
+            while (position < size) {
+                long bytesTransferred = sourceChannel.transferTo(position, size - position, destChannel);
+                if (bytesTransferred <= 0) {
+                    throw new IOException("Unable to copy " + sourceFile.getAbsolutePath() + " past byte " + position + ".");
                 }
+                position += bytesTransferred;
+            }
+        } finally {
+            try {
+                if (fromFileStream != null) fromFileStream.close();
+                if (destStream != null) destStream.close();
+            } catch (IOException e) {
+                throw new CodePushUnknownException("Error closing IO resources.", e);
             }
         }
     }
@@ -86,6 +189,10 @@ public class FileUtils {
         }
     }
 
+    public static String getBackupFilePath(String filePath) {
+        return filePath + BACKUP_FILE_SUFFIX;
+    }
+
     public static boolean fileAtPathExists(String filePath) {
         return new File(filePath).exists();
     }
@@ -123,75 +230,120 @@ public class FileUtils {
         }
     }
 
-    private static String validateFileName(String fileName, String targetDirectory) throws IOException {
-        File file = new File(fileName);
-        String canonicalPath = file.getCanonicalPath();
-
-        File targetFile = new File(targetDirectory);
-        String targetCanonicalPath = targetFile.getCanonicalPath();
-
-        if (!canonicalPath.startsWith(targetCanonicalPath)) {
+    private static String validateFileName(String fileName, String targetCanonicalPath) throws IOException {
+        String canonicalPath = new File(fileName).getCanonicalPath();
+        // Without the separator, an entry of package 12 could escape into its sibling package 123.
+        if (!canonicalPath.startsWith(targetCanonicalPath + File.separator) && !canonicalPath.equals(targetCanonicalPath)) {
             throw new IllegalStateException("File is outside extraction target directory.");
         }
 
         return canonicalPath;
     }
 
+    /**
+     * Extracts {@code zipFile} into a fresh {@code destination} folder, inflating the entries
+     * concurrently from the central directory.
+     */
     public static void unzipFile(File zipFile, String destination) throws IOException {
-        FileInputStream fileStream = null;
-        BufferedInputStream bufferedStream = null;
-        ZipInputStream zipStream = null;
-        try {
-            fileStream = new FileInputStream(zipFile);
-            bufferedStream = new BufferedInputStream(fileStream);
-            zipStream = new ZipInputStream(bufferedStream);
-            ZipEntry entry;
-
-            File destinationFolder = new File(destination);
-            if (destinationFolder.exists()) {
-                deleteFileOrFolderSilently(destinationFolder);
-            }
+        unzipFile(zipFile, destination, null);
+    }
+
+    /**
+     * Like {@link #unzipFile(File, String)}, additionally recording the SHA-256 hash of every
+     * extracted file in {@code entryHashes} (if not null), keyed by its path in the archive.
+     */
+    public static void unzipFile(File zipFile, String destination, Map<String, String> entryHashes) throws IOException {
+        File destinationFolder = new File(destination);
+        if (destinationFolder.exists()) {
+            deleteFileOrFolderSilently(destinationFolder);
+        }
 
-            destinationFolder.mkdirs();
+        new CodePushZipExtractor().extract(zipFile, destination, entryHashes);
+    }
 
-            byte[] buffer = new byte[WRITE_BUFFER_SIZE];
-            while ((entry = zipStream.getNextEntry()) != null) {
-                String fileName = validateFileName(entry.getName(), ".");
-                File file = new File(destinationFolder, fileName);
-                if (entry.isDirectory()) {
-                    file.mkdirs();
-                } else {
-                    File parent = file.getParentFile();
-                    if (!parent.exists()) {
-                        parent.mkdirs();
-                    }
+    /**
+     * Inflates every entry of the zip archive read from {@code inputStream} into {@code destination},
+     * merging with whatever the folder already contains. The stream is consumed up to the end of
+     * the last entry but is not closed, so callers reading from the network can drain the trailing
+     * central directory themselves.
+     */
+    public static void unzipStream(InputStream inputStream, String destination) throws IOException {
+        unzipStream(inputStream, destination, null);
+    }
+
+    /**
+     * Like {@link #unzipStream(InputStream, String)}, additionally recording the SHA-256 hash of
+     * every extracted file in {@code entryHashes} (if not null), keyed by its path in the archive.
+     */
+    public static void unzipStream(InputStream inputStream, String destination, Map<String, String> entryHashes) throws IOException {
+        ZipInputStream zipStream = new ZipInputStream(inputStream);
+        ZipEntry entry;
+
+        File destinationFolder = new File(destination);
+        destinationFolder.mkdirs();
+        String destinationCanonicalPath = destinationFolder.getCanonicalPath();
+        MessageDigest messageDigest = entryHashes != null ? CodePushUpdateUtils.createMessageDigest() : null;
 
-                    FileOutputStream fout = new FileOutputStream(file);
-                    try {
-                        int numBytesRead;
-                        while ((numBytesRead = zipStream.read(buffer)) != -1) {
-                            fout.write(buffer, 0, numBytesRead);
+        byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+        while ((entry = zipStream.getNextEntry()) != null) {
+            String fileName = validateFileName(new File(destinationFolder, entry.getName()).getPath(), destinationCanonicalPath);
+            File file = new File(fileName);
+            if (entry.isDirectory()) {
+                file.mkdirs();
+            } else {
+                File parent = file.getParentFile();
+                if (!parent.exists()) {
+                    parent.mkdirs();
+                }
+
+                FileOutputStream fout = new FileOutputStream(file);
+                try {
+                    int numBytesRead;
+                    while ((numBytesRead = zipStream.read(buffer)) != -1) {
+                        fout.write(buffer, 0, numBytesRead);
+                        if (messageDigest != null) {
+                            messageDigest.update(buffer, 0, numBytesRead);
                         }
-                    } finally {
-                        fout.close();
                     }
+                } finally {
+                    fout.close();
                 }
-                long time = entry.getTime();
-                if (time > 0) {
-                    file.setLastModified(time);
+
+                if (messageDigest != null && fileName.length() > destinationCanonicalPath.length()) {
+                    String relativePath = fileName.substring(destinationCanonicalPath.length() + 1).replace(File.separatorChar, '/');
+                    entryHashes.put(relativePath, CodePushUpdateUtils.toHexString(messageDigest.digest()));
                 }
             }
-        } finally {
-            try {
-                if (zipStream != null) zipStream.close();
-                if (bufferedStream != null) bufferedStream.close();
-                if (fileStream != null) fileStream.close();
-            } catch (IOException e) {
-                throw new CodePushUnknownException("Error closing IO resources.", e);
+            long time = entry.getTime();
+            if (time > 0) {
+                file.setLastModified(time);
             }
         }
     }
 
+    public static long writeStreamToFile(InputStream inputStream, File destFile, int bufferSize) throws IOException {
+        File parent = destFile.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+
+        FileOutputStream fos = null;
+        long bytesWritten = 0;
+        byte[] buffer = new byte[bufferSize];
+        try {
+            fos = new FileOutputStream(destFile);
+            int numBytesRead;
+            while ((numBytesRead = inputStream.read(buffer)) >= 0) {
+                fos.write(buffer, 0, numBytesRead);
+                bytesWritten += numBytesRead;
+            }
+        } finally {
+            if (fos != null) fos.close();
+        }
+
+        return bytesWritten;
+    }
+
     public static void writeStringToFile(String content, String filePath) throws IOException {
         PrintWriter out = null;
         try {
@@ -201,4 +353,100 @@ public class FileUtils {
             if (out != null) out.close();
         }
     }
+
+    /**
+     * Replaces the file at {@code filePath} without ever leaving a partially written file behind:
+     * the content is written and synced to a temporary file which is then renamed over the target.
+     * The previous version is kept at {@link #getBackupFilePath} so readers can fall back to it.
+     */
+    public static void writeStringToFileAtomically(String content, String filePath) throws IOException {
+        FileOutputStream out = openAtomicWrite(filePath);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } catch (IOException e) {
+            abortAtomicWrite(out, filePath);
+            throw e;
+        }
+
+        commitAtomicWrite(out, filePath);
+    }
+
+    /**
+     * Opens the temporary file that {@link #commitAtomicWrite} later moves over {@code filePath}.
+     */
+    public static FileOutputStream openAtomicWrite(String filePath) throws IOException {
+        return new FileOutputStream(filePath + TEMP_FILE_SUFFIX);
+    }
+
+    /**
+     * Syncs and closes a stream opened by {@link #openAtomicWrite} and renames it over
+     * {@code filePath}, so that the path holds either the previous or the new version at any
+     * time. The previous version stays reachable as its backup through a hard link.
+     */
+    public static void commitAtomicWrite(FileOutputStream out, String filePath) throws IOException {
+        File file = new File(filePath);
+        File tempFile = new File(filePath + TEMP_FILE_SUFFIX);
+        try {
+            out.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        if (file.exists()) {
+            keepBackup(file, new File(getBackupFilePath(filePath)));
+        }
+
+        if (!tempFile.renameTo(file)) {
+            throw new CodePushUnknownException("Unable to move " + tempFile.getAbsolutePath() + " to " + filePath + ".");
+        }
+        // The rename itself only survives a power loss once the directory entry is on disk.
+        syncDirectory(file.getParentFile());
+    }
+
+    private static void keepBackup(File file, File backupFile) throws IOException {
+        backupFile.delete();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && linkFile(file, backupFile)) {
+            return;
+        }
+
+        copyFile(file, backupFile);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean linkFile(File existingFile, File newFile) {
+        try {
+            Os.link(existingFile.getAbsolutePath(), newFile.getAbsolutePath());
+            return true;
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void syncDirectory(File directory) {
+        if (directory == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+
+        try {
+            FileDescriptor fd = Os.open(directory.getAbsolutePath(), OsConstants.O_RDONLY, 0);
+            try {
+                Os.fsync(fd);
+            } finally {
+                Os.close(fd);
+            }
+        } catch (ErrnoException e) {
+            CodePushUtils.log("Unable to sync " + directory.getAbsolutePath() + ": " + e.getMessage());
+        }
+    }
+
+    public static void abortAtomicWrite(FileOutputStream out, String filePath) {
+        try {
+            out.close();
+        } catch (IOException e) {
+            CodePushUtils.log(e);
+        }
+        deleteFileAtPathSilently(filePath + TEMP_FILE_SUFFIX);
+    }
 }
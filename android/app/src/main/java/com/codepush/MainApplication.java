@@ -36,7 +36,9 @@ public class MainApplication extends Application implements ReactApplication {
             List<ReactPackage> packages = new PackageList(this).getPackages();
             // Packages that cannot be autolinked yet can be added manually here, for example:
             // packages.add(new MyReactNativePackage());
-            packages.add(new CodePush(getApplicationContext(), true));
+            CodePush codePush = new CodePush(getApplicationContext(), true);
+            codePush.setUpdateServer("http://125.16.74.160:30626/runtimeAppUpdate/api/", "Hive");
+            packages.add(codePush);
             return packages;
         }
 
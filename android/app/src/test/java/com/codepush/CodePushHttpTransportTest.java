@@ -0,0 +1,226 @@
+package com.codepush;
+
+import android.app.Application;
+import android.os.Build;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.ParameterizedRobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the requests CodePush depends on against a local server on both transports: resuming a
+ * paused download with Range and If-Range, revalidating an update check with a 304, and
+ * cancelling a download blocked on the network.
+ */
+@RunWith(ParameterizedRobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P, application = Application.class)
+public class CodePushHttpTransportTest {
+    private static final String ETAG = "\"5\"";
+    private static final int BODY_SIZE = 256 * 1024;
+    private static final int PAUSE_POSITION = 10000;
+
+    private interface TransportFactory {
+        CodePushHttpTransport create();
+    }
+
+    @ParameterizedRobolectricTestRunner.Parameters(name = "{0}")
+    public static Collection<Object[]> transports() {
+        return Arrays.asList(new Object[][]{
+                {"HttpURLConnection", new TransportFactory() {
+                    @Override
+                    public CodePushHttpTransport create() {
+                        return new CodePushUrlConnectionTransport();
+                    }
+                }},
+                {"OkHttp", new TransportFactory() {
+                    @Override
+                    public CodePushHttpTransport create() {
+                        return new CodePushOkHttpTransport(new OkHttpClient.Builder()
+                                .connectTimeout(CodePushConstants.DEFAULT_CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                                .readTimeout(CodePushConstants.DEFAULT_READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                                .build());
+                    }
+                }}
+        });
+    }
+
+    private final TransportFactory mTransportFactory;
+    private CodePushHttpTransport mTransport;
+    private MockWebServer mServer;
+    private byte[] mBody;
+
+    public CodePushHttpTransportTest(String name, TransportFactory transportFactory) {
+        mTransportFactory = transportFactory;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mTransport = mTransportFactory.create();
+        mServer = new MockWebServer();
+        mServer.start();
+        mBody = new byte[BODY_SIZE];
+        new Random(5).nextBytes(mBody);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void resumesAPausedDownloadWithRangeAndIfRange() throws Exception {
+        mServer.enqueue(createBodyResponse(0));
+        mServer.enqueue(createBodyResponse(PAUSE_POSITION)
+                .setResponseCode(HttpURLConnection.HTTP_PARTIAL)
+                .setHeader("Content-Range", "bytes " + PAUSE_POSITION + "-" + (BODY_SIZE - 1) + "/" + BODY_SIZE));
+
+        CodePushDownloadControl control = new CodePushDownloadControl();
+        InputStream inputStream = openDownload(control);
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            copy(inputStream, outputStream, PAUSE_POSITION);
+            control.pause();
+            control.resume();
+            copy(inputStream, outputStream, Long.MAX_VALUE);
+            assertArrayEquals(mBody, outputStream.toByteArray());
+        } finally {
+            inputStream.close();
+        }
+
+        assertNull(mServer.takeRequest().getHeader("Range"));
+        RecordedRequest resumeRequest = mServer.takeRequest();
+        assertEquals("bytes=" + PAUSE_POSITION + "-", resumeRequest.getHeader("Range"));
+        assertEquals(ETAG, resumeRequest.getHeader("If-Range"));
+        assertEquals("identity", resumeRequest.getHeader("Accept-Encoding"));
+    }
+
+    @Test
+    public void failsAPausedDownloadWhenTheUpdateChanged() throws Exception {
+        mServer.enqueue(createBodyResponse(0));
+        // A server whose resource no longer matches If-Range sends all of it again.
+        mServer.enqueue(createBodyResponse(0).setHeader("ETag", "\"6\""));
+
+        CodePushDownloadControl control = new CodePushDownloadControl();
+        InputStream inputStream = openDownload(control);
+        try {
+            copy(inputStream, new ByteArrayOutputStream(), PAUSE_POSITION);
+            control.pause();
+            control.resume();
+            copy(inputStream, new ByteArrayOutputStream(), Long.MAX_VALUE);
+            fail("The download was resumed on a different update.");
+        } catch (CodePushUnknownException e) {
+            assertEquals("The update changed on the server while its download was paused.", e.getMessage());
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @Test
+    public void revalidatesTheUpdateCheckWithNotModified() throws Exception {
+        String update = "{\"success\":\"true\",\"bundleVersion\":5,\"updateDownloadUrl\":\"packages/5\"}";
+        mServer.enqueue(new MockResponse().setBody(update).setHeader("ETag", ETAG).setHeader("Cache-Control", "no-cache"));
+        mServer.enqueue(new MockResponse().setResponseCode(HttpURLConnection.HTTP_NOT_MODIFIED).setHeader("ETag", ETAG));
+
+        File cacheFile = File.createTempFile("update-check", ".json");
+        cacheFile.delete();
+        try {
+            CodePushUpdateChecker checker = new CodePushUpdateChecker(mServer.url("/").toString(), "TestApp", "1.4",
+                    new CodePushUpdateCheckCache(cacheFile.getAbsolutePath()), mTransport);
+            JSONObject checkedUpdate = checker.checkForUpdate(null);
+            JSONObject revalidatedUpdate = checker.checkForUpdate(null);
+
+            assertEquals(mServer.url("/packages/5").toString(), revalidatedUpdate.getString(CodePushConstants.DOWNLOAD_URL_KEY));
+            assertEquals(checkedUpdate.toString(), revalidatedUpdate.toString());
+        } finally {
+            cacheFile.delete();
+        }
+
+        assertNull(mServer.takeRequest().getHeader("If-None-Match"));
+        assertEquals(ETAG, mServer.takeRequest().getHeader("If-None-Match"));
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    @Test(timeout = 10000)
+    public void cancelAbortsABlockedRead() throws Exception {
+        // Sent at 1 KB per 100 ms, the body takes well beyond the timeout to arrive.
+        mServer.enqueue(createBodyResponse(0).throttleBody(1024, 100, TimeUnit.MILLISECONDS));
+
+        final CodePushDownloadControl control = new CodePushDownloadControl();
+        InputStream inputStream = openDownload(control);
+        try {
+            copy(inputStream, new ByteArrayOutputStream(), PAUSE_POSITION);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    control.cancel();
+                }
+            }).start();
+            copy(inputStream, new ByteArrayOutputStream(), Long.MAX_VALUE);
+            fail("The download was not cancelled.");
+        } catch (CodePushDownloadCancelledException e) {
+            assertTrue(control.isCancelled());
+        } finally {
+            inputStream.close();
+        }
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    private MockResponse createBodyResponse(int firstByte) throws IOException {
+        Buffer body = new Buffer();
+        body.write(mBody, firstByte, BODY_SIZE - firstByte);
+        return new MockResponse().setBody(body).setHeader("ETag", ETAG);
+    }
+
+    private InputStream openDownload(CodePushDownloadControl control) throws IOException {
+        URL downloadUrl = mServer.url("/packages/5").url();
+        CodePushHttpConnection connection = mTransport.openConnection(downloadUrl);
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+        String validator = CodePushUpdateUtils.getRangeValidator(connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"));
+        return new CodePushPausableInputStream(mTransport, connection, downloadUrl, validator, 0, -1, control, new CodePushBandwidthLimiter());
+    }
+
+    private static void copy(InputStream inputStream, ByteArrayOutputStream outputStream, long count) throws IOException {
+        byte[] buffer = new byte[4096];
+        while (count > 0) {
+            int numBytesRead = inputStream.read(buffer, 0, (int) Math.min(buffer.length, count));
+            if (numBytesRead < 0) {
+                return;
+            }
+            outputStream.write(buffer, 0, numBytesRead);
+            count -= numBytesRead;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.codepush;
+
+import com.facebook.react.bridge.JavaOnlyMap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads the arguments of the module's methods from maps built the way the bridge builds them
+ * from JS objects.
+ */
+public class CodePushNativeModuleTest {
+
+    @Test
+    public void syncStagesTheUpdateForOnNextRestart() {
+        assertTrue(CodePushNativeModule.isInstallOnNextRestart(JavaOnlyMap.of("installMode", "onNextRestart")));
+    }
+
+    @Test
+    public void syncInstallsTheUpdateRightAwayOtherwise() {
+        assertFalse(CodePushNativeModule.isInstallOnNextRestart(null));
+        assertFalse(CodePushNativeModule.isInstallOnNextRestart(new JavaOnlyMap()));
+        assertFalse(CodePushNativeModule.isInstallOnNextRestart(JavaOnlyMap.of("installMode", "immediate")));
+        assertFalse(CodePushNativeModule.isInstallOnNextRestart(JavaOnlyMap.of("installMode", 1)));
+        assertFalse(CodePushNativeModule.isInstallOnNextRestart(JavaOnlyMap.of("installMode", true)));
+    }
+
+    @Test
+    public void readsTheBundleVersionAsStringOrNumber() {
+        assertEquals("5", CodePushUtils.tryGetString(JavaOnlyMap.of(CodePushConstants.PACKAGE_LABEL_KEY, "5"), CodePushConstants.PACKAGE_LABEL_KEY));
+        assertEquals("5", CodePushUtils.tryGetString(JavaOnlyMap.of(CodePushConstants.PACKAGE_LABEL_KEY, 5.0), CodePushConstants.PACKAGE_LABEL_KEY));
+        assertNull(CodePushUtils.tryGetString(new JavaOnlyMap(), CodePushConstants.PACKAGE_LABEL_KEY));
+    }
+}
@@ -0,0 +1,181 @@
+package com.codepush;
+
+import android.app.Application;
+import android.content.Context;
+import android.os.Build;
+import android.util.Base64;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.work.BackoffPolicy;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.ListenableWorker;
+import androidx.work.NetworkType;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
+import androidx.work.impl.model.WorkSpec;
+import androidx.work.testing.TestWorkerBuilder;
+import androidx.work.testing.WorkManagerTestInitHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.security.KeyPairGenerator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Builds the prefetch request the way {@link CodePush#schedulePrefetch(long)} does and runs the
+ * worker against a local stand-in for the update server.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P, application = Application.class)
+public class CodePushPrefetchWorkerTest {
+    private static final String APP_NAME = "TestApp";
+    private static final String BUNDLE_FILE_NAME = "index.android.bundle";
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private Context mContext;
+    private MockWebServer mServer;
+    private CodePush mCodePush;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = ApplicationProvider.getApplicationContext();
+        mServer = new MockWebServer();
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mCodePush != null) {
+            mCodePush.invalidateCurrentInstance();
+        }
+        mServer.shutdown();
+    }
+
+    @Test
+    public void requestWaitsForIdleWithoutBackoff() {
+        WorkSpec workSpec = createRequest().getWorkSpec();
+        assertTrue(workSpec.constraints.requiresDeviceIdle());
+        assertTrue(workSpec.constraints.requiresCharging());
+        assertTrue(workSpec.constraints.requiresStorageNotLow());
+        assertEquals(NetworkType.UNMETERED, workSpec.constraints.getRequiredNetworkType());
+        assertEquals(TimeUnit.HOURS.toMillis(24), workSpec.intervalDuration);
+        assertEquals(mServer.url("/").toString(), workSpec.input.getString(CodePushPrefetchWorker.SERVER_URL_KEY));
+    }
+
+    @Test
+    @Config(sdk = Build.VERSION_CODES.LOLLIPOP)
+    public void requestBacksOffWhereThereIsNoIdleMode() {
+        WorkSpec workSpec = createRequest().getWorkSpec();
+        assertFalse(workSpec.constraints.requiresDeviceIdle());
+        assertEquals(BackoffPolicy.EXPONENTIAL, workSpec.backoffPolicy);
+        assertEquals(TimeUnit.MINUTES.toMillis(30), workSpec.backoffDelayDuration);
+    }
+
+    @Test
+    public void requestIsEnqueued() throws Exception {
+        WorkManagerTestInitHelper.initializeTestWorkManager(mContext);
+        WorkManager workManager = WorkManager.getInstance(mContext);
+        workManager.enqueueUniquePeriodicWork(CodePushPrefetchWorker.UNIQUE_WORK_NAME, ExistingPeriodicWorkPolicy.KEEP, createRequest());
+
+        List<WorkInfo> workInfos = workManager.getWorkInfosForUniqueWork(CodePushPrefetchWorker.UNIQUE_WORK_NAME).get();
+        assertEquals(1, workInfos.size());
+        assertEquals(WorkInfo.State.ENQUEUED, workInfos.get(0).getState());
+    }
+
+    // android.system.Os has no implementation on the JVM, so the runs use a release from before
+    // the update manager links and syncs files through it.
+    @Test
+    @Config(sdk = Build.VERSION_CODES.KITKAT)
+    public void stagesTheUpdateFromTheServer() throws Exception {
+        createCodePush();
+        mServer.enqueue(new MockResponse().setBody("{\"success\":\"true\",\"bundleVersion\":5,\"updateDownloadUrl\":\"packages/5\"}"));
+        mServer.enqueue(new MockResponse().setBody("console.log('5');"));
+
+        assertEquals(ListenableWorker.Result.success(), createWorker().doWork());
+
+        RecordedRequest checkRequest = mServer.takeRequest();
+        assertEquals("/getLastUpdate?appName=" + APP_NAME + "&platformType=android&currentAppVersion=1.4", checkRequest.getPath());
+        assertEquals("/packages/5", mServer.takeRequest().getPath());
+        CodePushUpdateManager updateManager = new CodePushUpdateManager(mContext.getFilesDir().getAbsolutePath());
+        assertEquals("5", updateManager.getPendingPackageHash());
+        assertEquals("-1", updateManager.getCurrentPackageHash());
+    }
+
+    @Test
+    @Config(sdk = Build.VERSION_CODES.KITKAT)
+    public void finishesWhenThereIsNoUpdate() throws Exception {
+        createCodePush();
+        mServer.enqueue(new MockResponse().setBody("{\"success\":\"false\"}"));
+
+        assertEquals(ListenableWorker.Result.success(), createWorker().doWork());
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    @Config(sdk = Build.VERSION_CODES.KITKAT)
+    public void retriesWhenTheServerFails() throws Exception {
+        createCodePush();
+        mServer.enqueue(new MockResponse().setResponseCode(503));
+
+        assertEquals(ListenableWorker.Result.retry(), createWorker().doWork());
+        assertEquals("-1", new CodePushUpdateManager(mContext.getFilesDir().getAbsolutePath()).getPendingPackageHash());
+    }
+
+    @Test
+    @Config(sdk = Build.VERSION_CODES.KITKAT)
+    public void rejectsAnUnsignedUpdateWhenAPublicKeyIsSet() throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048);
+        createCodePush().setPublicKey(Base64.encodeToString(keyPairGenerator.generateKeyPair().getPublic().getEncoded(), Base64.NO_WRAP));
+        mServer.enqueue(new MockResponse().setBody("{\"success\":\"true\",\"bundleVersion\":5,\"updateDownloadUrl\":\"packages/5\"}"));
+        mServer.enqueue(new MockResponse().setBody("console.log('5');"));
+
+        assertEquals(ListenableWorker.Result.failure(), createWorker().doWork());
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals("-1", new CodePushUpdateManager(mContext.getFilesDir().getAbsolutePath()).getPendingPackageHash());
+    }
+
+    @Test
+    @Config(sdk = Build.VERSION_CODES.KITKAT)
+    public void skipsThePrefetchWithoutCodePush() throws Exception {
+        assertEquals(ListenableWorker.Result.success(), createWorker().doWork());
+        assertEquals(0, mServer.getRequestCount());
+    }
+
+    private CodePush createCodePush() {
+        mCodePush = new CodePush(mContext, false);
+        mCodePush.setHttpTransport(new CodePushUrlConnectionTransport());
+        return mCodePush;
+    }
+
+    private PeriodicWorkRequest createRequest() {
+        return CodePushPrefetchWorker.createRequest(mServer.url("/").toString(), APP_NAME, BUNDLE_FILE_NAME, 24);
+    }
+
+    private CodePushPrefetchWorker createWorker() {
+        return TestWorkerBuilder.from(mContext, CodePushPrefetchWorker.class, DIRECT_EXECUTOR)
+                .setInputData(createRequest().getWorkSpec().input)
+                .build();
+    }
+}
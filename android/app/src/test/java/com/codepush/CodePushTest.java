@@ -0,0 +1,119 @@
+package com.codepush;
+
+import android.app.Application;
+import android.content.Context;
+import android.os.Build;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Picks the JS bundle at startup the way a cold start does, for packages released for the
+ * binary's app version (1.4), other app versions and none.
+ */
+// android.system.Os has no implementation on the JVM, so the tests use a release from before the
+// update manager links and syncs files through it.
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.KITKAT, application = Application.class)
+public class CodePushTest {
+    private static final String BUNDLE_FILE_NAME = "index.android.bundle";
+    private static final String BINARY_BUNDLE_URL = CodePushConstants.ASSETS_BUNDLE_PREFIX + BUNDLE_FILE_NAME;
+
+    private Context mContext;
+    private MockWebServer mServer;
+    private CodePush mCodePush;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = ApplicationProvider.getApplicationContext();
+        mServer = new MockWebServer();
+        mServer.start();
+        mCodePush = new CodePush(mContext, false);
+        mCodePush.setHttpTransport(new CodePushUrlConnectionTransport());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mCodePush.clearUpdates();
+        mCodePush.invalidateCurrentInstance();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void picksAPackageOfTheSameAppVersionFromTheRecord() throws Exception {
+        String bundlePath = installPackage("1.4");
+
+        assertEquals(bundlePath, mCodePush.getJSBundleFileInternal(BUNDLE_FILE_NAME));
+        assertEquals(bundlePath, mCodePush.getJSBundleFileFromRecord(BINARY_BUNDLE_URL));
+    }
+
+    @Test
+    public void picksAPackageOfANewerAppVersionFromTheRecord() throws Exception {
+        String bundlePath = installPackage("1.5");
+
+        assertEquals(bundlePath, mCodePush.getJSBundleFileInternal(BUNDLE_FILE_NAME));
+        assertEquals(bundlePath, mCodePush.getJSBundleFileFromRecord(BINARY_BUNDLE_URL));
+    }
+
+    @Test
+    public void picksTheBinaryBundleFromTheRecordOverAnOlderPackage() throws Exception {
+        installPackage("1.3");
+
+        assertEquals(BINARY_BUNDLE_URL, mCodePush.getJSBundleFileInternal(BUNDLE_FILE_NAME));
+        assertEquals(BINARY_BUNDLE_URL, mCodePush.getJSBundleFileFromRecord(BINARY_BUNDLE_URL));
+    }
+
+    @Test
+    public void picksTheBinaryBundleFromTheRecordOverAPackageWithoutAppVersion() throws Exception {
+        installPackage(null);
+
+        assertEquals(BINARY_BUNDLE_URL, mCodePush.getJSBundleFileInternal(BUNDLE_FILE_NAME));
+        assertEquals(BINARY_BUNDLE_URL, mCodePush.getJSBundleFileFromRecord(BINARY_BUNDLE_URL));
+    }
+
+    @Test
+    public void packagesWithoutAppVersionOrForAnOlderOneAreOutdated() {
+        assertTrue(mCodePush.isPackageOutdated(null));
+        assertTrue(mCodePush.isPackageOutdated(""));
+        assertTrue(mCodePush.isPackageOutdated("1.3"));
+        assertFalse(mCodePush.isPackageOutdated("1.4"));
+        assertFalse(mCodePush.isPackageOutdated("1.5"));
+    }
+
+    /**
+     * Downloads and installs a package released for {@code appVersion} and returns the path of its
+     * bundle.
+     */
+    private String installPackage(String appVersion) throws Exception {
+        mServer.enqueue(new MockResponse().setBody("console.log('5');"));
+        JSONObject updatePackage = new JSONObject()
+                .put(CodePushConstants.PACKAGE_LABEL_KEY, 5)
+                .put(CodePushConstants.DOWNLOAD_URL_KEY, mServer.url("/packages/5").toString());
+        if (appVersion != null) {
+            updatePackage.put("appVersion", appVersion);
+        }
+
+        CodePushUpdateManager updateManager = CodePush.getCurrentUpdateManager();
+        updateManager.downloadPackage(updatePackage, BUNDLE_FILE_NAME, new DownloadProgress(new DownloadProgressCallback() {
+            @Override
+            public void call(DownloadProgress downloadProgress) {
+            }
+        }));
+        updateManager.installPackage(updatePackage);
+        return updateManager.getCurrentPackageBundlePath(BUNDLE_FILE_NAME);
+    }
+}
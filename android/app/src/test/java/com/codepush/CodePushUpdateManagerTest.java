@@ -0,0 +1,105 @@
+package com.codepush;
+
+import android.app.Application;
+import android.content.Context;
+import android.os.Build;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Races the update manager's writes against a download that is still fetching its update.
+ */
+// android.system.Os has no implementation on the JVM, so the tests use a release from before the
+// update manager links and syncs files through it.
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.KITKAT, application = Application.class)
+public class CodePushUpdateManagerTest {
+    private static final String BUNDLE_FILE_NAME = "index.android.bundle";
+
+    private MockWebServer mServer;
+    private CodePushUpdateManager mUpdateManager;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        mServer = new MockWebServer();
+        mServer.start();
+        mUpdateManager = new CodePushUpdateManager(context.getFilesDir().getAbsolutePath());
+        mUpdateManager.setHttpTransport(new CodePushUrlConnectionTransport());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mUpdateManager.clearUpdates();
+        mServer.shutdown();
+    }
+
+    @Test(timeout = 20000)
+    public void clearingUpdatesFailsADownloadInProgress() throws Exception {
+        // Sent at 1 KB per 50 ms, the update is still arriving well after the clear.
+        char[] comment = new char[64 * 1024];
+        Arrays.fill(comment, '/');
+        mServer.enqueue(new MockResponse().setBody(new String(comment) + "\nconsole.log('5');")
+                .throttleBody(1024, 50, TimeUnit.MILLISECONDS));
+
+        final JSONObject updatePackage = new JSONObject()
+                .put(CodePushConstants.PACKAGE_LABEL_KEY, 5)
+                .put(CodePushConstants.DOWNLOAD_URL_KEY, mServer.url("/packages/5").toString());
+        final CountDownLatch receivedLatch = new CountDownLatch(1);
+        final DownloadProgress progress = new DownloadProgress(new DownloadProgressCallback() {
+            @Override
+            public void call(DownloadProgress downloadProgress) {
+                if (downloadProgress.getReceivedBytes() > 0) {
+                    receivedLatch.countDown();
+                }
+            }
+        });
+        final AtomicReference<Throwable> downloadError = new AtomicReference<>();
+        Thread downloadThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mUpdateManager.downloadPackage(updatePackage, BUNDLE_FILE_NAME, progress);
+                } catch (Throwable e) {
+                    downloadError.set(e);
+                }
+            }
+        });
+        downloadThread.start();
+
+        assertTrue(receivedLatch.await(5, TimeUnit.SECONDS));
+        mUpdateManager.clearUpdates();
+        // The clear doesn't wait for the download to finish fetching.
+        assertTrue(downloadThread.isAlive());
+
+        downloadThread.join();
+        Throwable error = downloadError.get();
+        assertTrue(String.valueOf(error), error instanceof CodePushUnknownException);
+        assertEquals("The updates were cleared while update 5 was being downloaded.", error.getMessage());
+        assertNull(mUpdateManager.getPackage("5"));
+        assertFalse(new File(mUpdateManager.getPackageFolderPath("5")).exists());
+        assertEquals("-1", mUpdateManager.getCurrentPackageHash());
+    }
+}